@@ -0,0 +1,161 @@
+/**
+ * Filename:   BKTree.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Burkhard-Keller tree of words, finding the words within a small edit
+ * distance of a misspelled one without comparing it to every word.
+ *
+ * Every node holds a word, and its children are keyed by their Levenshtein
+ * distance to it. Since the distance is a metric, a word within distance k
+ * of the query can only be under a child whose key is within k of the
+ * distance between the query and the node, so a search only descends into
+ * those children; with k of 1 or 2 that is a small part of the tree.
+ * Words are never removed, callers skip the ones no longer in use.
+ */
+public class BKTree {
+
+    /**
+     * A word found by a search
+     */
+    public static class Match {
+
+        // The word
+        public final String word;
+
+        // Its distance to the query
+        public final int distance;
+
+        Match(String word, int distance) {
+            this.word = word;
+            this.distance = distance;
+        }
+    }
+
+    // Words by node, the root first
+    private final List<String> words = new ArrayList<String>();
+
+    // Children by node and distance, -1 for none; the array of a node is
+    // as long as its greatest child distance plus one
+    private final List<int[]> children = new ArrayList<int[]>();
+
+    /**
+     * Adds a word that is not in the tree yet
+     *
+     * @param word the word
+     */
+    public void add(String word) {
+        int node = words.size();
+        words.add(word);
+        children.add(new int[0]);
+        if (node == 0) {
+            return;
+        }
+        int parent = 0;
+        while (true) {
+            int distance = distance(word, words.get(parent));
+            int[] next = children.get(parent);
+            if (distance >= next.length) {
+                int length = next.length;
+                next = Arrays.copyOf(next, distance + 1);
+                Arrays.fill(next, length, next.length, -1);
+                children.set(parent, next);
+            }
+            if (next[distance] < 0) {
+                next[distance] = node;
+                return;
+            }
+            parent = next[distance];
+        }
+    }
+
+    /**
+     * Finds the words within a distance of a word
+     *
+     * @param word the word
+     * @param maxDistance the greatest distance
+     * @return the words found, in no particular order
+     */
+    public List<Match> search(String word, int maxDistance) {
+        List<Match> found = new ArrayList<Match>();
+        if (words.isEmpty()) {
+            return found;
+        }
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int distance = distance(word, words.get(node));
+            if (distance <= maxDistance) {
+                found.add(new Match(words.get(node), distance));
+            }
+            int[] next = children.get(node);
+            for (int d = Math.max(1, distance - maxDistance); d <= distance + maxDistance && d < next.length; d++) {
+                if (next[d] >= 0) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = next[d];
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return number of words in the tree
+     */
+    public int size() {
+        return words.size();
+    }
+
+    /**
+     * @return estimated bytes of the tree, not counting the words, see
+     *         MemoryReport
+     */
+    public long memoryBytes() {
+        long bytes = 2 * MemoryReport.arrayBytes(words.size(), MemoryReport.REFERENCE_BYTES);
+        for (int[] next : children) {
+            bytes += MemoryReport.arrayBytes(next.length, 4);
+        }
+        return bytes;
+    }
+
+    /**
+     * Computes the Levenshtein distance between two words: the fewest
+     * single character insertions, deletions and substitutions turning one
+     * into the other
+     *
+     * @param first a word
+     * @param second another word
+     * @return the distance
+     */
+    static int distance(String first, String second) {
+        int[] previous = new int[second.length() + 1];
+        int[] current = new int[second.length() + 1];
+        for (int j = 0; j <= second.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= first.length(); i++) {
+            current[0] = i;
+            char c = first.charAt(i - 1);
+            for (int j = 1; j <= second.length(); j++) {
+                int substitution = previous[j - 1] + (c == second.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[second.length()];
+    }
+}
@@ -29,6 +29,9 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
     // for internal nodes of the tree
     private int branchingFactor;
 
+    // Number of entries
+    private int size;
+
 
     /**
      * Public constructor
@@ -47,6 +50,89 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
     }
 
 
+    /**
+     * Builds a tree from entries already sorted by key, bottom up in linear
+     * time instead of inserting them one by one. Leaves and internal nodes
+     * are filled as evenly as possible, up to their capacity.
+     *
+     * @param branchingFactor branching factor of the tree
+     * @param keys the keys in ascending order
+     * @param values the value of every key
+     * @return the tree
+     */
+    public static <K extends Comparable<K>, V> BPTree<K, V> bulkLoad(int branchingFactor,
+            List<K> keys, List<V> values) {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Got " + keys.size() + " keys and "
+                    + values.size() + " values");
+        }
+        BPTree<K, V> tree = new BPTree<K, V>(branchingFactor);
+        if (!keys.isEmpty()) {
+            tree.root = tree.buildLevels(keys, values);
+            tree.size = keys.size();
+        }
+        return tree;
+    }
+
+
+    /**
+     * Creates the leaves holding sorted entries and the internal nodes
+     * above them
+     *
+     * @param keys the keys in ascending order
+     * @param values the value of every key
+     * @return the root
+     */
+    private Node buildLevels(List<K> keys, List<V> values) {
+        // a leaf holds at most branchingFactor - 1 entries
+        int leafCount = (keys.size() + branchingFactor - 2) / (branchingFactor - 1);
+        List<Node> level = new ArrayList<Node>(leafCount);
+        LeafNode previous = null;
+        for (int i = 0; i < leafCount; i++) {
+            int from = (int) ((long) keys.size() * i / leafCount);
+            int to = (int) ((long) keys.size() * (i + 1) / leafCount);
+            LeafNode leaf = new LeafNode();
+            leaf.keys.addAll(keys.subList(from, to));
+            leaf.values.addAll(values.subList(from, to));
+            leaf.previous = previous;
+            if (previous != null) {
+                previous.next = leaf;
+            }
+            previous = leaf;
+            level.add(leaf);
+        }
+        return buildInternalLevels(level);
+    }
+
+
+    /**
+     * Creates the internal nodes above a level of nodes
+     *
+     * @param level the nodes in key order
+     * @return the root
+     */
+    private Node buildInternalLevels(List<Node> level) {
+        // an internal node has at most branchingFactor children, the key
+        // before every child but the first is the child's first leaf key
+        while (level.size() > 1) {
+            int nodeCount = (level.size() + branchingFactor - 1) / branchingFactor;
+            List<Node> parents = new ArrayList<Node>(nodeCount);
+            for (int i = 0; i < nodeCount; i++) {
+                int from = (int) ((long) level.size() * i / nodeCount);
+                int to = (int) ((long) level.size() * (i + 1) / nodeCount);
+                InternalNode node = new InternalNode();
+                node.children.addAll(level.subList(from, to));
+                for (int child = from + 1; child < to; child++) {
+                    node.keys.add(level.get(child).getFirstLeafKey());
+                }
+                parents.add(node);
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+
     /**
      * insert key and value
      * @param key
@@ -56,6 +142,67 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
     public void insert(K key, V value) {
         // call insert of the root
         root.insert(key, value);
+        size++;
+    }
+
+
+    /**
+     * Inserts entries sorted by key. A batch smaller than the tree is
+     * inserted entry by entry: in key order, every descent follows the path
+     * of the one before it, which is still in the cache. A batch at least as
+     * large is merged with the entries of the leaves in one pass and the
+     * tree is rebuilt bottom up, as in bulkLoad(), in time linear in the
+     * size of the tree.
+     *
+     * @param keys the keys in ascending order
+     * @param values the value of every key
+     */
+    public void insertAll(List<K> keys, List<V> values) {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Got " + keys.size() + " keys and "
+                    + values.size() + " values");
+        }
+        if (keys.size() < size) {
+            for (int i = 0; i < keys.size(); i++) {
+                insert(keys.get(i), values.get(i));
+            }
+            return;
+        }
+
+        // walk the leaves from the first one, merging the batch in; entries
+        // already in the tree come before new ones with the same key
+        Node first = root;
+        while (first instanceof BPTree.InternalNode) {
+            first = ((InternalNode) first).children.get(0);
+        }
+        List<K> mergedKeys = new ArrayList<K>(size + keys.size());
+        List<V> mergedValues = new ArrayList<V>(size + keys.size());
+        int next = 0;
+        for (LeafNode leaf = (LeafNode) first; leaf != null; leaf = leaf.next) {
+            for (int i = 0; i < leaf.keys.size(); i++) {
+                K key = leaf.keys.get(i);
+                while (next < keys.size() && keys.get(next).compareTo(key) < 0) {
+                    mergedKeys.add(keys.get(next));
+                    mergedValues.add(values.get(next++));
+                }
+                mergedKeys.add(key);
+                mergedValues.add(leaf.values.get(i));
+            }
+        }
+        mergedKeys.addAll(keys.subList(next, keys.size()));
+        mergedValues.addAll(values.subList(next, values.size()));
+        if (!mergedKeys.isEmpty()) {
+            root = buildLevels(mergedKeys, mergedValues);
+        }
+        size = mergedKeys.size();
+    }
+
+
+    /**
+     * @return number of entries in the tree
+     */
+    public int size() {
+        return size;
     }
 
 
@@ -68,6 +215,20 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
      */
     @Override
     public List<V> rangeSearch(K key, String comparator) {
+        return rangeSearch(key, comparator, QueryContext.unbounded());
+    }
+
+
+    /**
+     * rangeSearch nutrients based on the pass in comparator, giving up
+     * once the context is cancelled or runs past its deadline
+     *
+     * @param key to be searched
+     * @param comparator is a string
+     * @param context checked once per leaf visited
+     * @return the values found before the search completed or was stopped
+     */
+    public List<V> rangeSearch(K key, String comparator, QueryContext context) {
         if (!comparator.contentEquals(">=") &&
                 !comparator.contentEquals("==") &&
                 !comparator.contentEquals("<="))
@@ -77,7 +238,20 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         if ( key == null){
             return new ArrayList<V>();
         }
-        return root.rangeSearch(key, comparator);
+        return root.rangeSearch(key, comparator, context);
+    }
+
+
+    /**
+     * Estimates the heap used by the tree: its nodes, their lists and the
+     * keys, assumed to be boxed numbers. The values are not counted, they
+     * belong to whoever created them. See MemoryReport.
+     *
+     * @return estimated bytes
+     */
+    public long estimateBytes() {
+        // root reference, branching factor and size
+        return MemoryReport.objectBytes(MemoryReport.REFERENCE_BYTES + 8) + root.estimateBytes();
     }
 
 
@@ -168,9 +342,10 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          *
          * @param key
          * @param comparator
+         * @param context checked once per leaf visited
          * @return
          */
-        abstract List<V> rangeSearch(K key, String comparator);
+        abstract List<V> rangeSearch(K key, String comparator, QueryContext context);
 
         /**
          * to check if the node is overloaded
@@ -179,6 +354,13 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          */
         abstract boolean isOverflow();
 
+        /**
+         * Estimates the heap used by this node and the nodes below it
+         *
+         * @return estimated bytes
+         */
+        abstract long estimateBytes();
+
         public String toString() {
             return keys.toString();
         }
@@ -212,7 +394,9 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          * @return the key of the first leaf
          */
         K getFirstLeafKey() {
-            return children.get(0).keys.get(0);
+            // recurse down to the leaf, the child's own first key is only a
+            // separator when the child is an internal node
+            return children.get(0).getFirstLeafKey();
         }
 
         /**
@@ -250,31 +434,22 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
         }
 
         /**
-         * helper for insert keys into internal node
+         * helper for insert keys into internal node, the new sibling goes
+         * right after the child it was split from. The position is taken from
+         * the split child rather than a search on the key, which is ambiguous
+         * when the key is duplicated.
          *
          * @param key
-         * @param child
+         * @param splitChild the child that was split
+         * @param child the new sibling
          */
-        private void insertChild(K key, Node child) {
-
-            // binary search for correct index
-            int correct_place = Collections.binarySearch(keys, key);
-            int child_indexing;
+        private void insertChild(K key, Node splitChild, Node child) {
 
-            // to check if the key is already in there and get the correct index after using collections.binarySearch
-            if (correct_place >= 0) {
-                child_indexing = correct_place + 1;
-            } else {
-                child_indexing = -correct_place - 1;
-            }
+            // position of the child that was split
+            int child_indexing = children.indexOf(splitChild);
 
-            if (correct_place >= 0) {
-                keys.add(child_indexing, key);
-                children.add(child_indexing, child);
-            } else {
-                keys.add(child_indexing, key);
-                children.add(child_indexing + 1, child);
-            }
+            keys.add(child_indexing, key);
+            children.add(child_indexing + 1, child);
         }
 
         /**
@@ -291,7 +466,7 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
             // to check if the child is overloaded
             if (child.isOverflow()) {
                 Node sibling = child.split();
-                insertChild(sibling.getFirstLeafKey(), sibling);
+                insertChild(sibling.getFirstLeafKey(), child, sibling);
             }
 
             // if the node is full then it requires to split
@@ -331,11 +506,29 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
          *
          * @param key
          * @param comparator
+         * @param context checked once per leaf visited
          * @return
          */
-        List<V> rangeSearch(K key, String comparator) {
+        List<V> rangeSearch(K key, String comparator, QueryContext context) {
+
+            return getChild(key).rangeSearch(key, comparator, context);
+        }
 
-            return getChild(key).rangeSearch(key, comparator);
+        /**
+         * Estimates the heap used by this node and its subtrees; the keys
+         * are the same objects as the first keys of leaves and counted there
+         *
+         * @return estimated bytes
+         */
+        long estimateBytes() {
+            // keys, children and the enclosing tree
+            long bytes = MemoryReport.objectBytes(3 * MemoryReport.REFERENCE_BYTES)
+                    + MemoryReport.arrayListBytes(keys.size())
+                    + MemoryReport.arrayListBytes(children.size());
+            for (Node child : children) {
+                bytes += child.estimateBytes();
+            }
+            return bytes;
         }
 
     } // End of class InternalNode
@@ -426,6 +619,19 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
             }
         }
 
+        /**
+         * Estimates the heap used by this leaf and its keys
+         *
+         * @return estimated bytes
+         */
+        long estimateBytes() {
+            // keys, values, next, previous and the enclosing tree
+            return MemoryReport.objectBytes(5 * MemoryReport.REFERENCE_BYTES)
+                    + MemoryReport.arrayListBytes(keys.size())
+                    + MemoryReport.arrayListBytes(values.size())
+                    + (long) keys.size() * MemoryReport.BOXED_BYTES;
+        }
+
         /**
          * to split the leafnode
          *
@@ -456,121 +662,90 @@ public class BPTree<K extends Comparable<K>, V> implements BPTreeADT<K, V> {
 
 
         /**
-         * To do the range search for all the leafnode and look for the values that users want
+         * To do the range search starting from this leaf, which is the leaf
+         * the key routes to. Keys are sorted along the leaf chain, so the
+         * matching values form one contiguous run: it is located first and
+         * then collected in ascending key order, visiting only the leaves
+         * that hold matches plus at most one on each side.
          *
          * @param key
          * @param comparator
+         * @param context checked once per leaf visited
          * @return
          */
-        List<V> rangeSearch(K key, String comparator) {
-
-            // linked list for return
-            List<V> val = new LinkedList<>();
-            LeafNode node_next = this;
-            LeafNode node_prev = this.previous;
-
-            // to check the current node's next nodes first
-            while (node_next != null) {
-                if (comparator.equals("<=")) {
-                    if (node_next.getFirstLeafKey().compareTo(key) > 0) {
-                        node_next = node_next.next;
-                        continue;
-                    }else{
-                        compare((K) key, comparator, (List<V>) val, node_next);
-                        node_next = node_next.next;
-                    }
-                } else if (comparator.equals(">=")){
-                    if (node_next.getFirstLeafKey().compareTo(key) < 0) {
-                        node_next = node_next.next;
-                        continue;
-                    }
-                    else{
-                        compare((K) key, comparator, (List<V>) val, node_next);
-                        node_next = node_next.next;
+        List<V> rangeSearch(K key, String comparator, QueryContext context) {
+
+            // list for return
+            List<V> val = new ArrayList<>();
+            LeafNode node = this;
+            int index;
+
+            if (comparator.equals("<=")) {
+                // every key from the first leaf onwards up to the key matches
+                while (node.previous != null) {
+                    if (context.shouldStop()) {
+                        return val;
                     }
-                } else if ( comparator.equals("==")){
-                    if (node_next.getFirstLeafKey().compareTo(key) > 0){
-                        node_next = node_next.next;
-                        continue;
-                    } else {
-                        compare((K) key, comparator, (List<V>) val, node_next);
-                        node_next = node_next.next;
+                    node = node.previous;
+                }
+                index = 0;
+            } else {
+                // duplicates of the key may have been split into earlier leaves
+                while (node.previous != null && node.previous.getLastKey().compareTo(key) >= 0) {
+                    if (context.shouldStop()) {
+                        return val;
                     }
+                    node = node.previous;
                 }
+                index = node.firstIndexAtLeast(key);
             }
 
-            // to check the previous nodes
-            while (node_prev != null) {
-                if (comparator.equals("<=")) {
-                    if (node_prev.getFirstLeafKey().compareTo(key) > 0) {
-                        node_prev = node_prev.previous;
-                        continue;
-                    }else{
-                        compare((K) key, comparator, (List<V>) val, node_prev);
-                        node_prev = node_prev.previous;
-                    }
-                } else if (comparator.equals(">=")){
-                    if (node_prev.getFirstLeafKey().compareTo(key) < 0) {
-                        node_prev = node_prev.previous;
-                        continue;
-                    }
-                    else{
-                        compare((K) key, comparator, (List<V>) val, node_prev);
-                        node_prev = node_prev.previous;
-                    }
-                } else if ( comparator.equals("==")){
-                    if (node_prev.getFirstLeafKey().compareTo(key) > 0){
-                        node_prev = node_prev.previous;
-                        continue;
-                    } else {
-                        compare((K) key, comparator, (List<V>) val, node_prev);
-                        node_prev = node_prev.previous;
+            // collect values until the first key that does not match
+            while (node != null) {
+                if (context.shouldStop()) {
+                    return val;
+                }
+                for (; index < node.keys.size(); index++) {
+                    int cmp = node.keys.get(index).compareTo(key);
+                    if (cmp > 0 && !comparator.equals(">=")) {
+                        return val;
                     }
+                    val.add(node.values.get(index));
                 }
-
-
+                node = node.next;
+                index = 0;
             }
 
             return val;
         }
 
         /**
-         * a helper method for the search where it compares all the values within a leafnode
+         * to get the last key of the leaf
          *
-         * @param key
-         * @param comparator
-         * @param val
-         * @param node
+         * @return
          */
-        private void compare(K key, String comparator, List<V> val, LeafNode node) {
-            if (comparator.contentEquals(">=")) {
-                // to check every value in the leafnode
-                for (V value : node.values) {
-                    int index = node.values.indexOf(value);
-                    if (key.compareTo(node.keys.get(index)) == 0 ) {
-                        val.add(value);
-                    } else if (key.compareTo(node.keys.get(index)) < 0){
-                        val.add(value);
-                    }
-                }
-
-            } else if (comparator.contentEquals("==")) {
-                for (V value : node.values) {
-                    int index = node.values.indexOf(value);
-                    if (key.compareTo(node.keys.get(index)) == 0) {
-                        val.add(value);
-                    }
-                }
+        K getLastKey() {
+            return keys.get(keys.size() - 1);
+        }
 
-            } else if (comparator.contentEquals("<=")) {
-                for (V value : node.values) {
-                    int index = node.values.indexOf(value);
-                    if (key.compareTo(node.keys.get(index)) == 0 || key.compareTo(node.keys.get(index)) > 0) {
-                        val.add(value);
-                    }
+        /**
+         * helper for the search to find the first position whose key is
+         * greater than or equal to the given key
+         *
+         * @param key
+         * @return the position, keys.size() if every key is smaller
+         */
+        private int firstIndexAtLeast(K key) {
+            int low = 0, high = keys.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys.get(mid).compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
                 }
-
             }
+            return low;
         }
 
     } // End of class LeafNode
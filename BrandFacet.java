@@ -0,0 +1,101 @@
+/**
+ * Filename:   BrandFacet.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+/**
+ * Number of items of one brand among the results of a query, and the
+ * lowest, average and highest value of every nutrient over them, see
+ * FoodData.brandFacets().
+ *
+ * Nutrients are given by NutrientSchema ordinal. Items that lack a nutrient
+ * are left out of its values.
+ */
+public class BrandFacet {
+
+    // The brand, empty for the items whose name has none
+    private final String brand;
+
+    // Number of items of the brand
+    private final int count;
+
+    // Per nutrient: number of items having it, lowest, sum and highest
+    private final int[] present;
+    private final double[] min;
+    private final double[] sum;
+    private final double[] max;
+
+    /**
+     * Constructor
+     *
+     * @param brand the brand, empty if none
+     * @param count number of items of the brand
+     * @param present number of items having each nutrient
+     * @param min lowest value of each nutrient
+     * @param sum sum of the values of each nutrient
+     * @param max highest value of each nutrient
+     */
+    BrandFacet(String brand, int count, int[] present, double[] min, double[] sum, double[] max) {
+        this.brand = brand;
+        this.count = count;
+        this.present = present;
+        this.min = min;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * @return the brand as written in the names, empty for the items whose
+     *         name has none
+     */
+    public String getBrand() {
+        return brand;
+    }
+
+    /**
+     * @return number of items of the brand
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param nutrient NutrientSchema ordinal of a nutrient
+     * @return number of items of the brand having the nutrient
+     */
+    public int getCount(int nutrient) {
+        return nutrient < present.length ? present[nutrient] : 0;
+    }
+
+    /**
+     * @param nutrient NutrientSchema ordinal of a nutrient
+     * @return its lowest value, NaN if no item has it
+     */
+    public double getMin(int nutrient) {
+        return getCount(nutrient) == 0 ? Double.NaN : min[nutrient];
+    }
+
+    /**
+     * @param nutrient NutrientSchema ordinal of a nutrient
+     * @return its average value, NaN if no item has it
+     */
+    public double getAverage(int nutrient) {
+        return getCount(nutrient) == 0 ? Double.NaN : sum[nutrient] / present[nutrient];
+    }
+
+    /**
+     * @param nutrient NutrientSchema ordinal of a nutrient
+     * @return its highest value, NaN if no item has it
+     */
+    public double getMax(int nutrient) {
+        return getCount(nutrient) == 0 ? Double.NaN : max[nutrient];
+    }
+
+    @Override
+    public String toString() {
+        return (brand.isEmpty() ? "(no brand)" : brand) + " (" + count + ")";
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Filename:   BrandIndex.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.Arrays;
+
+/**
+ * Brand of every food item by ordinal, and the ordinals of every brand.
+ *
+ * Brands are the codes of the NameStore the names are kept in (see
+ * NameStore.brand()), so this is one int per item, kept in the order of
+ * the rows of NutrientColumns: the same row holds the nutrients and the
+ * brand of an item, and a facet pass reads both sequentially.
+ *
+ * The ordinals of a brand are a sorted list. Lists are only appended to:
+ * an item whose brand changes or that is deleted leaves its ordinal in the
+ * old list, and an ordinal added out of order marks its list to be sorted
+ * again; both are cleaned up the next time the list is read.
+ */
+public class BrandIndex {
+
+    // Brand of an item whose name has none
+    public static final int NO_BRAND = -1;
+
+    // Initial number of rows, and of ordinals in a list
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_ORDINALS = 4;
+
+    // Brand code by ordinal
+    private int[] brandOf;
+
+    // Number of rows
+    private int size;
+
+    // Per brand code: ordinals, their number and whether they need to be
+    // cleaned up
+    private int[][] ordinals;
+    private int[] lengths;
+    private boolean[] dirty;
+
+    /**
+     * Public constructor
+     */
+    public BrandIndex() {
+        brandOf = new int[INITIAL_CAPACITY];
+        ordinals = new int[0][];
+        lengths = new int[0];
+        dirty = new boolean[0];
+    }
+
+    /**
+     * Adds a row
+     *
+     * @param brand brand code of the item, NO_BRAND if none
+     * @return ordinal of the row
+     */
+    public synchronized int append(int brand) {
+        if (size == brandOf.length) {
+            brandOf = Arrays.copyOf(brandOf, size * 2);
+        }
+        int ordinal = size++;
+        brandOf[ordinal] = brand;
+        list(brand, ordinal);
+        return ordinal;
+    }
+
+    /**
+     * Changes the brand of a row
+     *
+     * @param ordinal the row
+     * @param brand the new brand code, NO_BRAND if none
+     */
+    public synchronized void set(int ordinal, int brand) {
+        if (brandOf[ordinal] == brand) {
+            return;
+        }
+        markDirty(brandOf[ordinal]);
+        brandOf[ordinal] = brand;
+        list(brand, ordinal);
+    }
+
+    /**
+     * Removes a row the way NutrientColumns.removeRow() does, moving the
+     * last row into it
+     *
+     * @param ordinal the row
+     * @return ordinal the moved row had, equal to the removed one if it was
+     *         the last row
+     */
+    public synchronized int removeRow(int ordinal) {
+        int last = size - 1;
+        markDirty(brandOf[ordinal]);
+        markDirty(brandOf[last]);
+        if (last != ordinal) {
+            brandOf[ordinal] = brandOf[last];
+            list(brandOf[ordinal], ordinal);
+        }
+        size = last;
+        return last;
+    }
+
+    /**
+     * @param ordinal a row
+     * @return its brand code, NO_BRAND if none
+     */
+    public synchronized int brandOf(int ordinal) {
+        return brandOf[ordinal];
+    }
+
+    /**
+     * Gets the rows of a brand
+     *
+     * @param brand the brand code
+     * @return their ordinals in ascending order
+     */
+    public synchronized int[] ordinalsOf(int brand) {
+        if (brand < 0 || brand >= lengths.length || ordinals[brand] == null) {
+            return new int[0];
+        }
+        if (dirty[brand]) {
+            int[] list = ordinals[brand];
+            Arrays.sort(list, 0, lengths[brand]);
+            int kept = 0;
+            for (int i = 0; i < lengths[brand]; i++) {
+                int ordinal = list[i];
+                if (ordinal < size && brandOf[ordinal] == brand && (kept == 0 || list[kept - 1] != ordinal)) {
+                    list[kept++] = ordinal;
+                }
+            }
+            lengths[brand] = kept;
+            dirty[brand] = false;
+        }
+        return Arrays.copyOf(ordinals[brand], lengths[brand]);
+    }
+
+    /**
+     * Gets the brand codes by ordinal, for a facet pass. The array is
+     * shared and at least size() long.
+     *
+     * @return the brand codes
+     */
+    synchronized int[] codes() {
+        return brandOf;
+    }
+
+    /**
+     * @return number of rows
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return estimated bytes of the index, see MemoryReport
+     */
+    public synchronized long memoryBytes() {
+        long bytes = MemoryReport.arrayBytes(brandOf.length, 4)
+                + MemoryReport.arrayBytes(ordinals.length, MemoryReport.REFERENCE_BYTES)
+                + MemoryReport.arrayBytes(lengths.length, 4) + MemoryReport.arrayBytes(dirty.length, 1);
+        for (int brand = 0; brand < lengths.length; brand++) {
+            if (ordinals[brand] != null) {
+                bytes += MemoryReport.arrayBytes(ordinals[brand].length, 4);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds an ordinal to the list of a brand
+     *
+     * @param brand the brand code, NO_BRAND is not listed
+     * @param ordinal the ordinal
+     */
+    private void list(int brand, int ordinal) {
+        if (brand < 0) {
+            return;
+        }
+        if (brand >= lengths.length) {
+            int capacity = Math.max(brand + 1, lengths.length * 2);
+            ordinals = Arrays.copyOf(ordinals, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            dirty = Arrays.copyOf(dirty, capacity);
+        }
+        int[] list = ordinals[brand];
+        if (list == null) {
+            list = new int[INITIAL_ORDINALS];
+            ordinals[brand] = list;
+        } else if (lengths[brand] == list.length) {
+            list = Arrays.copyOf(list, list.length * 2);
+            ordinals[brand] = list;
+        }
+        if (lengths[brand] > 0 && list[lengths[brand] - 1] >= ordinal) {
+            dirty[brand] = true;
+        }
+        list[lengths[brand]++] = ordinal;
+    }
+
+    /**
+     * Marks the list of a brand to be cleaned up
+     *
+     * @param brand the brand code
+     */
+    private void markDirty(int brand) {
+        if (brand >= 0 && brand < dirty.length) {
+            dirty[brand] = true;
+        }
+    }
+}
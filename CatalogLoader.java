@@ -0,0 +1,496 @@
+/**
+ * Filename:   CatalogLoader.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads food item data files on every core.
+ *
+ * The file is cut into chunks that end on line breaks, read into direct
+ * buffers that are reused once their chunk is parsed. Every chunk is
+ * parsed by its own CatalogParser on a worker thread, into
+ * its own item list and NameStore, so the workers share nothing but the
+ * NutrientSchema. The chunks are then merged in file order: the names of
+ * each chunk are appended to the caller's store in one copy and its items
+ * handed to the caller, exactly as if the file had been parsed front to
+ * back on one thread. Merging a chunk overlaps with parsing the later ones.
+ *
+ * The file is read rather than memory-mapped: a mapping is only released
+ * once its buffer is garbage collected, and until then Windows does not
+ * let the file be replaced, which saving over the loaded file and
+ * compacting the log into it do by renaming.
+ *
+ * Gzip-compressed files are recognized by their first bytes. They are
+ * inflated on the loading thread into chunks that are parsed on the
+ * workers the same way. Either way only a few chunks are in memory at a
+ * time.
+ *
+ * Nutrients first seen in different chunks may be registered in the
+ * NutrientSchema in either order.
+ */
+public class CatalogLoader {
+
+    // Smallest chunk worth handing to a worker, 1 MB
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+    // Largest chunk, 8 MB; MAX_IN_FLIGHT chunks are in memory at once
+    private static final long MAX_CHUNK_SIZE = 1 << 23;
+
+    // Chunks per worker, so a slow chunk does not leave the others idle
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    // Room for the end of the line a chunk is cut in, in a read buffer
+    private static final int LINE_ROOM = 1 << 12;
+
+    // Size of the chunks a compressed file is inflated into, 8 MB
+    private static final int INFLATED_CHUNK_SIZE = 1 << 23;
+
+    // First two bytes of a gzip file
+    private static final int GZIP_MAGIC = 0x1F8B;
+
+    // Number of worker threads
+    private static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // Chunks read ahead of the one being merged, enough to keep every
+    // worker busy
+    private static final int MAX_IN_FLIGHT = 2 * WORKER_COUNT + 1;
+
+    // Threads that parse the chunks
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(WORKER_COUNT,
+            task -> {
+                Thread thread = new Thread(task, "catalog-loader");
+                // never keep the program alive just to finish a load
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Follows the progress of a load
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called on the loading thread every time a chunk has been handed
+         * to the row handler
+         *
+         * @param bytesLoaded bytes of the file handled so far
+         * @param totalBytes size of the file
+         */
+        void loaded(long bytesLoaded, long totalBytes);
+    }
+
+    /**
+     * Not instantiable, see load()
+     */
+    private CatalogLoader() {
+    }
+
+    /**
+     * Parsed content of one chunk
+     */
+    private static class Chunk {
+
+        // Valid rows of the chunk in file order, named in names
+        final List<FoodItem> items = new ArrayList<FoodItem>();
+
+        // Names of the items
+        final NameStore names = new NameStore();
+
+        // Bytes of the file read up to the end of the chunk
+        long bytesLoaded;
+    }
+
+    /**
+     * Cuts a file into chunks that end on line breaks
+     */
+    private interface ChunkSource {
+
+        /**
+         * @return the next chunk, or null at the end of the file
+         * @throws IOException if the file cannot be read
+         */
+        ByteBuffer next() throws IOException;
+
+        /**
+         * @return bytes of the file read up to the end of the last chunk
+         */
+        long bytesRead();
+
+        /**
+         * Hands back a chunk once it is parsed, so its memory can be reused
+         *
+         * @param chunk a chunk returned by next()
+         */
+        void release(ByteBuffer chunk);
+    }
+
+    /**
+     * Loads a food item data file
+     *
+     * @param filePath path of the file
+     * @param names store the names of the items are kept in
+     * @param handler receives the valid rows in file order, on the calling
+     *                thread
+     * @throws java.io.FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static void load(String filePath, NameStore names, CatalogParser.RowHandler handler)
+            throws IOException {
+        load(filePath, names, handler, QueryContext.unbounded(), null);
+    }
+
+    /**
+     * Loads a food item data file, reporting progress and stopping between
+     * two chunks once the context is cancelled or past its deadline. Rows
+     * handed over before that are not taken back.
+     *
+     * @param filePath path of the file
+     * @param names store the names of the items are kept in
+     * @param handler receives the valid rows in file order, on the calling
+     *                thread
+     * @param context cancellation state of the load
+     * @param progress told about every chunk handled, may be null
+     * @return true if the whole file was loaded, false if it was stopped
+     * @throws java.io.FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean load(String filePath, NameStore names, CatalogParser.RowHandler handler,
+            QueryContext context, ProgressListener progress) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r");
+             FileChannel channel = file.getChannel()) {
+
+            ChunkSource source = isGzip(channel) ? new InflatedChunks(channel) : new ReadChunks(channel);
+            Deque<Future<Chunk>> chunks = new ArrayDeque<Future<Chunk>>();
+            try {
+                while (true) {
+                    // read ahead while the oldest chunk is being parsed
+                    while (chunks.size() < MAX_IN_FLIGHT) {
+                        ByteBuffer region = source.next();
+                        if (region == null) {
+                            break;
+                        }
+                        long bytesLoaded = source.bytesRead();
+                        chunks.add(WORKERS.submit(() -> {
+                            Chunk chunk = new Chunk();
+                            new CatalogParser(chunk.names).parse(region, chunk.items::add);
+                            source.release(region);
+                            chunk.bytesLoaded = bytesLoaded;
+                            return chunk;
+                        }));
+                    }
+                    if (chunks.isEmpty()) {
+                        return true;
+                    }
+                    if (context.isStopped()) {
+                        return false;
+                    }
+
+                    // the chunk is collected once it is merged
+                    Chunk chunk = chunks.poll().get();
+                    int base = names.append(chunk.names);
+                    for (FoodItem item : chunk.items) {
+                        item.rebaseName(names, base);
+                        handler.row(item);
+                    }
+                    if (progress != null) {
+                        progress.loaded(chunk.bytesLoaded, channel.size());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + filePath, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to parse " + filePath, e.getCause());
+            } finally {
+                for (Future<Chunk> chunk : chunks) {
+                    chunk.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a file is gzip-compressed
+     *
+     * @param channel the file
+     * @return true if it starts with the gzip magic bytes
+     * @throws IOException if the file cannot be read
+     */
+    static boolean isGzip(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+            // read both bytes
+        }
+        return !magic.hasRemaining() && (magic.getShort(0) & 0xFFFF) == GZIP_MAGIC;
+    }
+
+    /**
+     * Chunks of an uncompressed file, read into direct buffers. A buffer is
+     * read into again once the worker is done parsing it, so a load needs
+     * about MAX_IN_FLIGHT of them whatever the size of the file.
+     */
+    private static class ReadChunks implements ChunkSource {
+
+        // The file
+        private final FileChannel channel;
+
+        // Start and end offsets of every chunk
+        private final List<long[]> bounds;
+
+        // Capacity of the buffers, unless a chunk holds a longer line
+        private final int capacity;
+
+        // Buffers whose chunk has been parsed, ready to be read into
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        // Number of chunks returned so far
+        private int next;
+
+        /**
+         * @param channel the file
+         * @throws IOException if the file cannot be read
+         */
+        ReadChunks(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.bounds = split(channel);
+            this.capacity = (int) chunkSize(channel.size()) + LINE_ROOM;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (next == bounds.size()) {
+                return null;
+            }
+            long[] chunk = bounds.get(next++);
+            int length = (int) (chunk[1] - chunk[0]);
+            ByteBuffer buffer = free.poll();
+            if (buffer == null || buffer.capacity() < length) {
+                buffer = ByteBuffer.allocateDirect(Math.max(capacity, length));
+            }
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, chunk[0] + buffer.position()) < 0) {
+                    throw new IOException("File got shorter while it was loaded");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public long bytesRead() {
+            return next == 0 ? 0 : bounds.get(next - 1)[1];
+        }
+
+        @Override
+        public void release(ByteBuffer chunk) {
+            free.add(chunk);
+        }
+    }
+
+    /**
+     * Chunks of a gzip-compressed file, inflated into memory. Progress is
+     * counted in compressed bytes.
+     */
+    private static class InflatedChunks implements ChunkSource {
+
+        // Compressed bytes read from the file
+        private final CountingInputStream compressed;
+
+        // The inflated content
+        private final InputStream input;
+
+        // Bytes after the last line break of the previous chunk
+        private byte[] carry = new byte[0];
+
+        // True once the whole file is inflated
+        private boolean finished;
+
+        /**
+         * @param channel the file
+         * @throws IOException if the file is not valid gzip
+         */
+        InflatedChunks(FileChannel channel) throws IOException {
+            compressed = new CountingInputStream(Channels.newInputStream(channel));
+            input = new GZIPInputStream(compressed, 1 << 16);
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            byte[] block = new byte[Math.max(INFLATED_CHUNK_SIZE, 2 * carry.length)];
+            System.arraycopy(carry, 0, block, 0, carry.length);
+            int length = carry.length;
+            carry = new byte[0];
+            while (!finished) {
+                if (length == block.length) {
+                    int end = length;
+                    while (end > 0 && block[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end > 0) {
+                        carry = Arrays.copyOfRange(block, end, length);
+                        return ByteBuffer.wrap(block, 0, end);
+                    }
+                    // a line longer than the block
+                    block = Arrays.copyOf(block, 2 * block.length);
+                }
+                int read = input.read(block, length, block.length - length);
+                if (read < 0) {
+                    finished = true;
+                } else {
+                    length += read;
+                }
+            }
+            return length == 0 ? null : ByteBuffer.wrap(block, 0, length);
+        }
+
+        @Override
+        public long bytesRead() {
+            return compressed.count;
+        }
+
+        @Override
+        public void release(ByteBuffer chunk) {
+            // every chunk is inflated into an array of its own
+        }
+    }
+
+    /**
+     * Counts the bytes read through it
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        // Bytes read so far
+        long count;
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Gets the length the chunks of a file are cut at, before moving on to
+     * the end of the line
+     *
+     * @param size size of the file
+     * @return the length
+     */
+    private static long chunkSize(long size) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size / (WORKER_COUNT * CHUNKS_PER_WORKER) + 1));
+    }
+
+    /**
+     * Cuts a file into chunks that start at the beginning of a line
+     *
+     * @param channel the file
+     * @return start and end offsets of every chunk, in file order
+     * @throws IOException if the file cannot be read
+     */
+    private static List<long[]> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long chunkSize = chunkSize(size);
+        List<long[]> bounds = new ArrayList<long[]>();
+        long start = 0;
+        while (start < size) {
+            long end = start + chunkSize >= size ? size : nextLine(channel, start + chunkSize);
+            bounds.add(new long[] {start, end});
+            start = end;
+        }
+        return bounds;
+    }
+
+    /**
+     * Finds the beginning of the first line starting after a position
+     *
+     * @param channel the file
+     * @param position the position
+     * @return offset of the byte after the next '\n', or the file size
+     * @throws IOException if the file cannot be read
+     */
+    private static long nextLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(4096);
+        while (true) {
+            block.clear();
+            int read = channel.read(block, position);
+            if (read < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (block.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Loads a file with one parser and then on all the workers, and prints
+     * the time each takes.
+     *
+     * @param args path of the food item data file, foodItems.txt by default
+     */
+    public static void main(String[] args) throws IOException {
+        String filePath = args.length > 0 ? args[0] : "foodItems.txt";
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            CatalogParser parser = new CatalogParser(new NameStore());
+            try (InputStream input = new FileInputStream(filePath)) {
+                parser.parse(input, item -> { });
+            }
+            long serialNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long[] rows = new long[1];
+            load(filePath, new NameStore(), item -> rows[0]++);
+            long parallelNanos = System.nanoTime() - start;
+
+            System.out.printf("1 thread:   %d rows in %.1f ms%n", parser.getValidRows(), serialNanos / 1e6);
+            System.out.printf("%d threads: %d rows in %.1f ms (%.1fx)%n", WORKER_COUNT, rows[0],
+                    parallelNanos / 1e6, (double) serialNanos / parallelNanos);
+        }
+    }
+}
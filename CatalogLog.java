@@ -0,0 +1,308 @@
+/**
+ * Filename:   CatalogLog.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the edits made to a loaded catalog, see
+ * FoodData.openLog().
+ *
+ * The file starts with a magic number and a format version, followed by
+ * one record per edit: the payload length, a CRC32 of the type and
+ * payload, the record type and the payload. A record is only complete once
+ * its checksum matches; a crash in the middle of a write leaves a torn
+ * record at the end of the file, which is cut off the next time the log is
+ * opened.
+ *
+ * Appending is split in two steps. append() queues the record in memory in
+ * the order of the calls and is cheap enough to be called under a lock.
+ * sync() makes it durable: the first thread to call it writes out
+ * everything queued so far and forces it to the disk, while threads
+ * arriving during that write wait and are covered by the next one. Edits
+ * made at the same time therefore share one fsync (group commit).
+ */
+public class CatalogLog implements AutoCloseable {
+
+    // "FOODLOG" in ASCII followed by a zero byte
+    public static final long MAGIC = 0x464F4F444C4F4700L;
+
+    // Version of the format
+    public static final int VERSION = 1;
+
+    // Record types. The payload of an ADD or an UPDATE is the item as a
+    // line of a food item data file, the one of a REMOVE is the item id.
+    public static final byte ADD = 1;
+    public static final byte UPDATE = 2;
+    public static final byte REMOVE = 3;
+
+    // Bytes of the file header: magic and version
+    private static final int HEADER_BYTES = 12;
+
+    // Bytes of a record header: length, checksum and type
+    private static final int RECORD_HEADER_BYTES = 9;
+
+    /**
+     * Receives the records of a log as it is opened
+     */
+    public interface RecordHandler {
+
+        /**
+         * Called for every complete record, in the order they were appended
+         *
+         * @param type the record type
+         * @param payload the payload
+         */
+        void record(byte type, byte[] payload);
+    }
+
+    // The file
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // Records appended but not yet written
+    private ByteArrayOutputStream pending;
+
+    // Number of records appended, and how many of them are on the disk
+    private long appended;
+    private long durable;
+
+    // True while a thread writes and forces a batch
+    private boolean syncing;
+
+    // Size of the file once everything appended is written
+    private long size;
+
+    // Error of the last failed write, reported to every later sync()
+    private IOException failure;
+
+    /**
+     * Opens the log, creating it if needed, and hands every complete record
+     * to the handler. A torn record at the end is cut off.
+     *
+     * @param filePath path of the log file
+     * @param handler receives the records, on the calling thread
+     * @throws IOException if the file cannot be read or is not a log of this
+     *                     version
+     */
+    public CatalogLog(String filePath, RecordHandler handler) throws IOException {
+        file = new RandomAccessFile(filePath, "rw");
+        channel = file.getChannel();
+        pending = new ByteArrayOutputStream();
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putLong(MAGIC).putInt(VERSION).flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+            size = replay(filePath, handler);
+            channel.truncate(size);
+            channel.position(size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the records of the file
+     *
+     * @param filePath path of the file, for messages
+     * @param handler receives the records
+     * @return offset of the end of the last complete record
+     * @throws IOException if the file cannot be read or has a bad header
+     */
+    private long replay(String filePath, RecordHandler handler) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_BYTES) {
+            throw new IOException(filePath + " is not a catalog log");
+        }
+        // read rather than mapped: Windows cannot truncate a mapped file,
+        // which reset() does
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(header, 0);
+        header.flip();
+        if (header.getLong() != MAGIC) {
+            throw new IOException(filePath + " is not a catalog log");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported log version " + version + " in " + filePath);
+        }
+
+        long end = HEADER_BYTES;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        while (fileSize - end >= RECORD_HEADER_BYTES) {
+            recordHeader.clear();
+            readFully(recordHeader, end);
+            recordHeader.flip();
+            int length = recordHeader.getInt();
+            int checksum = recordHeader.getInt();
+            byte type = recordHeader.get();
+            if (length < 0 || length > fileSize - end - RECORD_HEADER_BYTES) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, end + RECORD_HEADER_BYTES);
+            crc.reset();
+            crc.update(type);
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            handler.record(type, payload.array());
+            end += RECORD_HEADER_BYTES + length;
+        }
+        return end;
+    }
+
+    /**
+     * Fills a buffer from the file
+     *
+     * @param buffer the buffer
+     * @param position offset to read from
+     * @throws IOException if the file cannot be read
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+        }
+    }
+
+    /**
+     * Queues a record. It is written by the next sync().
+     *
+     * @param type the record type
+     * @param payload the payload
+     * @return sequence number of the record, to pass to sync()
+     */
+    public synchronized long append(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload, 0, payload.length);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        header.putInt(payload.length).putInt((int) crc.getValue()).put(type);
+        pending.write(header.array(), 0, RECORD_HEADER_BYTES);
+        pending.write(payload, 0, payload.length);
+        size += RECORD_HEADER_BYTES + payload.length;
+        return ++appended;
+    }
+
+    /**
+     * Waits until a record and every record before it are on the disk,
+     * writing them out unless another thread is already doing so.
+     *
+     * @param sequence sequence number returned by append()
+     * @throws IOException if the records could not be written
+     */
+    public void sync(long sequence) throws IOException {
+        byte[] batch;
+        long batchEnd;
+        synchronized (this) {
+            while (true) {
+                if (failure != null) {
+                    throw new IOException("Catalog log write failed", failure);
+                }
+                if (durable >= sequence) {
+                    return;
+                }
+                if (!syncing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while syncing the catalog log");
+                }
+            }
+            // write everything queued so far, later records wait for the
+            // next batch
+            syncing = true;
+            batch = pending.toByteArray();
+            pending.reset();
+            batchEnd = appended;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                syncing = false;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            durable = batchEnd;
+            syncing = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes out every record appended so far and empties the log, once its
+     * records are safely part of a new base file. No record may be appended
+     * concurrently.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void reset() throws IOException {
+        long last;
+        synchronized (this) {
+            last = appended;
+        }
+        sync(last);
+        synchronized (this) {
+            channel.truncate(HEADER_BYTES);
+            channel.position(HEADER_BYTES);
+            channel.force(true);
+            size = HEADER_BYTES;
+        }
+    }
+
+    /**
+     * @return size of the log once every appended record is written
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Writes out the records appended so far and closes the file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        long last;
+        synchronized (this) {
+            last = appended;
+        }
+        try {
+            sync(last);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,559 @@
+/**
+ * Filename:   CatalogParser.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single pass parser of food item data files working on bytes.
+ *
+ * Lines are read into one reusable buffer and split into fields in place.
+ * Values are parsed once, by a decimal fast path that falls back on
+ * Double.parseDouble for the rare forms it does not handle. Nutrient labels
+ * are matched as bytes against the labels seen at the same position on the
+ * previous rows, so the NutrientSchema is only consulted when a label
+ * changes. Packed ids (see FoodId) are decoded straight into longs and,
+ * given a NameStore, names straight into the store, so a valid row only
+ * allocates its FoodItem and nutrient slots.
+ *
+ * A line is accepted or rejected exactly like FoodData.parseLine() does,
+ * except that labels of rejected lines are not registered. The file is
+ * read as UTF-8.
+ */
+public class CatalogParser {
+
+    /**
+     * Receives every valid row of a file, in file order
+     */
+    public interface RowHandler {
+
+        /**
+         * Called for a valid row
+         *
+         * @param item the food item of the row
+         */
+        void row(FoodItem item);
+    }
+
+    // Index of the field holding the id
+    private static final int ID_FIELD = 0;
+
+    // Index of the field holding the name
+    private static final int NAME_FIELD = 1;
+
+    // Index of the field holding the label of the first nutrient
+    private static final int FIRST_LABEL_FIELD = 2;
+
+    // Size of the buffer, grown for lines that do not fit
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Largest mantissa that converts to a double exactly, 2^53
+    private static final long EXACT_MANTISSA = 1L << 53;
+
+    // Powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    // Value of every lower case hex digit byte, -1 for any other byte
+    private static final byte[] HEX_DIGITS = new byte[256];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        Arrays.fill(HEX_DIGITS, (byte) -1);
+        for (int digit = 0; digit < 16; digit++) {
+            HEX_DIGITS["0123456789abcdef".charAt(digit)] = (byte) digit;
+        }
+    }
+
+    // Store the names are kept in, null to create name Strings
+    private final NameStore names;
+
+    // Bytes read and not parsed yet
+    private byte[] buffer;
+
+    // Position of the comma or line end after every field of a line
+    private int[] fieldEnds;
+
+    // Label bytes and NutrientSchema ordinal seen at every pair position
+    private byte[][] labels;
+    private int[] labelOrdinals;
+
+    // Values of the row being parsed
+    private double[] rowValues;
+
+    // Id decoded by parseId()
+    private long idHigh;
+    private long idLow;
+
+    // Number of rows accepted and rejected so far
+    private long validRows;
+    private long invalidRows;
+
+    /**
+     * Public constructor
+     *
+     * @param names store to keep the names in, null to give every item its
+     *              own name String
+     */
+    public CatalogParser(NameStore names) {
+        this.names = names;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.fieldEnds = new int[16];
+        this.labels = new byte[8][];
+        this.labelOrdinals = new int[8];
+        this.rowValues = new double[8];
+    }
+
+    /**
+     * Parses every line of a stream
+     *
+     * @param input the stream, not closed
+     * @param handler receives the valid rows
+     * @throws IOException if the stream cannot be read
+     */
+    public void parse(InputStream input, RowHandler handler) throws IOException {
+        int end = 0;
+        int scanned = 0;
+        int read;
+        while ((read = input.read(buffer, end, buffer.length - end)) >= 0) {
+            end += read;
+            int lineStart = 0;
+            for (int i = scanned; i < end; i++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    parseLine(lineStart, i, handler);
+                    lineStart = i + 1;
+                }
+            }
+            // keep the incomplete last line for the next read
+            if (lineStart == 0 && end == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } else {
+                System.arraycopy(buffer, lineStart, buffer, 0, end - lineStart);
+            }
+            end -= lineStart;
+            scanned = end;
+        }
+        parseLine(0, end, handler);
+    }
+
+    /**
+     * Parses every line between the position and the limit of a buffer,
+     * such as a chunk of a file read by CatalogLoader
+     *
+     * @param bytes the buffer, its position is not changed
+     * @param handler receives the valid rows
+     */
+    public void parse(ByteBuffer bytes, RowHandler handler) {
+        try {
+            parse(new ByteBufferInput(bytes.duplicate()), handler);
+        } catch (IOException e) {
+            // reading a buffer never fails
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return number of rows accepted so far
+     */
+    public long getValidRows() {
+        return validRows;
+    }
+
+    /**
+     * @return number of non-empty rows rejected so far
+     */
+    public long getInvalidRows() {
+        return invalidRows;
+    }
+
+    /**
+     * Parses one line of the buffer
+     *
+     * @param from position of the first byte of the line
+     * @param to position of the line end
+     * @param handler receives the row if it is valid
+     */
+    private void parseLine(int from, int to, RowHandler handler) {
+        if (from == to) {
+            // blank lines, and the second half of \r\n
+            return;
+        }
+
+        // split on commas; like String.split() trailing empty fields are
+        // dropped, except one that completes the last pair, the empty value
+        // of an absent nutrient
+        int fieldCount = 0;
+        for (int i = from; i <= to; i++) {
+            if (i == to || buffer[i] == ',') {
+                if (fieldCount == fieldEnds.length) {
+                    fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+                }
+                fieldEnds[fieldCount++] = i;
+            }
+        }
+        int splitCount = fieldCount;
+        while (fieldCount > 0 && fieldEnds[fieldCount - 1] == fieldStart(from, fieldCount - 1)) {
+            fieldCount--;
+        }
+        if ((fieldCount - FIRST_LABEL_FIELD) % 2 != 0 && fieldCount < splitCount) {
+            fieldCount++;
+        }
+        if (fieldCount <= FIRST_LABEL_FIELD || (fieldCount - FIRST_LABEL_FIELD) % 2 != 0) {
+            invalidRows++;
+            return;
+        }
+
+        // every value must be a non-negative number, or empty for an absent
+        // nutrient (kept as NaN), before anything is created for the row
+        int pairs = (fieldCount - FIRST_LABEL_FIELD) / 2;
+        double[] values = valuesFor(pairs);
+        for (int pair = 0; pair < pairs; pair++) {
+            int field = FIRST_LABEL_FIELD + 2 * pair + 1;
+            int valueFrom = fieldStart(from, field);
+            if (trimStart(valueFrom, fieldEnds[field]) == fieldEnds[field]) {
+                values[pair] = Double.NaN;
+                continue;
+            }
+            double value = parseValue(valueFrom, fieldEnds[field]);
+            if (!(value >= 0)) {
+                invalidRows++;
+                return;
+            }
+            values[pair] = value;
+        }
+
+        FoodItem item = newItem(from);
+        for (int pair = 0; pair < pairs; pair++) {
+            if (Double.isNaN(values[pair])) {
+                continue;
+            }
+            int field = FIRST_LABEL_FIELD + 2 * pair;
+            item.addNutrient(labelOrdinal(pair, fieldStart(from, field), fieldEnds[field]),
+                    values[pair]);
+        }
+        validRows++;
+        handler.row(item);
+    }
+
+    /**
+     * @return room for the values of a row with the given number of pairs
+     */
+    private double[] valuesFor(int pairs) {
+        if (rowValues.length < pairs) {
+            rowValues = new double[pairs];
+        }
+        return rowValues;
+    }
+
+    /**
+     * Gets the position of the first byte of a field of the current line
+     *
+     * @param lineStart position of the first byte of the line
+     * @param field index of the field
+     * @return the position
+     */
+    private int fieldStart(int lineStart, int field) {
+        return field == 0 ? lineStart : fieldEnds[field - 1] + 1;
+    }
+
+    /**
+     * Creates the food item of the current line from its id and name
+     *
+     * @param lineStart position of the first byte of the line
+     * @return the item, without nutrients
+     */
+    private FoodItem newItem(int lineStart) {
+        int idFrom = trimStart(lineStart, fieldEnds[ID_FIELD]);
+        int idTo = trimEnd(idFrom, fieldEnds[ID_FIELD]);
+        int nameFrom = trimStart(fieldStart(lineStart, NAME_FIELD), fieldEnds[NAME_FIELD]);
+        int nameTo = trimEnd(nameFrom, fieldEnds[NAME_FIELD]);
+
+        String id = null;
+        if (!parseId(idFrom, idTo)) {
+            id = new String(buffer, idFrom, idTo - idFrom, StandardCharsets.UTF_8);
+            idHigh = 0;
+            idLow = 0;
+        }
+
+        if (names == null) {
+            return new FoodItem(id, idHigh, idLow,
+                    new String(buffer, nameFrom, nameTo - nameFrom, StandardCharsets.UTF_8));
+        }
+        FoodItem item = new FoodItem(id, idHigh, idLow, null);
+        item.storeName(names, names.add(buffer, nameFrom, nameTo));
+        return item;
+    }
+
+    /**
+     * Gets the NutrientSchema ordinal of a label, registering it if needed
+     *
+     * @param pair position of the label among the pairs of the line
+     * @param from position of the first byte of the label
+     * @param to position after the last byte of the label
+     * @return the ordinal
+     */
+    private int labelOrdinal(int pair, int from, int to) {
+        if (pair >= labels.length) {
+            labels = Arrays.copyOf(labels, pair * 2);
+            labelOrdinals = Arrays.copyOf(labelOrdinals, pair * 2);
+        }
+        byte[] label = labels[pair];
+        if (label != null && label.length == to - from) {
+            int i = 0;
+            while (i < label.length && label[i] == buffer[from + i]) {
+                i++;
+            }
+            if (i == label.length) {
+                return labelOrdinals[pair];
+            }
+        }
+        // a label not seen at this position before
+        String name = new String(buffer, from, to - from, StandardCharsets.UTF_8);
+        labels[pair] = Arrays.copyOfRange(buffer, from, to);
+        labelOrdinals[pair] = NutrientSchema.register(name.trim().toLowerCase());
+        return labelOrdinals[pair];
+    }
+
+    /**
+     * Parses a value. Plain decimals are converted directly when the result
+     * is exact, anything else goes through Double.parseDouble.
+     *
+     * @param from position of the first byte of the field
+     * @param to position after the last byte of the field
+     * @return the value, NaN if it is not a number
+     */
+    private double parseValue(int from, int to) {
+        from = trimStart(from, to);
+        to = trimEnd(from, to);
+        int i = from;
+        if (i < to && buffer[i] == '+') {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < to; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+                if (mantissa >= EXACT_MANTISSA) {
+                    break;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == to && digits > 0 && fractionDigits < POWERS_OF_TEN.length) {
+            // both operands are exact, so the division is correctly rounded
+            return fractionDigits <= 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+        }
+        try {
+            return Double.parseDouble(new String(buffer, from, to - from, StandardCharsets.UTF_8));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Decodes an id FoodId can pack into idHigh and idLow. The digits are
+     * looked up in a table rather than tested, random hex digits would make
+     * every test a branch the CPU mispredicts half the time.
+     *
+     * @param from position of the first byte of the id
+     * @param to position after the last byte of the id
+     * @return false if the id cannot be packed
+     */
+    private boolean parseId(int from, int to) {
+        if (to - from != FoodId.HEX_LENGTH) {
+            return false;
+        }
+        // any byte that is not a digit sets the sign of invalid
+        int invalid = 0;
+        long high = 0;
+        int lowFrom = to - 16;
+        for (int i = from; i < lowFrom; i++) {
+            int digit = HEX_DIGITS[buffer[i] & 0xFF];
+            invalid |= digit;
+            high = (high << 4) | (digit & 0xF);
+        }
+        long low = 0;
+        for (int i = lowFrom; i < to; i++) {
+            int digit = HEX_DIGITS[buffer[i] & 0xFF];
+            invalid |= digit;
+            low = (low << 4) | (digit & 0xF);
+        }
+        idHigh = high;
+        idLow = low;
+        return invalid >= 0;
+    }
+
+    /**
+     * @return position of the first byte that String.trim() would keep
+     */
+    private int trimStart(int from, int to) {
+        while (from < to && (buffer[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * @return position after the last byte that String.trim() would keep
+     */
+    private int trimEnd(int from, int to) {
+        while (to > from && (buffer[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * Stream reading the remaining bytes of a buffer
+     */
+    private static class ByteBufferInput extends InputStream {
+
+        // the buffer, read from its position to its limit
+        private final ByteBuffer bytes;
+
+        /**
+         * Constructor
+         *
+         * @param bytes the buffer, its position is moved as it is read
+         */
+        ByteBufferInput(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!bytes.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, bytes.remaining());
+            bytes.get(b, off, count);
+            return count;
+        }
+    }
+
+    /**
+     * Checks that items missing core nutrients survive being written and
+     * read back, then compares parsing a file line by line with
+     * FoodData.parseLine() and with this parser, and prints the time each
+     * takes.
+     *
+     * @param args path of the food item data file, foodItems.txt by default
+     */
+    public static void main(String[] args) throws IOException {
+        checkRoundTrip();
+        String filePath = args.length > 0 ? args[0] : "foodItems.txt";
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            long lineRows = 0;
+            try (BufferedReader input = new BufferedReader(new FileReader(filePath))) {
+                String line;
+                while ((line = input.readLine()) != null) {
+                    if (FoodData.parseLine(line) != null) {
+                        lineRows++;
+                    }
+                }
+            }
+            long lineNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CatalogParser parser = new CatalogParser(new NameStore());
+            try (InputStream input = new FileInputStream(filePath)) {
+                parser.parse(input, item -> { });
+            }
+            long parserNanos = System.nanoTime() - start;
+
+            System.out.printf("readLine + parseLine: %d rows in %.1f ms%n", lineRows, lineNanos / 1e6);
+            System.out.printf("CatalogParser:        %d rows in %.1f ms (%.1fx)%n",
+                    parser.getValidRows(), parserNanos / 1e6, (double) lineNanos / parserNanos);
+        }
+    }
+
+    /**
+     * Writes items that lack some core nutrients with a CatalogWriter and
+     * reads them back with FoodData.parseLine() and with this parser,
+     * printing any item that does not come back the same.
+     */
+    private static void checkRoundTrip() throws IOException {
+        List<FoodItem> items = new ArrayList<FoodItem>();
+        // absent nutrients in the middle of the line
+        FoodItem item = new FoodItem("roundtrip1", "No fat or fiber");
+        item.addNutrient(NutrientSchema.CALORIES, 120);
+        item.addNutrient(NutrientSchema.CARBOHYDRATE, 0);
+        item.addNutrient(NutrientSchema.PROTEIN, 2.5);
+        items.add(item);
+        // absent last nutrient, the line ends with an empty value
+        item = new FoodItem("roundtrip2", "No protein");
+        item.addNutrient(NutrientSchema.CALORIES, 0);
+        items.add(item);
+        // absent core nutrient followed by another nutrient
+        item = new FoodItem("roundtrip3", "Extra");
+        item.addNutrient(NutrientSchema.FAT, 1);
+        item.addNutrient("sodium", 30);
+        items.add(item);
+
+        Path file = Files.createTempFile("roundtrip", ".txt");
+        try {
+            try (CatalogWriter writer = new CatalogWriter(file.toString(), false)) {
+                for (FoodItem written : items) {
+                    writer.write(written);
+                }
+                writer.commit();
+            }
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            List<FoodItem> parsed = new ArrayList<FoodItem>();
+            try (InputStream input = Files.newInputStream(file)) {
+                new CatalogParser(null).parse(input, parsed::add);
+            }
+
+            int wrong = 0;
+            for (int i = 0; i < items.size(); i++) {
+                String expected = FoodData.formatLine(items.get(i));
+                String line = i < lines.size() ? lines.get(i) : null;
+                FoodItem fromLine = line != null ? FoodData.parseLine(line) : null;
+                FoodItem fromParser = i < parsed.size() ? parsed.get(i) : null;
+                if (!expected.equals(line)
+                        || fromLine == null || !expected.equals(FoodData.formatLine(fromLine))
+                        || fromParser == null || !expected.equals(FoodData.formatLine(fromParser))) {
+                    System.out.println("round trip changed: " + expected);
+                    wrong++;
+                }
+            }
+            System.out.println("round trip: " + items.size() + " items, " + wrong + " changed");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ * Filename:   CatalogSnapshot.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Binary snapshot file of a loaded catalog, see FoodData.saveSnapshot().
+ *
+ * The file starts with a header (magic number, format version, number of
+ * sections and offset of the section table) followed by the sections and
+ * the section table, which lists the tag, offset and length of every
+ * section. Every structure writes its own section as fixed-width
+ * big-endian primitives and arrays, the exact content of its in-memory
+ * arrays, so opening a snapshot reads each section and copies the arrays
+ * out in bulk: nothing is parsed, hashed or sorted again. Sections are
+ * read rather than mapped because a mapping keeps the file open until it
+ * is garbage collected, and Windows cannot replace an open file.
+ *
+ * A snapshot is only read by the version that wrote it; the CSV format of
+ * loadFoodItems() stays the one to exchange catalogs in.
+ */
+public class CatalogSnapshot {
+
+    // "FOODSNAP" in ASCII
+    public static final long MAGIC = 0x464F4F44534E4150L;
+
+    // Version of the format, increased whenever a section changes
+    public static final int VERSION = 1;
+
+    // Section tags
+    public static final int SCHEMA = 1;
+    public static final int NAMES = 2;
+    public static final int ITEMS = 3;
+    public static final int COLUMNS = 4;
+    public static final int NAME_ORDER = 5;
+    public static final int IDS = 6;
+    public static final int NUTRIENT_ORDERS = 7;
+
+    // Bytes of the header: magic, version, section count and table offset
+    private static final int HEADER_BYTES = 24;
+
+    /**
+     * Not instantiable, see Writer and Reader
+     */
+    private CatalogSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot file section by section through a bounded buffer
+     */
+    public static class Writer implements AutoCloseable {
+
+        // Size of the write buffer, 1 MB
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        // The file
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+
+        // Bytes waiting to be written
+        private final ByteBuffer buffer;
+
+        // Offset in the file of the next byte put
+        private long position;
+
+        // Tag, offset and length of every section written so far
+        private final ByteBuffer table;
+        private int sectionCount;
+
+        // Tag and offset of the section being written, tag 0 if none
+        private int sectionTag;
+        private long sectionStart;
+
+        /**
+         * Creates the file, replacing any file of that name
+         *
+         * @param filePath path of the file
+         * @throws IOException if the file cannot be created
+         */
+        public Writer(String filePath) throws IOException {
+            file = new RandomAccessFile(filePath, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            table = ByteBuffer.allocate(20 * 64);
+            // room for the header, written last
+            buffer.put(new byte[HEADER_BYTES]);
+            position = HEADER_BYTES;
+        }
+
+        /**
+         * Starts a section, ending the previous one
+         *
+         * @param tag tag of the section
+         */
+        public void beginSection(int tag) {
+            endSection();
+            sectionTag = tag;
+            sectionStart = position;
+        }
+
+        /**
+         * Records the section being written in the section table
+         */
+        private void endSection() {
+            if (sectionTag != 0) {
+                table.putInt(sectionTag).putLong(sectionStart).putLong(position - sectionStart);
+                sectionCount++;
+                sectionTag = 0;
+            }
+        }
+
+        /**
+         * Makes room in the buffer, writing it out if needed
+         *
+         * @param bytes bytes to make room for, at most the buffer size
+         * @throws IOException if the file cannot be written
+         */
+        private void reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            position += bytes;
+        }
+
+        /**
+         * Writes out the buffered bytes
+         *
+         * @throws IOException if the file cannot be written
+         */
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Writes a byte
+         */
+        public void putByte(byte value) throws IOException {
+            reserve(1);
+            buffer.put(value);
+        }
+
+        /**
+         * Writes an int
+         */
+        public void putInt(int value) throws IOException {
+            reserve(4);
+            buffer.putInt(value);
+        }
+
+        /**
+         * Writes a long
+         */
+        public void putLong(long value) throws IOException {
+            reserve(8);
+            buffer.putLong(value);
+        }
+
+        /**
+         * Writes a double
+         */
+        public void putDouble(double value) throws IOException {
+            reserve(8);
+            buffer.putDouble(value);
+        }
+
+        /**
+         * Writes the first length bytes of an array
+         */
+        public void putBytes(byte[] values, int length) throws IOException {
+            for (int from = 0; from < length; from += BUFFER_SIZE) {
+                int count = Math.min(BUFFER_SIZE, length - from);
+                reserve(count);
+                buffer.put(values, from, count);
+            }
+        }
+
+        /**
+         * Writes the first length ints of an array
+         */
+        public void putInts(int[] values, int length) throws IOException {
+            for (int from = 0; from < length; from += BUFFER_SIZE / 4) {
+                int count = Math.min(BUFFER_SIZE / 4, length - from);
+                reserve(4 * count);
+                buffer.asIntBuffer().put(values, from, count);
+                buffer.position(buffer.position() + 4 * count);
+            }
+        }
+
+        /**
+         * Writes the first length longs of an array
+         */
+        public void putLongs(long[] values, int length) throws IOException {
+            for (int from = 0; from < length; from += BUFFER_SIZE / 8) {
+                int count = Math.min(BUFFER_SIZE / 8, length - from);
+                reserve(8 * count);
+                buffer.asLongBuffer().put(values, from, count);
+                buffer.position(buffer.position() + 8 * count);
+            }
+        }
+
+        /**
+         * Writes the first length doubles of an array
+         */
+        public void putDoubles(double[] values, int length) throws IOException {
+            for (int from = 0; from < length; from += BUFFER_SIZE / 8) {
+                int count = Math.min(BUFFER_SIZE / 8, length - from);
+                reserve(8 * count);
+                buffer.asDoubleBuffer().put(values, from, count);
+                buffer.position(buffer.position() + 8 * count);
+            }
+        }
+
+        /**
+         * Ends the last section, writes the section table and the header and
+         * forces everything to the disk
+         *
+         * @throws IOException if the file cannot be written
+         */
+        public void finish() throws IOException {
+            endSection();
+            long tableOffset = position;
+            table.flip();
+            byte[] entries = new byte[table.remaining()];
+            table.get(entries);
+            putBytes(entries, entries.length);
+            flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putLong(MAGIC).putInt(VERSION).putInt(sectionCount).putLong(tableOffset);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Opens the sections of a snapshot file
+     */
+    public static class Reader implements AutoCloseable {
+
+        // The file
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+
+        // Offset and length of every section by tag
+        private final HashMap<Integer, long[]> sections;
+
+        /**
+         * Opens a snapshot file and reads its section table
+         *
+         * @param filePath path of the file
+         * @throws FileNotFoundException if the file does not exist
+         * @throws IOException if the file cannot be read or is not a
+         *                     snapshot of this version
+         */
+        public Reader(String filePath) throws IOException {
+            file = new RandomAccessFile(filePath, "r");
+            channel = file.getChannel();
+            sections = new HashMap<Integer, long[]>();
+
+            ByteBuffer header = read(0, HEADER_BYTES);
+            if (header.getLong() != MAGIC) {
+                close();
+                throw new IOException(filePath + " is not a catalog snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                close();
+                throw new IOException("Unsupported snapshot version " + version + " in " + filePath);
+            }
+            int sectionCount = header.getInt();
+            ByteBuffer table = read(header.getLong(), 20 * sectionCount);
+            for (int i = 0; i < sectionCount; i++) {
+                sections.put(table.getInt(), new long[] {table.getLong(), table.getLong()});
+            }
+        }
+
+        /**
+         * Reads a part of the file
+         *
+         * @param offset offset of the part
+         * @param length length of the part
+         * @return the bytes read
+         * @throws IOException if the file is too short
+         */
+        private ByteBuffer read(long offset, int length) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, offset + bytes.position()) < 0) {
+                    throw new IOException("Truncated snapshot");
+                }
+            }
+            bytes.flip();
+            return bytes;
+        }
+
+        /**
+         * Reads a section into memory
+         *
+         * @param tag tag of the section
+         * @return the section, positioned at its first byte
+         * @throws IOException if the snapshot has no such section
+         */
+        public ByteBuffer section(int tag) throws IOException {
+            long[] bounds = sections.get(tag);
+            if (bounds == null) {
+                throw new IOException("Snapshot has no section " + tag);
+            }
+            return read(bounds[0], (int) bounds[1]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Copies ints out of a section, advancing its position
+     *
+     * @param section the section
+     * @param length number of ints
+     * @return the ints
+     */
+    public static int[] getInts(ByteBuffer section, int length) {
+        int[] values = new int[length];
+        section.asIntBuffer().get(values);
+        section.position(section.position() + 4 * length);
+        return values;
+    }
+
+    /**
+     * Copies longs out of a section, advancing its position
+     *
+     * @param section the section
+     * @param length number of longs
+     * @return the longs
+     */
+    public static long[] getLongs(ByteBuffer section, int length) {
+        long[] values = new long[length];
+        section.asLongBuffer().get(values);
+        section.position(section.position() + 8 * length);
+        return values;
+    }
+
+    /**
+     * Copies doubles out of a section, advancing its position
+     *
+     * @param section the section
+     * @param length number of doubles
+     * @return the doubles
+     */
+    public static double[] getDoubles(ByteBuffer section, int length) {
+        double[] values = new double[length];
+        section.asDoubleBuffer().get(values);
+        section.position(section.position() + 8 * length);
+        return values;
+    }
+
+    /**
+     * Copies bytes out of a section, advancing its position
+     *
+     * @param section the section
+     * @param length number of bytes
+     * @return the bytes
+     */
+    public static byte[] getBytes(ByteBuffer section, int length) {
+        byte[] values = new byte[length];
+        section.get(values);
+        return values;
+    }
+}
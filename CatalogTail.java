@@ -0,0 +1,401 @@
+/**
+ * Filename:   CatalogTail.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a food item data file that another program appends rows to, see
+ * FoodData.followFile().
+ *
+ * A daemon thread wakes up whenever the WatchService reports a change in
+ * the directory of the file, and at least every POLL_MILLIS since some
+ * platforms only poll for changes every few seconds. It then reads the
+ * bytes appended since the remembered offset and hands on the complete
+ * lines; a line still being written is left for the next time, once its
+ * '\n' has arrived. So the cost of following is that of the appended bytes
+ * only. A line longer than the MAX_READ bytes read at once is read whole,
+ * up to MAX_LINE; following stops with a message at a longer one.
+ *
+ * A file that gets shorter or is replaced by another one is read again
+ * from the start.
+ */
+public class CatalogTail implements AutoCloseable {
+
+    // Longest time between two looks at the file, in milliseconds
+    private static final long POLL_MILLIS = 250;
+
+    // Most bytes read at once, 8 MB, unless a single line is longer
+    private static final int MAX_READ = 8 << 20;
+
+    // Longest line followed, 1 GB
+    private static final int MAX_LINE = 1 << 30;
+
+    /**
+     * Receives the lines appended to the file
+     */
+    public interface AppendHandler {
+
+        /**
+         * Called on the following thread for every batch of complete lines
+         *
+         * @param lines the lines, each ending with '\n'
+         */
+        void appended(ByteBuffer lines);
+    }
+
+    // The followed file
+    private final Path path;
+
+    // Receives the lines
+    private final AppendHandler handler;
+
+    // Reports changes in the directory of the file
+    private final WatchService watcher;
+
+    // The file as last opened, and its identity
+    private FileChannel channel;
+    private Object fileKey;
+
+    // Offset of the first byte not yet handed on
+    private volatile long offset;
+
+    // True once close() was called
+    private volatile boolean closed;
+
+    /**
+     * Starts following a file
+     *
+     * @param filePath path of the file
+     * @param offset offset to follow the file from; if it is within a line
+     *               the rest of that line is skipped
+     * @param handler receives the appended lines
+     * @throws IOException if the file cannot be read or is gzip-compressed
+     */
+    public CatalogTail(String filePath, long offset, AppendHandler handler) throws IOException {
+        this.path = Paths.get(filePath).toAbsolutePath();
+        this.handler = handler;
+        open();
+        if (CatalogLoader.isGzip(channel)) {
+            channel.close();
+            throw new IOException(filePath + " is gzip-compressed and cannot be followed");
+        }
+        this.offset = lineStart(Math.min(offset, channel.size()));
+
+        watcher = FileSystems.getDefault().newWatchService();
+        try {
+            path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException e) {
+            watcher.close();
+            channel.close();
+            throw e;
+        }
+
+        Thread thread = new Thread(this::run, "catalog-tail");
+        // never keep the program alive just to follow a file
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Opens the file, closing the one opened before
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    private void open() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = new RandomAccessFile(path.toFile(), "r").getChannel();
+        fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Finds the first line starting at or after a position
+     *
+     * @param position the position
+     * @return the position if a line starts there, else offset of the byte
+     *         after the next '\n', or the file size
+     * @throws IOException if the file cannot be read
+     */
+    private long lineStart(long position) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        ByteBuffer block = ByteBuffer.allocate(4096);
+        // look from the byte before, a '\n' there means a line starts here
+        long from = position - 1;
+        while (true) {
+            block.clear();
+            int read = channel.read(block, from);
+            if (read < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (block.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+            from += read;
+        }
+    }
+
+    /**
+     * Reads the end of a file after its last '\n': a line whose writer may
+     * not be done with it yet
+     *
+     * @param filePath path of the file
+     * @param length bytes of the file to look at
+     * @return the bytes after the last '\n' within the length, none if the
+     *         file ends with one or is gzip-compressed
+     * @throws IOException if the file cannot be read
+     */
+    static byte[] unterminatedLine(String filePath, long length) throws IOException {
+        try (FileChannel file = new RandomAccessFile(filePath, "r").getChannel()) {
+            if (length == 0 || CatalogLoader.isGzip(file)) {
+                return new byte[0];
+            }
+            // look for the last '\n' block by block from the end
+            ByteBuffer block = ByteBuffer.allocate(4096);
+            long lineStart = 0;
+            for (long end = length; end > 0 && lineStart == 0; ) {
+                long from = Math.max(0, end - block.capacity());
+                block.clear().limit((int) (end - from));
+                while (block.hasRemaining() && file.read(block, from + block.position()) > 0) {
+                    // read up to the end
+                }
+                for (int i = block.position() - 1; i >= 0; i--) {
+                    if (block.get(i) == '\n') {
+                        lineStart = from + i + 1;
+                        break;
+                    }
+                }
+                end = from;
+            }
+            ByteBuffer line = ByteBuffer.allocate((int) (length - lineStart));
+            while (line.hasRemaining() && file.read(line, lineStart + line.position()) > 0) {
+                // read the line
+            }
+            return Arrays.copyOf(line.array(), line.position());
+        }
+    }
+
+    /**
+     * Waits for changes and reads the appended lines until closed
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    // which file changed does not matter, the size tells
+                    key.pollEvents();
+                    key.reset();
+                }
+                readAppended();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            if (!closed) {
+                System.out.println("Stopped following " + path + ": " + e.getMessage());
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to read from it
+            }
+        }
+    }
+
+    /**
+     * Hands on the complete lines appended since the offset
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private void readAppended() throws IOException {
+        if (Files.exists(path)) {
+            Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            if (key != null && !Objects.equals(key, fileKey)) {
+                // replaced, by a save for instance
+                open();
+                offset = 0;
+            }
+        }
+        if (channel.size() < offset) {
+            // truncated
+            offset = 0;
+        }
+
+        int window = MAX_READ;
+        while (!closed && channel.size() > offset) {
+            int length = (int) Math.min(window, channel.size() - offset);
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            while (bytes.hasRemaining() && channel.read(bytes, offset + bytes.position()) > 0) {
+                // read up to the length
+            }
+            int end = bytes.position();
+            while (end > 0 && bytes.get(end - 1) != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                if (length < window) {
+                    // no complete line yet
+                    return;
+                }
+                // a line longer than the window, read more of it
+                if (window == MAX_LINE) {
+                    throw new IOException("Line longer than " + MAX_LINE + " bytes at offset " + offset);
+                }
+                window = (int) Math.min((long) window * 2, MAX_LINE);
+                continue;
+            }
+            bytes.position(0).limit(end);
+            handler.appended(bytes);
+            offset += end;
+            window = MAX_READ;
+        }
+    }
+
+    /**
+     * @return offset of the first byte not yet handed on
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * Stops following the file. A batch being handed on is still delivered.
+     *
+     * @throws IOException if the watch service cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watcher.close();
+    }
+
+    /**
+     * Follows a copy of a food item data file while another thread appends
+     * rows to it, and meanwhile keeps querying the FoodData following it:
+     * every query must return only matching items, and none may fail while
+     * the rows are added under it.
+     *
+     * @param args path of the food item data file, foodItems.txt by default,
+     *             and number of rows to append, 20000 by default
+     * @throws Exception if the copy cannot be written or followed
+     */
+    public static void main(String[] args) throws Exception {
+        String filePath = args.length > 0 ? args[0] : "foodItems.txt";
+        int rowCount = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        Path copy = Files.createTempFile("followed", ".txt");
+        Files.copy(Paths.get(filePath), copy, StandardCopyOption.REPLACE_EXISTING);
+        FoodData foodData = new FoodData();
+        foodData.loadFoodItems(copy.toString());
+        int expected = foodData.getAllFoodItems().size() + rowCount;
+        foodData.followFile(null);
+
+        Thread writer = new Thread(() -> {
+            Random random = new Random(42);
+            try (Writer out = Files.newBufferedWriter(copy, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+                for (int row = 0; row < rowCount; row++) {
+                    out.write("appended" + row + ",Brand" + row % 50 + "_AppendedItem" + row
+                            + ",calories," + random.nextInt(500) + ",fat," + random.nextInt(50) + "\n");
+                    if (row % 20 == 19) {
+                        out.flush();
+                        Thread.sleep(10);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "appender");
+        writer.start();
+
+        // "calories == 7" is selective enough to be looked up in its index
+        List<String> scanned = Collections.singletonList("calories <= 100");
+        List<String> lookedUp = Collections.singletonList("calories == 7");
+        byte[] needle = NameStore.fold("item1");
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        int queries = 0;
+        int wrong = 0;
+        // rows are only added, so no query may find fewer items than before
+        int[] found = new int[4];
+        while ((writer.isAlive() || foodData.getAllFoodItems().size() < expected)
+                && System.nanoTime() < deadline) {
+            try {
+                List<FoodItem> result = foodData.filterByNutrients(scanned);
+                for (FoodItem item : result) {
+                    wrong += item.getNutrientValue(NutrientSchema.CALORIES) <= 100 ? 0 : 1;
+                }
+                wrong += result.size() < found[0] ? 1 : 0;
+                found[0] = result.size();
+                result = foodData.filterByNutrients(lookedUp);
+                for (FoodItem item : result) {
+                    wrong += item.getNutrientValue(NutrientSchema.CALORIES) == 7 ? 0 : 1;
+                }
+                wrong += result.size() < found[1] ? 1 : 0;
+                found[1] = result.size();
+                result = foodData.filterByName("item1");
+                for (FoodItem item : result) {
+                    wrong += item.nameContains(needle) ? 0 : 1;
+                }
+                wrong += result.size() < found[2] ? 1 : 0;
+                found[2] = result.size();
+                result = foodData.filterByBrand("Brand7");
+                for (FoodItem item : result) {
+                    wrong += item.getName().startsWith("Brand7_") ? 0 : 1;
+                }
+                wrong += result.size() < found[3] ? 1 : 0;
+                found[3] = result.size();
+                int faceted = 0;
+                for (BrandFacet facet : foodData.brandFacets()) {
+                    faceted += facet.getCount();
+                }
+                wrong += faceted <= expected ? 0 : 1;
+                foodData.searchNames("appendeditem1", 10);
+                queries += 6;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                wrong++;
+            }
+        }
+        writer.join();
+        foodData.unfollowFile();
+        Files.delete(copy);
+
+        System.out.println("items: " + foodData.getAllFoodItems().size() + " of " + expected);
+        System.out.println("queries while appending: " + queries + ", wrong or failed: " + wrong);
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Filename:   CatalogWriter.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes food item data files, one line per item in the format of
+ * FoodData.formatLine(), optionally gzip-compressed.
+ *
+ * Lines are formatted straight into a fixed-size buffer that is written to
+ * the file whenever it fills up, so memory use does not depend on the
+ * number of items. The items go to a temporary file next to the target,
+ * which only replaces the target once commit() has forced it to the disk:
+ * a write that fails or is interrupted leaves any previous file intact.
+ */
+public class CatalogWriter implements AutoCloseable {
+
+    // Size of the buffer, 64 KB
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Largest whole number written without Double.toString(); from 10^7 on
+    // Double.toString() switches to scientific notation
+    private static final double PLAIN_LIMIT = 1e7;
+
+    // File that is replaced on commit, and the temporary file written
+    private final Path target;
+    private final Path temp;
+
+    // The temporary file
+    private final FileChannel channel;
+
+    // Where the buffer is written to: the file, or gzip in front of it
+    private final OutputStream output;
+    private final GZIPOutputStream gzip;
+
+    // Formatted bytes not yet written, and how many there are
+    private final byte[] buffer;
+    private int used;
+
+    // UTF-8 bytes of every nutrient label by NutrientSchema ordinal
+    private byte[][] labels;
+
+    // True once the target has been replaced
+    private boolean committed;
+
+    /**
+     * Creates the temporary file of a food item data file
+     *
+     * @param filePath path of the file to write
+     * @param compress true to gzip the file
+     * @throws FileNotFoundException if the directory does not exist
+     * @throws IOException if the file cannot be created
+     */
+    public CatalogWriter(String filePath, boolean compress) throws IOException {
+        target = Paths.get(filePath);
+        temp = Paths.get(filePath + ".tmp");
+        try {
+            channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filePath);
+        }
+        OutputStream file = Channels.newOutputStream(channel);
+        gzip = compress ? new GZIPOutputStream(file, BUFFER_SIZE) : null;
+        output = compress ? gzip : file;
+        buffer = new byte[BUFFER_SIZE];
+        labels = new byte[0][];
+    }
+
+    /**
+     * Writes the line of a food item
+     *
+     * @param item the food item
+     * @throws IOException if the file cannot be written
+     */
+    public void write(FoodItem item) throws IOException {
+        if (labels.length < NutrientSchema.size()) {
+            int known = labels.length;
+            labels = Arrays.copyOf(labels, NutrientSchema.size());
+            for (int ordinal = known; ordinal < labels.length; ordinal++) {
+                labels[ordinal] = NutrientSchema.nameOf(ordinal).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        putString(item.getID());
+        putByte(',');
+        putString(item.getName());
+        for (int ordinal = 0; ordinal < NutrientSchema.size(); ordinal++) {
+            if (ordinal < NutrientSchema.CORE_COUNT || item.hasNutrient(ordinal)) {
+                putByte(',');
+                putBytes(labels[ordinal]);
+                putByte(',');
+                // an absent core nutrient gets an empty value
+                if (item.hasNutrient(ordinal)) {
+                    putValue(item.getNutrientValue(ordinal));
+                }
+            }
+        }
+        putByte('\n');
+    }
+
+    /**
+     * Writes out everything, forces the file to the disk and renames it
+     * over the target
+     *
+     * @throws IOException if the file cannot be written or renamed
+     */
+    public void commit() throws IOException {
+        flush();
+        if (gzip != null) {
+            gzip.finish();
+        }
+        output.flush();
+        channel.force(true);
+        channel.close();
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    /**
+     * Closes the file; unless it was committed the temporary file is
+     * deleted and the target left as it was
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes a number the way Double.toString() formats it, without
+     * creating a String for the common whole numbers
+     *
+     * @param value the number
+     * @throws IOException if the file cannot be written
+     */
+    private void putValue(double value) throws IOException {
+        if (Double.doubleToRawLongBits(value) == 0) {
+            putByte('0');
+        } else if (value >= 1 && value < PLAIN_LIMIT && value == (long) value) {
+            if (used + 20 > buffer.length) {
+                flush();
+            }
+            long digits = (long) value;
+            int end = used + 1;
+            for (long rest = digits / 10; rest > 0; rest /= 10) {
+                end++;
+            }
+            for (int i = end - 1; i >= used; i--) {
+                buffer[i] = (byte) ('0' + digits % 10);
+                digits /= 10;
+            }
+            used = end;
+        } else {
+            putString(Double.toString(value));
+            return;
+        }
+        putByte('.');
+        putByte('0');
+    }
+
+    /**
+     * Writes a String as UTF-8
+     *
+     * @param text the String
+     * @throws IOException if the file cannot be written
+     */
+    private void putString(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                putBytes(text.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        for (int i = 0; i < text.length(); i++) {
+            putByte(text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes bytes
+     *
+     * @param bytes the bytes
+     * @throws IOException if the file cannot be written
+     */
+    private void putBytes(byte[] bytes) throws IOException {
+        if (used + bytes.length > buffer.length) {
+            flush();
+            if (bytes.length > buffer.length) {
+                output.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, used, bytes.length);
+        used += bytes.length;
+    }
+
+    /**
+     * Writes an ASCII character
+     *
+     * @param c the character
+     * @throws IOException if the file cannot be written
+     */
+    private void putByte(int c) throws IOException {
+        if (used == buffer.length) {
+            flush();
+        }
+        buffer[used++] = (byte) c;
+    }
+
+    /**
+     * Writes out the buffer
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private void flush() throws IOException {
+        output.write(buffer, 0, used);
+        used = 0;
+    }
+}
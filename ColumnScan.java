@@ -0,0 +1,187 @@
+/**
+ * Filename:   ColumnScan.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Evaluates conjunctive nutrient rules by scanning NutrientColumns.
+ *
+ * The result is a selection bitmap with one bit per row, bit (row % 64) of
+ * word (row / 64). The first rule fills the bitmap, the following ones
+ * clear bits in place and skip words that are already empty. The inner
+ * loops are branch-free over plain double[] so the JIT can unroll and
+ * vectorize them.
+ */
+public class ColumnScan {
+
+    // Number of rows sampled to estimate the selectivity of a rule
+    private static final int SAMPLE_SIZE = 512;
+
+    /**
+     * Not instantiable
+     */
+    private ColumnScan() {
+    }
+
+    /**
+     * Computes the rows that satisfy every rule
+     *
+     * @param columns the columns to scan
+     * @param rules rules to apply, all of them must match
+     * @param context checked once per 64 rows; when the query is stopped
+     *                the bitmap only holds rows that satisfy every rule
+     * @return the selection bitmap
+     */
+    public static long[] scan(NutrientColumns columns, List<NutrientRule> rules, QueryContext context) {
+        int size = columns.size();
+        long[] selection = new long[(size + 63) >>> 6];
+        for (int r = 0; r < rules.size(); r++) {
+            NutrientRule rule = rules.get(r);
+            double[] column = rule.getOrdinal() < 0 ? null : columns.column(rule.getOrdinal());
+            if (column == null) {
+                // no row has the nutrient, nothing can match
+                return new long[selection.length];
+            }
+            boolean first = r == 0;
+            for (int word = 0; word < selection.length; word++) {
+                if (context.shouldStop()) {
+                    // rows past this point were not tested against this rule
+                    for (int rest = word; rest < selection.length; rest++) {
+                        selection[rest] = 0;
+                    }
+                    return selection;
+                }
+                if (!first && selection[word] == 0) {
+                    continue;
+                }
+                int base = word << 6;
+                long bits = matchWord(column, base, Math.min(64, size - base), rule);
+                selection[word] = first ? bits : selection[word] & bits;
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Tests up to 64 consecutive rows of a column
+     *
+     * @param column column to read
+     * @param base first row
+     * @param count number of rows, at most 64
+     * @param rule rule to test
+     * @return bit i is set if row base + i matches
+     */
+    private static long matchWord(double[] column, int base, int count, NutrientRule rule) {
+        double value = rule.getValue();
+        long bits = 0;
+        // one loop per operator keeps the comparison out of the loop body
+        switch (rule.getOperator()) {
+            case NutrientRule.LESS_EQUAL:
+                for (int i = 0; i < count; i++) {
+                    bits |= (column[base + i] <= value ? 1L : 0L) << i;
+                }
+                break;
+            case NutrientRule.EQUAL:
+                for (int i = 0; i < count; i++) {
+                    bits |= (column[base + i] == value ? 1L : 0L) << i;
+                }
+                break;
+            default:
+                for (int i = 0; i < count; i++) {
+                    bits |= (column[base + i] >= value ? 1L : 0L) << i;
+                }
+                break;
+        }
+        return bits;
+    }
+
+    /**
+     * Estimates the fraction of rows matching a rule from an evenly spaced
+     * sample of its column
+     *
+     * @param columns the columns to sample
+     * @param rule rule to estimate
+     * @return estimated fraction of matching rows, between 0 and 1
+     */
+    public static double estimateSelectivity(NutrientColumns columns, NutrientRule rule) {
+        int size = columns.size();
+        double[] column = rule.getOrdinal() < 0 ? null : columns.column(rule.getOrdinal());
+        if (size == 0 || column == null) {
+            return 0;
+        }
+        int samples = Math.min(SAMPLE_SIZE, size);
+        double step = (double) size / samples;
+        int matches = 0;
+        for (int i = 0; i < samples; i++) {
+            if (rule.matches(column[(int) (i * step)])) {
+                matches++;
+            }
+        }
+        return (double) matches / samples;
+    }
+
+    /**
+     * Counts the selected rows
+     *
+     * @param selection selection bitmap
+     * @return number of bits set
+     */
+    public static int count(long[] selection) {
+        int count = 0;
+        for (long word : selection) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Benchmark comparing a column scan with a B+ tree range search on a
+     * synthetic column, for rules of decreasing selectivity. The crossover
+     * point is what FoodData uses to choose between the two.
+     *
+     * @param args optional number of rows, 1000000 by default
+     */
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Random random = new Random(42);
+        NutrientColumns columns = new NutrientColumns();
+        BPTree<Double, Integer> tree = new BPTree<Double, Integer>(3);
+        for (int i = 0; i < rows; i++) {
+            FoodItem item = new FoodItem(Integer.toString(i), "item" + i);
+            // calories spread uniformly over [0, 1000)
+            double calories = random.nextInt(1000000) / 1000.0;
+            item.addNutrient(NutrientSchema.CALORIES, calories);
+            columns.append(item);
+            tree.insert(calories, i);
+        }
+
+        double[] fractions = {0.0001, 0.001, 0.01, 0.05, 0.1, 0.5};
+        System.out.println("rows: " + rows);
+        System.out.println("selectivity  matches  scan(ms)  index(ms)");
+        for (double fraction : fractions) {
+            NutrientRule rule = new NutrientRule(NutrientSchema.CALORIES, "<=", 1000 * fraction);
+            List<NutrientRule> rules = new ArrayList<NutrientRule>();
+            rules.add(rule);
+            long scanNanos = Long.MAX_VALUE, indexNanos = Long.MAX_VALUE;
+            int matches = 0;
+            // best of several runs so the JIT has warmed up
+            for (int run = 0; run < 10; run++) {
+                long start = System.nanoTime();
+                matches = count(scan(columns, rules, QueryContext.unbounded()));
+                scanNanos = Math.min(scanNanos, System.nanoTime() - start);
+                start = System.nanoTime();
+                tree.rangeSearch(rule.getValue(), rule.getComparator());
+                indexNanos = Math.min(indexNanos, System.nanoTime() - start);
+            }
+            System.out.printf("%11.4f  %7d  %8.2f  %9.2f%n", fraction, matches,
+                    scanNanos / 1e6, indexNanos / 1e6);
+        }
+    }
+}
@@ -29,8 +29,6 @@ import java.util.logging.Filter;
  * A class for displaying a prompt for the user to create a new FoodItem to add to the foodDataList
  */
 public class CreateFood {
-    // static variable for the id that always just increments by 1 when adding
-    static String id = "1";
 
     /**
      * Displays a new window prompting the user to create a new FoodItem
@@ -124,8 +122,9 @@ public class CreateFood {
                     if (newCalories < 0) throw new Exception();
                     if (newCarbohydrate < 0) throw new Exception();
 
-                    // add the nutrients from the text field to the foodItem
-                    FoodItem newFood = new FoodItem(id, newName);
+                    // add the nutrients from the text field to the foodItem, with
+                    // an id no other food item has
+                    FoodItem newFood = new FoodItem(foodData.nextId(), newName);
                     newFood.addNutrient("fiber", newFiber);
                     newFood.addNutrient("protein", newProtein);
                     newFood.addNutrient("fat", newFat);
@@ -149,8 +148,6 @@ public class CreateFood {
                     // Revert back to original AddFood display
                     for (NewFoodEntry entry : addEntries)
                         entry.getTextField().clear();
-                    // increment the id
-                    id = id + 1;
                 } catch (Exception e) {
                     // create an AlertBox
                     Alert invalidValue = new Alert(Alert.AlertType.WARNING,
@@ -6,6 +6,7 @@
  *
  */
 
+import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
@@ -22,7 +23,9 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
 
 /**
  * A class for prompting for a filter and adding it to the rules
@@ -53,6 +56,8 @@ public class Filter {
         Button addRuleButton = new Button("Add Rule");
         // button to apply all of the filters
         Button applyButton = new Button("Apply Query");
+        // button to count the brands among the items the filters select
+        Button facetsButton = new Button("Brand Facets");
 
         // add the a choice box with the comparison operators
         ChoiceBox<String> comparatorChoiceBox = new ChoiceBox();
@@ -62,6 +67,10 @@ public class Filter {
         // add a choice box with the filter categories
         ChoiceBox<String> filterChoiceBox = new ChoiceBox();
         filterChoiceBox.getItems().addAll("calories", "fat", "fiber", "carbohydrate", "protein");
+        // followed by any other nutrient found in the loaded files
+        for (int ordinal = NutrientSchema.CORE_COUNT; ordinal < NutrientSchema.size(); ordinal++) {
+            filterChoiceBox.getItems().add(NutrientSchema.nameOf(ordinal));
+        }
         filterChoiceBox.setValue("calories");
 
         // create a textField
@@ -144,18 +153,65 @@ public class Filter {
             public void handle(ActionEvent event) {
                 if (rules.isEmpty())
                     foodTable.setItems(FXCollections.observableArrayList(foodData.getAllFoodItems()));
-                else
-                    foodTable.setItems(FXCollections.observableArrayList(foodData.filterByNutrients(rules)));
+                else {
+                    // bound the query so a huge catalog cannot freeze the window
+                    QueryResult<FoodItem> result = foodData.filterByNutrients(rules,
+                            QueryContext.withTimeout(Main.QUERY_TIMEOUT_MS, true));
+                    foodTable.setItems(FXCollections.observableArrayList(result.getItems()));
+                    if (!result.isComplete()) {
+                        Alert partialResult = new Alert(Alert.AlertType.INFORMATION,
+                                "The query took too long, only part of the matching food items are shown.");
+                        partialResult.showAndWait();
+                    }
+                }
                 secondaryStage.close();
             }
         });
 
+        // table of the brands among the items the filters select, shown
+        // once the facets button is clicked
+        TableView<BrandFacet> facetTable = new TableView<BrandFacet>();
+        facetTable.setVisible(false);
+        facetTable.setManaged(false);
+        // when the user clicks the facets button count the items of every brand,
+        // with the values of the nutrient in the choice box
+        facetsButton.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                List<FoodItem> items = null;
+                boolean complete = true;
+                if (!rules.isEmpty()) {
+                    QueryResult<FoodItem> result = foodData.filterByNutrients(rules,
+                            QueryContext.withTimeout(Main.QUERY_TIMEOUT_MS, true));
+                    items = result.getItems();
+                    complete = result.isComplete();
+                }
+                String nutrientName = filterChoiceBox.getValue();
+                int nutrient = NutrientSchema.ordinalOf(nutrientName);
+                facetTable.getColumns().setAll(Arrays.asList(
+                        facetColumn("Brand", facet -> facet.getBrand().isEmpty() ? "(no brand)" : facet.getBrand()),
+                        facetColumn("Items", facet -> String.valueOf(facet.getCount())),
+                        facetColumn("Min " + nutrientName, facet -> format(facet.getMin(nutrient))),
+                        facetColumn("Avg " + nutrientName, facet -> format(facet.getAverage(nutrient))),
+                        facetColumn("Max " + nutrientName, facet -> format(facet.getMax(nutrient)))));
+                facetTable.setItems(FXCollections.observableArrayList(foodData.brandFacets(items)));
+                facetTable.setVisible(true);
+                facetTable.setManaged(true);
+                secondaryStage.setHeight(640);
+                if (!complete) {
+                    Alert partialResult = new Alert(Alert.AlertType.INFORMATION,
+                            "The query took too long, the facets only count part of the matching food items.");
+                    partialResult.showAndWait();
+                }
+            }
+        });
+
         // add the all of the filter categories to a layout
-        HBox propertiesLayout = new HBox(10, filterChoiceBox, comparatorChoiceBox, valueTextField, addRuleButton, applyButton);
+        HBox propertiesLayout = new HBox(10, filterChoiceBox, comparatorChoiceBox, valueTextField, addRuleButton, applyButton, facetsButton);
         propertiesLayout.setAlignment(Pos.CENTER);
 
         // add the layouts to the root
-        VBox root = new VBox(propertiesLayout, showRulesLayout);
+        VBox root = new VBox(propertiesLayout, showRulesLayout, facetTable);
         root.setPadding(new Insets(10, 10, 10, 10));
 
         // add the root to the main window
@@ -163,5 +219,28 @@ public class Filter {
         secondaryStage.setScene(scene);
         secondaryStage.showAndWait();
     }
+
+    /**
+     * Creates a column of the brand facet table
+     *
+     * @param title the title of the column
+     * @param value gives the text of the column for a facet
+     * @return the column
+     */
+    private static TableColumn<BrandFacet, String> facetColumn(String title, Function<BrandFacet, String> value) {
+        TableColumn<BrandFacet, String> column = new TableColumn<BrandFacet, String>(title);
+        column.setCellValueFactory(cell -> new SimpleStringProperty(value.apply(cell.getValue())));
+        return column;
+    }
+
+    /**
+     * Formats a nutrient value for the brand facet table
+     *
+     * @param value the value, NaN if no item has the nutrient
+     * @return the value with one decimal, or a dash
+     */
+    private static String format(double value) {
+        return Double.isNaN(value) ? "-" : String.format("%.1f", value);
+    }
 }
 
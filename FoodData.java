@@ -6,17 +6,29 @@
  *
  */
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class represents the backend for managing all
@@ -33,305 +45,2341 @@ public class FoodData implements FoodDataADT<FoodItem> {
     private static final int ID_INDEX = 0;
     // Index in array corresponding to name
     private static final int NAME_INDEX = 1;
-    // Index in array corresponding to first nutrient type listed in file
-    private static final int NUTR1_LBL_INDEX = 2;
-    // Index in array corresponding to value of first nutrient type
-    private static final int NUTR1_VAL_INDEX = 3;
-    // Index in array corresponding to second nutrient type listed in file
-    private static final int NUTR2_LBL_INDEX = 4;
-    // Index in array corresponding to value of second nutrient type
-    private static final int NUTR2_VAL_INDEX = 5;
-    // Index in array corresponding to third nutrient type listed in file
-    private static final int NUTR3_LBL_INDEX = 6;
-    // Index in array corresponding to value of third nutrient type
-    private static final int NUTR3_VAL_INDEX = 7;
-    // Index in array corresponding to fourth nutrient type listed in file
-    private static final int NUTR4_LBL_INDEX = 8;
-    // Index in array corresponding to value of fourth nutrient type
-    private static final int NUTR4_VAL_INDEX = 9;
-    // Index in array corresponding to fifth nutrient type listed in file
-    private static final int NUTR5_LBL_INDEX = 10;
-    // Index in array corresponding to value of fifth nutrient type
-    private static final int NUTR5_VAL_INDEX = 11;
+    // Index in array corresponding to the label of the first nutrient; a
+    // row carries any number of <label>,<value> pairs from there on
+    private static final int FIRST_NUTR_LBL_INDEX = 2;
     // Branching factor of any instance of B+ tree instantiated
     private static final int BRANCHING_FACTOR = 3;
+    // Largest estimated share of matching items for which a rule is looked
+    // up in its B+ tree rather than scanned; ColumnScan.main measures the
+    // crossover at about 0.1% of the catalog
+    private static final double INDEX_MAX_SELECTIVITY = 0.002;
 
-    // List of all the food items
-    private List<FoodItem> foodItemList;
+    // Matches of a name search up to this share of the catalog are sorted
+    // by name; more are picked out of the sorted list instead
+    private static final int NAME_SORT_SHARE = 256;
 
-    // Map of nutrients and their corresponding index
-    private HashMap<String, BPTree<Double, FoodItem>> indexes;
+    // Largest share of the entries of a built index that may belong to
+    // replaced or deleted items before the index is dropped, to be rebuilt
+    // the next time it is needed
+    private static final double INDEX_MAX_STALE_SHARE = 0.25;
+
+    // Size past which the catalog log is folded into the base file
+    private static final long LOG_COMPACTION_BYTES = 16 << 20;
+
+    // Additions of at least 1/LIST_MERGE_DIVISOR of the items are merged
+    // into a new name-sorted list rather than inserted into a copy of it
+    private static final int LIST_MERGE_DIVISOR = 64;
+
+    // Thread that compacts the catalog log in the background
+    private static final ExecutorService LOG_COMPACTOR = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "catalog-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Threads that build nutrient indexes in the background
+    private static final ExecutorService INDEX_BUILDER = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), task -> {
+                Thread thread = new Thread(task, "nutrient-index-builder");
+                // never keep the program alive just to finish an index
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // List of all the food items, in name order
+    private NameOrderList foodItemList;
+
+    // Food items by ordinal, the position they were loaded or added in
+    private List<FoodItem> itemsByOrdinal;
+
+    // Nutrient values of the items, one column per nutrient indexed by ordinal
+    private NutrientColumns columns;
+
+    // Map of nutrient ordinals and their corresponding index, an index is
+    // only created the first time a selective rule references its nutrient
+    private HashMap<Integer, NutrientIndex> indexes;
+
+    // Ordinal of every item by id
+    private IdIndex idIndex;
+
+    // Names of the items, with brands dictionary-encoded
+    private NameStore names;
+
+    // Brand of every item by ordinal, and items of every brand
+    private BrandIndex brandIndex;
+
+    // Generates ids for items created in the program
+    private FoodId idGenerator;
+
+    // Estimated bytes the data may use before built indexes are evicted,
+    // 0 for no limit
+    private long memoryBudget;
+
+    // Incremented every time an index is used, to find the coldest one
+    private long indexUseClock;
+
+    // Rows sorted by the value of every nutrient, by NutrientSchema ordinal,
+    // as read from the snapshot the data was opened from; null once the
+    // nutrient has been indexed or if there was no snapshot
+    private int[][] snapshotOrders;
+
+    // Number of rows the snapshot orders cover, later rows were added since
+    private int snapshotSize;
+
+    // Trigram index of the folded names by ordinal, null while it is built
+    private TrigramIndex nameIndex;
+
+    // Term index of the names by ordinal, built along with the name index
+    private TokenIndex termIndex;
+
+    // Completion of the latest name index build, null before the first
+    private Future<?> nameIndexBuild;
+
+    // Increased whenever the name index is rebuilt, so an earlier build is
+    // thrown away
+    private long nameIndexGeneration;
+
+    // Items renamed or deleted since the name index was built, whose
+    // entries are left behind in it
+    private int nameIndexStale;
+
+    // File the data was loaded from and whether it is a snapshot, null if
+    // the data was not loaded
+    private String basePath;
+    private boolean baseIsSnapshot;
+
+    // Write-ahead log of the items added since the base file was written,
+    // null if edits are not logged
+    private CatalogLog log;
+
+    // True while a compaction of the log is waiting or running
+    private boolean compactionScheduled;
+
+    // End of the last complete line of the base file read by the load,
+    // where following it starts
+    private long baseLength;
+
+    // Item the load read from a last line that had no '\n' yet, which its
+    // writer may have been in the middle of; following reads the line again
+    // and replaces the item. Null if there is none.
+    private FoodItem partialItem;
+
+    // Follows the base file, null if it is not followed
+    private CatalogTail tail;
+
+    // Increased whenever following starts or stops, so lines read for an
+    // earlier tail are dropped
+    private long tailGeneration;
+
+    // Number of items replaced or deleted so far, an index build that sees
+    // it change starts over
+    private long rowChanges;
+
+    // True to build the indexes of the core nutrients in the background
+    // right after every load
+    private boolean prebuildIndexes;
+
+    // Increased whenever items are loaded, added, replaced or deleted, so
+    // results kept from earlier queries can tell they are out of date
+    private long catalogVersion;
+
+    // Held for reading by every query while it runs, and for writing by
+    // every edit that changes the item list, the columns or the indexes in
+    // place, so a query never sees them half changed. Taken before the
+    // FoodData lock, never while holding it.
+    private final ReentrantReadWriteLock rowLock = new ReentrantReadWriteLock();
 
     /**
      * Public constructor
      */
-    public FoodData() {
-        foodItemList = new ArrayList<FoodItem>();
-        indexes = new HashMap<String, BPTree<Double, FoodItem>>();
-        indexes.put("calories", new BPTree<Double, FoodItem>(BRANCHING_FACTOR));
-        indexes.put("fat", new BPTree<Double, FoodItem>(BRANCHING_FACTOR));
-        indexes.put("carbohydrate", new BPTree<Double, FoodItem>(BRANCHING_FACTOR));
-        indexes.put("fiber", new BPTree<Double, FoodItem>(BRANCHING_FACTOR));
-        indexes.put("protein", new BPTree<Double, FoodItem>(BRANCHING_FACTOR));
+    public FoodData() {
+        foodItemList = new NameOrderList();
+        itemsByOrdinal = new ArrayList<FoodItem>();
+        columns = new NutrientColumns();
+        indexes = new HashMap<Integer, NutrientIndex>();
+        idIndex = new IdIndex();
+        names = new NameStore();
+        brandIndex = new BrandIndex();
+        idGenerator = new FoodId();
+        snapshotOrders = new int[0][];
+        nameIndex = new TrigramIndex();
+        termIndex = new TokenIndex();
+    }
+
+    /**
+     * Follows a load started with loadFoodItems(String, QueryContext,
+     * LoadListener)
+     */
+    public interface LoadListener {
+
+        /**
+         * Called on the loading thread every time a part of the file has
+         * been read. The items are not visible through the FoodData until
+         * the load completes.
+         *
+         * @param batch items read since the previous call, in file order
+         * @param bytesLoaded bytes of the file read so far
+         * @param totalBytes size of the file
+         */
+        void loaded(List<FoodItem> batch, long bytesLoaded, long totalBytes);
+    }
+
+    /**
+     * Receives the food items appended to a followed file, see followFile()
+     */
+    public interface AppendListener {
+
+        /**
+         * Called on the following thread once appended items have been
+         * added and can be queried
+         *
+         * @param batch the items added, in file order; the first may replace
+         *              the item of a line the load read before it was
+         *              complete
+         */
+        void appended(List<FoodItem> batch);
+    }
+
+    /**
+     * B+ tree over the values of one nutrient, built on a background thread
+     * the first time it is needed.
+     */
+    private class NutrientIndex implements Runnable {
+
+        // NutrientSchema ordinal of the indexed nutrient
+        private final int ordinal;
+
+        // The tree, null until the build has completed. Only written while
+        // holding the FoodData lock so addFoodItem() knows whether the item
+        // must be inserted here or will be picked up by the build.
+        private volatile BPTree<Double, FoodItem> tree;
+
+        // Value of indexUseClock the last time the index was used
+        private long lastUsed;
+
+        // Entries of the tree left behind by replaced or deleted items. They
+        // stay in the tree, since removing one means walking every
+        // duplicate of its value, and are skipped by lookups.
+        private int staleEntries;
+
+        // Completion of the build
+        private final Future<?> build;
+
+        /**
+         * Creates the index and schedules its build
+         *
+         * @param ordinal NutrientSchema ordinal of the nutrient to index
+         */
+        NutrientIndex(int ordinal) {
+            this.ordinal = ordinal;
+            this.build = INDEX_BUILDER.submit(this);
+        }
+
+        /**
+         * Builds the tree from the items currently loaded. The items are
+         * sorted by value, or taken in the order stored in the snapshot the
+         * data was opened from, and loaded into the tree bottom up. This
+         * runs on a copy of the column and the items, without any lock, so
+         * queries scan the columns and edits go on meanwhile: items added
+         * during the build are inserted once it is done, and if items were
+         * replaced or deleted it starts over. A build dropped by a load is
+         * thrown away.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                double[] buildValues;
+                FoodItem[] buildItems;
+                int[] rows;
+                int sortedSize;
+                long changes;
+                synchronized (FoodData.this) {
+                    if (indexes.get(ordinal) != this) {
+                        return;
+                    }
+                    changes = rowChanges;
+                    rows = ordinal < snapshotOrders.length ? snapshotOrders[ordinal] : null;
+                    sortedSize = snapshotSize;
+                    if (rows == null) {
+                        sortedSize = columns.size();
+                    } else {
+                        // only needed for the first build
+                        snapshotOrders[ordinal] = null;
+                    }
+                    // edits change the column and the item list in place
+                    double[] column = columns.column(ordinal);
+                    buildValues = column == null ? null : Arrays.copyOf(column, sortedSize);
+                    buildItems = itemsByOrdinal.subList(0, sortedSize).toArray(new FoodItem[sortedSize]);
+                }
+
+                if (buildValues == null) {
+                    rows = new int[0];
+                } else if (rows == null) {
+                    rows = NutrientColumns.sortedRows(buildValues, sortedSize);
+                }
+                List<Double> keys = new ArrayList<Double>(rows.length);
+                List<FoodItem> values = new ArrayList<FoodItem>(rows.length);
+                for (int row : rows) {
+                    keys.add(buildValues[row]);
+                    values.add(buildItems[row]);
+                }
+                BPTree<Double, FoodItem> built = BPTree.bulkLoad(BRANCHING_FACTOR, keys, values);
+
+                synchronized (FoodData.this) {
+                    if (indexes.get(ordinal) != this) {
+                        return;
+                    }
+                    if (rowChanges != changes) {
+                        continue;
+                    }
+                    // items added after the snapshot was saved or during the
+                    // build
+                    List<FoodItem> later = new ArrayList<FoodItem>();
+                    for (int row = sortedSize; row < columns.size(); row++) {
+                        if (!Double.isNaN(columns.get(row, ordinal))) {
+                            later.add(itemsByOrdinal.get(row));
+                        }
+                    }
+                    later.sort(Comparator.comparingDouble(item -> item.getNutrientValue(ordinal)));
+                    List<Double> laterKeys = new ArrayList<Double>(later.size());
+                    for (FoodItem item : later) {
+                        laterKeys.add(item.getNutrientValue(ordinal));
+                    }
+                    built.insertAll(laterKeys, later);
+                    tree = built;
+                    enforceMemoryBudget(this);
+                    return;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Replaces the name and term indexes by ones built from the loaded items
+     * in the background; name searches scan the names and ranked searches
+     * wait until they are done. Must hold the FoodData lock.
+     */
+    private void rebuildNameIndex() {
+        nameIndex = null;
+        termIndex = null;
+        nameIndexStale = 0;
+        long generation = ++nameIndexGeneration;
+        nameIndexBuild = INDEX_BUILDER.submit(() -> buildNameIndex(generation));
+    }
+
+    /**
+     * Builds the name and term indexes from a copy of the item list without
+     * holding any lock, like a nutrient index: items added meanwhile are
+     * indexed once it is done, and if items were replaced or deleted it
+     * starts over. Names are read from the name store, which is safe while
+     * names are added to it.
+     *
+     * @param generation value of nameIndexGeneration the build is for
+     */
+    private void buildNameIndex(long generation) {
+        while (true) {
+            NameStore buildNames;
+            FoodItem[] buildItems;
+            int count;
+            long changes;
+            synchronized (this) {
+                if (generation != nameIndexGeneration) {
+                    return;
+                }
+                buildNames = names;
+                buildItems = itemsByOrdinal.toArray(new FoodItem[itemsByOrdinal.size()]);
+                count = buildItems.length;
+                changes = rowChanges;
+            }
+
+            TrigramIndex built = new TrigramIndex();
+            TokenIndex builtTerms = new TokenIndex();
+            byte[] buffer = new byte[256];
+            for (int ordinal = 0; ordinal < count; ordinal++) {
+                FoodItem item = buildItems[ordinal];
+                buffer = indexName(built, buildNames, item, ordinal, buffer);
+                builtTerms.add(ordinal, item.getName());
+            }
+
+            synchronized (this) {
+                if (generation != nameIndexGeneration) {
+                    return;
+                }
+                if (rowChanges != changes) {
+                    continue;
+                }
+                for (int ordinal = count; ordinal < itemsByOrdinal.size(); ordinal++) {
+                    FoodItem item = itemsByOrdinal.get(ordinal);
+                    buffer = indexName(built, names, item, ordinal, buffer);
+                    builtTerms.add(ordinal, item.getName());
+                }
+                nameIndex = built;
+                termIndex = builtTerms;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds the name of an item to a name index
+     *
+     * @param index the name index
+     * @param store store holding the name
+     * @param item the item
+     * @param ordinal ordinal of the item
+     * @param buffer buffer for the folded name, may be too small
+     * @return the buffer, or a larger one if it was too small
+     */
+    private static byte[] indexName(TrigramIndex index, NameStore store, FoodItem item, int ordinal,
+            byte[] buffer) {
+        int length = store.copyFolded(item.nameHandle(), buffer);
+        if (length > buffer.length) {
+            buffer = new byte[Math.max(length, 2 * buffer.length)];
+            store.copyFolded(item.nameHandle(), buffer);
+        }
+        index.add(ordinal, buffer, length);
+        return buffer;
+    }
+
+    /**
+     * Gets the index of a nutrient, scheduling its build if it is the first
+     * time the nutrient is referenced.
+     *
+     * @param ordinal NutrientSchema ordinal of the nutrient
+     * @return the index, possibly still being built
+     */
+    private synchronized NutrientIndex indexFor(int ordinal) {
+        NutrientIndex index = indexes.get(ordinal);
+        if (index == null) {
+            index = new NutrientIndex(ordinal);
+            indexes.put(ordinal, index);
+        }
+        index.lastUsed = ++indexUseClock;
+        return index;
+    }
+
+    /**
+     * Makes every load build the indexes of the core nutrients in the
+     * background as soon as the items are loaded, instead of the first time
+     * a rule needs them. Queries scan the columns until an index is built.
+     *
+     * @param enabled true to build the indexes after every load
+     */
+    public synchronized void setIndexPrebuild(boolean enabled) {
+        prebuildIndexes = enabled;
+        if (enabled) {
+            prebuildIndexes();
+        }
+    }
+
+    /**
+     * Schedules the builds of the core nutrient indexes not yet built. Must
+     * hold the FoodData lock.
+     */
+    private void prebuildIndexes() {
+        for (int ordinal = 0; ordinal < Math.min(NutrientSchema.CORE_COUNT, NutrientSchema.size()); ordinal++) {
+            indexFor(ordinal);
+        }
+    }
+
+    /**
+     * Builds the index of a nutrient unless it is already built, and waits
+     * for the build to complete.
+     *
+     * @param ordinal NutrientSchema ordinal of the nutrient
+     */
+    public void buildIndex(int ordinal) {
+        try {
+            indexFor(ordinal).build.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Index build failed", e.getCause());
+        }
+    }
+
+    /**
+     * Sets how much memory the data may use, as estimated by memoryReport().
+     * Whenever the estimate goes over it, the least recently used nutrient
+     * indexes are dropped; they are built again the next time a rule needs
+     * them. The items themselves are never dropped, so the estimate can stay
+     * over a budget that is too small for them.
+     *
+     * @param bytes the budget, 0 for no limit
+     */
+    public synchronized void setMemoryBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Illegal memory budget: " + bytes);
+        }
+        memoryBudget = bytes;
+        enforceMemoryBudget(null);
+    }
+
+    /**
+     * Drops built indexes, least recently used first, until the estimated
+     * memory use is within the budget. Must hold the FoodData lock.
+     *
+     * @param keep index that is never dropped, usually the one just built;
+     *             null if any index may be dropped
+     */
+    private void enforceMemoryBudget(NutrientIndex keep) {
+        if (memoryBudget == 0) {
+            return;
+        }
+        long excess = memoryReport().getTotalBytes() - memoryBudget;
+        while (excess > 0) {
+            NutrientIndex coldest = null;
+            for (NutrientIndex index : indexes.values()) {
+                if (index != keep && index.tree != null
+                        && (coldest == null || index.lastUsed < coldest.lastUsed)) {
+                    coldest = index;
+                }
+            }
+            if (coldest == null) {
+                break;
+            }
+            excess -= coldest.tree.estimateBytes();
+            indexes.remove(coldest.ordinal);
+        }
+    }
+
+    /**
+     * Estimates the memory used by the loaded data, by component: the items,
+     * their names, the nutrient columns, the id index and every built
+     * nutrient index.
+     *
+     * @return the report
+     */
+    public synchronized MemoryReport memoryReport() {
+        MemoryReport report = new MemoryReport(itemsByOrdinal.size());
+        long itemBytes = 0;
+        for (FoodItem item : itemsByOrdinal) {
+            itemBytes += item.memoryBytes();
+        }
+        report.add("food items", itemBytes);
+        report.add("item lists", foodItemList.memoryBytes()
+                + MemoryReport.arrayListBytes(itemsByOrdinal.size()));
+        report.add("names", names.memoryBytes());
+        report.add("nutrient columns", columns.memoryBytes());
+        report.add("id index", idIndex.memoryBytes());
+        report.add("brand index", brandIndex.memoryBytes());
+        if (nameIndex != null) {
+            report.add("name index", nameIndex.memoryBytes());
+        }
+        if (termIndex != null) {
+            report.add("term index", termIndex.memoryBytes());
+        }
+        for (NutrientIndex index : indexes.values()) {
+            BPTree<Double, FoodItem> tree = index.tree;
+            if (tree != null) {
+                report.add("index " + NutrientSchema.nameOf(index.ordinal), tree.estimateBytes());
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Defines ordering for FoodItem objects.
+     *
+     * @author kevinluangpoomyut
+     */
+    /*class FoodItemComparator implements Comparator<FoodItem> {
+
+        *//**
+         * Two food items are compared by their name values.
+         *
+         * @param f1 an instance of FoodItem
+         * @param f2 an instance of FoodItem
+         * @return 0 if the names are equal (case insensitive), a negative value
+         * if the first argument comes before the second argument in
+         * alphabetical order, a positive value if the first argument comes
+         * after the second argument in alphabetical order.
+         *//*
+        @Override
+        public int compare(FoodItem f1, FoodItem f2) {
+            return f1.getName().toUpperCase().compareTo(f2.getName().toUpperCase());
+        }
+
+    }*/
+
+    /**
+     * Loads data from a .csv or .txt file, which may be gzip-compressed.
+     *
+     * @param filePath path of the food item data file
+     */
+    @Override
+    public void loadFoodItems(String filePath) {
+
+        try {
+            loadFoodItems(filePath, QueryContext.unbounded(), null);
+        }
+        catch (FileNotFoundException e) {
+            System.out.println("The file: '" + filePath + "' does not exist.");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Loads data from a .csv or .txt file, reporting the items as they are
+     * read. The loaded data replaces the current one only once the whole
+     * file is read; until then queries keep seeing the current data, so
+     * this can run on a background thread. Gzip-compressed files are
+     * recognized by their content and inflated as they are read.
+     *
+     * @param filePath path of the food item data file
+     * @param context cancellation state of the load; a load that is stopped
+     *                leaves the current data as it is
+     * @param listener told about the items as they are read, may be null
+     * @return true if the file was loaded, false if the load was stopped
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public boolean loadFoodItems(String filePath, QueryContext context, LoadListener listener)
+            throws IOException {
+
+        // Items are read into a new list so the current one is kept if the
+        // file turns out to be unreadable
+        List<FoodItem> loadedItems = new ArrayList<FoodItem>();
+
+        // Ids of the items read so far, mapped to their position in the file
+        IdIndex loadedIds = new IdIndex();
+
+        // Names of the items read so far
+        NameStore loadedNames = new NameStore();
+
+        // Number of items already handed to the listener
+        int[] published = new int[1];
+
+        // Bytes of the file read so far
+        long[] loadedBytes = new long[1];
+
+        // Parse the file on every core; the items come back in file order
+        // and only the first item with a given id is kept
+        boolean complete = CatalogLoader.load(filePath, loadedNames, item -> {
+            if (putId(loadedIds, item, loadedItems.size())) {
+                loadedItems.add(item);
+            }
+        }, context, (bytesLoaded, totalBytes) -> {
+            loadedBytes[0] = bytesLoaded;
+            if (listener != null) {
+                listener.loaded(new ArrayList<FoodItem>(loadedItems.subList(published[0], loadedItems.size())),
+                        bytesLoaded, totalBytes);
+                published[0] = loadedItems.size();
+            }
+        });
+        if (!complete) {
+            return false;
+        }
+
+        // Number the items in file order and copy their nutrients
+        // into columns
+        List<FoodItem> loadedByOrdinal = new ArrayList<FoodItem>(loadedItems);
+        NutrientColumns loadedColumns = new NutrientColumns();
+        BrandIndex loadedBrands = new BrandIndex();
+        for (FoodItem item : loadedByOrdinal) {
+            item.setOrdinal(loadedColumns.append(item));
+            loadedBrands.append(loadedNames.brand(item.nameHandle()));
+        }
+
+        // Sort list alphabetically, on every core
+        NameOrderList loadedOrder = NameOrderList.sortedOf(loadedItems);
+
+        // A last line without its '\n' may have been cut short by a writer
+        // still appending to the file: following starts at that line, and
+        // replaces the item read from it once the line is complete
+        byte[] unterminated = CatalogTail.unterminatedLine(filePath, loadedBytes[0]);
+        FoodItem partial = null;
+        if (unterminated.length > 0 && !loadedByOrdinal.isEmpty()) {
+            String line = new String(unterminated, StandardCharsets.UTF_8);
+            FoodItem last = loadedByOrdinal.get(loadedByOrdinal.size() - 1);
+            if (line.indexOf(',') >= 0 && line.substring(0, line.indexOf(',')).trim().equals(last.getID())) {
+                partial = last;
+            }
+        }
+
+        // Swap in the new items; indexes of the previous file are dropped
+        // and rebuilt from the new items when a rule needs them
+        synchronized (this) {
+            // a load cancelled while sorting must not replace a newer one
+            if (context.isStopped()) {
+                return false;
+            }
+            // the log holds edits of the previous file
+            closeLog();
+            unfollowFile();
+            foodItemList = loadedOrder;
+            itemsByOrdinal = loadedByOrdinal;
+            catalogVersion++;
+            columns = loadedColumns;
+            idIndex = loadedIds;
+            names = loadedNames;
+            brandIndex = loadedBrands;
+            indexes.clear();
+            snapshotOrders = new int[0][];
+            snapshotSize = 0;
+            basePath = filePath;
+            baseIsSnapshot = false;
+            baseLength = loadedBytes[0] - unterminated.length;
+            partialItem = partial;
+            rebuildNameIndex();
+            if (prebuildIndexes) {
+                prebuildIndexes();
+            }
+        }
+        return true;
+
+    }
+
+    /**
+     * Saves the loaded data to a binary snapshot, see CatalogSnapshot:
+     * the items, their names, the nutrient columns, the id index, the name
+     * order and the value order of every nutrient, from which openSnapshot()
+     * restores everything without parsing or sorting. The file is written
+     * under a temporary name and renamed once complete, so an existing
+     * snapshot is never left half written.
+     *
+     * @param filePath path of the snapshot file
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void saveSnapshot(String filePath) throws IOException {
+
+        String tempPath = filePath + ".tmp";
+        int count = itemsByOrdinal.size();
+        try (CatalogSnapshot.Writer out = new CatalogSnapshot.Writer(tempPath)) {
+
+            // Nutrient names by ordinal, the order of the columns
+            out.beginSection(CatalogSnapshot.SCHEMA);
+            out.putInt(NutrientSchema.size());
+            for (int ordinal = 0; ordinal < NutrientSchema.size(); ordinal++) {
+                byte[] name = NutrientSchema.nameOf(ordinal).getBytes(StandardCharsets.UTF_8);
+                out.putInt(name.length);
+                out.putBytes(name, name.length);
+            }
+
+            out.beginSection(CatalogSnapshot.NAMES);
+            names.writeSnapshot(out);
+
+            // Packed ids and name handles by ordinal, then the ids that
+            // could not be packed
+            long[] highs = new long[count];
+            long[] lows = new long[count];
+            int[] handles = new int[count];
+            List<FoodItem> unpacked = new ArrayList<FoodItem>();
+            for (FoodItem item : itemsByOrdinal) {
+                int ordinal = item.getOrdinal();
+                highs[ordinal] = item.idHigh();
+                lows[ordinal] = item.idLow();
+                handles[ordinal] = item.nameHandle();
+                if (!item.hasPackedId()) {
+                    unpacked.add(item);
+                }
+            }
+            out.beginSection(CatalogSnapshot.ITEMS);
+            out.putInt(count);
+            out.putLongs(highs, count);
+            out.putLongs(lows, count);
+            out.putInts(handles, count);
+            out.putInt(unpacked.size());
+            for (FoodItem item : unpacked) {
+                byte[] id = item.getID().getBytes(StandardCharsets.UTF_8);
+                out.putInt(item.getOrdinal());
+                out.putInt(id.length);
+                out.putBytes(id, id.length);
+            }
+
+            out.beginSection(CatalogSnapshot.COLUMNS);
+            columns.writeSnapshot(out);
+
+            // Ordinals in name order
+            int[] nameOrder = new int[foodItemList.size()];
+            for (int i = 0; i < nameOrder.length; i++) {
+                nameOrder[i] = foodItemList.get(i).getOrdinal();
+            }
+            out.beginSection(CatalogSnapshot.NAME_ORDER);
+            out.putInt(nameOrder.length);
+            out.putInts(nameOrder, nameOrder.length);
+
+            out.beginSection(CatalogSnapshot.IDS);
+            idIndex.writeSnapshot(out);
+
+            // Ordinals in value order for every nutrient, the content of its
+            // index
+            out.beginSection(CatalogSnapshot.NUTRIENT_ORDERS);
+            out.putInt(NutrientSchema.size());
+            for (int ordinal = 0; ordinal < NutrientSchema.size(); ordinal++) {
+                int[] rows = columns.sortedRows(ordinal, columns.size());
+                out.putInt(rows.length);
+                out.putInts(rows, rows.length);
+            }
+
+            out.finish();
+        }
+        Files.move(Paths.get(tempPath), Paths.get(filePath), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+    /**
+     * Replaces the loaded data with a snapshot written by saveSnapshot().
+     * Each section of the file is read into memory and its arrays copied out
+     * in bulk; nutrient indexes are built from the stored value orders, without
+     * sorting, the first time a rule needs them.
+     *
+     * @param filePath path of the snapshot file
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be read or is not a snapshot
+     *                     of this version
+     */
+    public void openSnapshot(String filePath) throws IOException {
+
+        try (CatalogSnapshot.Reader in = new CatalogSnapshot.Reader(filePath)) {
+
+            // Current ordinal of every nutrient of the snapshot
+            ByteBuffer schema = in.section(CatalogSnapshot.SCHEMA);
+            int[] nutrientOrdinals = new int[schema.getInt()];
+            for (int i = 0; i < nutrientOrdinals.length; i++) {
+                byte[] name = CatalogSnapshot.getBytes(schema, schema.getInt());
+                nutrientOrdinals[i] = NutrientSchema.register(new String(name, StandardCharsets.UTF_8));
+            }
+
+            NameStore loadedNames = NameStore.readSnapshot(in.section(CatalogSnapshot.NAMES));
+            NutrientColumns loadedColumns = NutrientColumns.readSnapshot(
+                    in.section(CatalogSnapshot.COLUMNS), nutrientOrdinals);
+
+            ByteBuffer itemSection = in.section(CatalogSnapshot.ITEMS);
+            int count = itemSection.getInt();
+            long[] highs = CatalogSnapshot.getLongs(itemSection, count);
+            long[] lows = CatalogSnapshot.getLongs(itemSection, count);
+            int[] handles = CatalogSnapshot.getInts(itemSection, count);
+            String[] unpackedIds = new String[count];
+            int unpackedCount = itemSection.getInt();
+            for (int i = 0; i < unpackedCount; i++) {
+                int ordinal = itemSection.getInt();
+                byte[] id = CatalogSnapshot.getBytes(itemSection, itemSection.getInt());
+                unpackedIds[ordinal] = new String(id, StandardCharsets.UTF_8);
+            }
+
+            // Create the items; their nutrients come from the columns
+            List<double[]> presentColumns = new ArrayList<double[]>();
+            List<Integer> presentOrdinals = new ArrayList<Integer>();
+            for (int ordinal = 0; ordinal < NutrientSchema.size(); ordinal++) {
+                if (loadedColumns.column(ordinal) != null) {
+                    presentColumns.add(loadedColumns.column(ordinal));
+                    presentOrdinals.add(ordinal);
+                }
+            }
+            List<FoodItem> loadedByOrdinal = new ArrayList<FoodItem>(count);
+            BrandIndex loadedBrands = new BrandIndex();
+            for (int ordinal = 0; ordinal < count; ordinal++) {
+                loadedBrands.append(loadedNames.brand(handles[ordinal]));
+                FoodItem item = new FoodItem(unpackedIds[ordinal], highs[ordinal], lows[ordinal], null);
+                item.storeName(loadedNames, handles[ordinal]);
+                for (int i = 0; i < presentColumns.size(); i++) {
+                    double value = presentColumns.get(i)[ordinal];
+                    if (!Double.isNaN(value)) {
+                        item.addNutrient(presentOrdinals.get(i), value);
+                    }
+                }
+                item.setOrdinal(ordinal);
+                loadedByOrdinal.add(item);
+            }
+
+            ByteBuffer nameOrder = in.section(CatalogSnapshot.NAME_ORDER);
+            List<FoodItem> loadedItems = new ArrayList<FoodItem>(count);
+            for (int ordinal : CatalogSnapshot.getInts(nameOrder, nameOrder.getInt())) {
+                loadedItems.add(loadedByOrdinal.get(ordinal));
+            }
+
+            IdIndex loadedIds = IdIndex.readSnapshot(in.section(CatalogSnapshot.IDS));
+
+            ByteBuffer orderSection = in.section(CatalogSnapshot.NUTRIENT_ORDERS);
+            int[][] loadedOrders = new int[NutrientSchema.size()][];
+            int orderCount = orderSection.getInt();
+            for (int i = 0; i < orderCount; i++) {
+                loadedOrders[nutrientOrdinals[i]] = CatalogSnapshot.getInts(orderSection,
+                        orderSection.getInt());
+            }
+
+            synchronized (this) {
+                closeLog();
+                unfollowFile();
+                foodItemList = new NameOrderList(loadedItems);
+                itemsByOrdinal = loadedByOrdinal;
+                catalogVersion++;
+                columns = loadedColumns;
+                idIndex = loadedIds;
+                names = loadedNames;
+                brandIndex = loadedBrands;
+                indexes.clear();
+                snapshotOrders = loadedOrders;
+                snapshotSize = count;
+                basePath = filePath;
+                baseIsSnapshot = true;
+                partialItem = null;
+                rebuildNameIndex();
+                if (prebuildIndexes) {
+                    prebuildIndexes();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Replays a write-ahead log on top of the loaded data and logs every
+     * change made from then on, see CatalogLog: food items added, and the
+     * items a merge inserts, updates or deletes. A change is durable once
+     * addFoodItem() or mergeFoodItems() returns. The log is emptied whenever its
+     * edits are folded into the file the data was loaded from, by
+     * compactLog() or in the background once the log grows past 16 MB, and
+     * is closed when another file is loaded.
+     *
+     * @param logPath path of the log file, created if it does not exist
+     * @return number of changes replayed from the log
+     * @throws IOException if the log cannot be read or written
+     */
+    public int openLog(String logPath) throws IOException {
+
+        rowLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                closeLog();
+                List<FoodItem> added = new ArrayList<FoodItem>();
+                Set<FoodItem> removed = Collections.newSetFromMap(new IdentityHashMap<FoodItem, Boolean>());
+                int[] replayed = new int[1];
+                log = new CatalogLog(logPath, (type, payload) -> {
+                    String text = new String(payload, StandardCharsets.UTF_8);
+                    if (type == CatalogLog.REMOVE) {
+                        int ordinal = idIndex.get(text);
+                        if (ordinal >= 0) {
+                            removed.add(itemsByOrdinal.get(ordinal));
+                            deleteItem(ordinal);
+                            replayed[0]++;
+                        }
+                        return;
+                    }
+                    FoodItem item = parseLine(text);
+                    if (item == null) {
+                        return;
+                    }
+                    int ordinal = ordinalOf(idIndex, item);
+                    if (ordinal < 0) {
+                        insertItem(item);
+                        added.add(item);
+                        replayed[0]++;
+                    } else if (type == CatalogLog.UPDATE) {
+                        removed.add(itemsByOrdinal.get(ordinal));
+                        replaceItem(ordinal, item);
+                        added.add(item);
+                        replayed[0]++;
+                    }
+                    // an added item may already be in a base file written by a
+                    // compaction that stopped before emptying the log
+                });
+                updateFoodList(added, removed);
+                dropStaleIndexes();
+                return replayed[0];
+            }
+        } finally {
+            rowLock.writeLock().unlock();
+        }
+
+    }
+
+    /**
+     * Merges a food item data file into the loaded data by id: items with a
+     * new id are inserted, items whose name or nutrients differ replace the
+     * loaded ones and loaded items missing from the file are deleted, as
+     * their own changes to the columns, the id index and the built nutrient
+     * indexes, where the entries of the old items are left as stale. Items
+     * that did not change are left alone. The changes are logged if a log
+     * is open. Queries wait while the changes are made, since a delete
+     * moves the last row into the deleted one.
+     *
+     * @param filePath path of the food item data file, may be gzip-compressed
+     * @return the number of items inserted, updated, deleted and unchanged
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be read or the log written
+     */
+    public MergeResult mergeFoodItems(String filePath) throws IOException {
+
+        // Read the file outside the lock; as in a load, only the first item
+        // with a given id is kept
+        List<FoodItem> incoming = new ArrayList<FoodItem>();
+        IdIndex incomingIds = new IdIndex();
+        CatalogLoader.load(filePath, new NameStore(), item -> {
+            if (putId(incomingIds, item, incoming.size())) {
+                incoming.add(item);
+            }
+        });
+
+        int inserted = 0;
+        int updated = 0;
+        int deleted = 0;
+        int unchanged = 0;
+        long sequence = 0;
+        CatalogLog changeLog;
+        rowLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                changeLog = log;
+                List<FoodItem> added = new ArrayList<FoodItem>();
+                Set<FoodItem> removed = Collections.newSetFromMap(new IdentityHashMap<FoodItem, Boolean>());
+
+                // Insert and update; ordinals past the ones loaded before are
+                // the inserted items
+                boolean[] seen = new boolean[itemsByOrdinal.size()];
+                for (FoodItem item : incoming) {
+                    int ordinal = ordinalOf(idIndex, item);
+                    if (ordinal < 0) {
+                        insertItem(item);
+                        added.add(item);
+                        inserted++;
+                        sequence = logChange(changeLog, CatalogLog.ADD, formatLine(item), sequence);
+                    } else {
+                        seen[ordinal] = true;
+                        FoodItem current = itemsByOrdinal.get(ordinal);
+                        if (sameContent(current, item)) {
+                            unchanged++;
+                        } else {
+                            replaceItem(ordinal, item);
+                            removed.add(current);
+                            added.add(item);
+                            updated++;
+                            sequence = logChange(changeLog, CatalogLog.UPDATE, formatLine(item), sequence);
+                        }
+                    }
+                }
+
+                // Delete from the highest ordinal down: the row moved into a
+                // deleted one always comes from above, where every row is
+                // already checked
+                for (int ordinal = seen.length - 1; ordinal >= 0; ordinal--) {
+                    if (!seen[ordinal]) {
+                        FoodItem current = itemsByOrdinal.get(ordinal);
+                        removed.add(current);
+                        deleteItem(ordinal);
+                        deleted++;
+                        sequence = logChange(changeLog, CatalogLog.REMOVE, current.getID(), sequence);
+                    }
+                }
+
+                updateFoodList(added, removed);
+                dropStaleIndexes();
+            }
+        } finally {
+            rowLock.writeLock().unlock();
+        }
+
+        if (changeLog != null && sequence > 0) {
+            changeLog.sync(sequence);
+        }
+        return new MergeResult(inserted, updated, deleted, unchanged);
+
+    }
+
+    /**
+     * Queues a change in the log, if there is one
+     *
+     * @param changeLog the log, may be null
+     * @param type the record type
+     * @param payload the record payload
+     * @param sequence sequence number of the previous change
+     * @return sequence number of this change
+     */
+    private static long logChange(CatalogLog changeLog, byte type, String payload, long sequence) {
+
+        if (changeLog == null) {
+            return sequence;
+        }
+        return changeLog.append(type, payload.getBytes(StandardCharsets.UTF_8));
+
+    }
+
+    /**
+     * Checks whether two food items have the same name and nutrients
+     *
+     * @param first a food item
+     * @param second another food item
+     * @return true if nothing but their ids could tell them apart
+     */
+    private static boolean sameContent(FoodItem first, FoodItem second) {
+
+        if (!first.getName().equals(second.getName())) {
+            return false;
+        }
+        for (int ordinal = 0; ordinal < NutrientSchema.size(); ordinal++) {
+            if (first.hasNutrient(ordinal) != second.hasNutrient(ordinal)
+                    || Double.compare(first.getNutrientValue(ordinal), second.getNutrientValue(ordinal)) != 0) {
+                return false;
+            }
+        }
+        return true;
+
+    }
+
+    /**
+     * Stops logging added food items, writing out the ones logged so far.
+     *
+     * @throws IOException if the log cannot be written
+     */
+    public synchronized void closeLog() throws IOException {
+
+        if (log != null) {
+            CatalogLog closing = log;
+            log = null;
+            closing.close();
+        }
+
+    }
+
+    /**
+     * Follows the loaded food item data file: rows other programs append to
+     * it are parsed and added as they arrive, within a fraction of a second,
+     * see CatalogTail. Following starts where the load stopped reading and
+     * only costs the appended bytes. Rows with an id already loaded are
+     * skipped. The next load stops it. The log is not compacted into the
+     * file, nor is the file saved over, while it is followed, see
+     * compactLog().
+     *
+     * @param listener told about every batch of added items, may be null
+     * @throws IllegalStateException if no food item data file is loaded
+     * @throws IOException if the file cannot be followed
+     */
+    public synchronized void followFile(AppendListener listener) throws IOException {
+
+        if (basePath == null || baseIsSnapshot) {
+            throw new IllegalStateException("Only a loaded food item data file can be followed");
+        }
+        unfollowFile();
+        long generation = tailGeneration;
+        tail = new CatalogTail(basePath, baseLength, lines -> appendLines(generation, lines, listener));
+
+    }
+
+    /**
+     * Stops following the loaded file, see followFile()
+     *
+     * @throws IOException if the file cannot be let go of
+     */
+    public synchronized void unfollowFile() throws IOException {
+
+        tailGeneration++;
+        if (tail != null) {
+            CatalogTail closing = tail;
+            tail = null;
+            closing.close();
+        }
+
+    }
+
+    /**
+     * Adds the food items of lines appended to the followed file
+     *
+     * @param generation value of tailGeneration when following started
+     * @param lines the lines
+     * @param listener told about the added items, may be null
+     */
+    private void appendLines(long generation, ByteBuffer lines, AppendListener listener) {
+
+        // Parse outside the lock
+        NameStore appendedNames = new NameStore();
+        List<FoodItem> parsed = new ArrayList<FoodItem>();
+        new CatalogParser(appendedNames).parse(lines, parsed::add);
+
+        List<FoodItem> added = new ArrayList<FoodItem>();
+        rowLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                // following stopped, or a load replaced the data
+                if (generation != tailGeneration) {
+                    return;
+                }
+                int base = names.append(appendedNames);
+                List<FoodItem> appended = new ArrayList<FoodItem>();
+                Set<FoodItem> removed = Collections.newSetFromMap(new IdentityHashMap<FoodItem, Boolean>());
+                for (FoodItem item : parsed) {
+                    item.rebaseName(names, base);
+                    if (putId(idIndex, item, itemsByOrdinal.size())) {
+                        appendRow(item);
+                        appended.add(item);
+                        added.add(item);
+                        continue;
+                    }
+                    // the line the load read before its writer was done with it
+                    int ordinal = ordinalOf(idIndex, item);
+                    if (partialItem != null && itemsByOrdinal.get(ordinal) == partialItem
+                            && !sameContent(partialItem, item)) {
+                        replaceItem(ordinal, item);
+                        removed.add(partialItem);
+                        added.add(item);
+                    }
+                }
+                // following started at that line, so it is in the first batch
+                partialItem = null;
+                indexNutrients(appended);
+                updateFoodList(added, removed);
+            }
+        } finally {
+            rowLock.writeLock().unlock();
+        }
+
+        if (listener != null && !added.isEmpty()) {
+            listener.appended(added);
+        }
+
+    }
+
+    /**
+     * Folds the write-ahead log into the file the data was loaded from:
+     * the file is rewritten in its own format, a snapshot or a food item
+     * data file, under a temporary name and renamed over the old one, and
+     * the log is emptied. Edits wait until it is done.
+     *
+     * A followed file is never rewritten: rows its writer appends after the
+     * rename would go to the old file and be lost. The log keeps growing
+     * until following stops.
+     *
+     * @throws IOException if the file or the log cannot be written
+     * @throws IllegalStateException if the data was not loaded from a file
+     *                               or the file is followed
+     */
+    public synchronized void compactLog() throws IOException {
+
+        if (log == null) {
+            return;
+        }
+        if (basePath == null) {
+            throw new IllegalStateException("No file to compact the log into");
+        }
+        if (tail != null) {
+            throw new IllegalStateException("Cannot compact the log into a followed file");
+        }
+        if (baseIsSnapshot) {
+            saveSnapshot(basePath);
+        } else {
+            writeFoodItems(basePath);
+        }
+        log.reset();
+
+    }
+
+
+    /**
+     * Parses one line of a food item data file. Files are loaded with a
+     * CatalogParser, which accepts the same lines.
+     *
+     * @param line line of the form <id>,<name>,<label>,<value>,...
+     * @return the food item, or null if the line does not have an id, a name
+     * and complete pairs whose values are non-negative numbers, or empty for
+     * a nutrient the item does not have
+     */
+    static FoodItem parseLine(String line) {
+
+        // Returns an array of with each comma separated term in its own
+        // element of the array
+        String[] lineSplit = line.split(",", -1);
+
+        // Trailing empty fields are dropped, except one that completes the
+        // last pair: formatLine() ends the line with an empty value when the
+        // last nutrient is absent
+        int fieldCount = lineSplit.length;
+        while (fieldCount > 0 && lineSplit[fieldCount - 1].isEmpty()) {
+            fieldCount--;
+        }
+        if ((fieldCount - FIRST_NUTR_LBL_INDEX) % 2 != 0 && fieldCount < lineSplit.length) {
+            fieldCount++;
+        }
+
+        // Only parse line if it has an id, a name and complete
+        // <label>,<value> pairs
+        if (fieldCount <= FIRST_NUTR_LBL_INDEX
+                || (fieldCount - FIRST_NUTR_LBL_INDEX) % 2 != 0) {
+            return null;
+        }
+
+        FoodItem currItem = new FoodItem(lineSplit[ID_INDEX].trim(), lineSplit[NAME_INDEX].trim());
+
+        // Every value must be empty, for an absent nutrient, or represented
+        // as a double and be non-negative; labels are registered in the
+        // NutrientSchema
+        for (int i = FIRST_NUTR_LBL_INDEX; i < fieldCount; i += 2) {
+            String text = lineSplit[i + 1].trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            try {
+                double value = Double.parseDouble(text);
+                if (!(value >= 0)) {
+                    return null;
+                }
+                currItem.addNutrient(NutrientSchema.register(lineSplit[i].trim().toLowerCase()), value);
+            }
+            // At least one nutrient type's value is not valid
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return currItem;
+
+    }
+
+    /**
+     * Gets all the food items that have name containing the substring.
+     *
+     * @param substring substring to be searched
+     * @return list of filtered food items; if no food item matched, return
+     * empty list
+     */
+    @Override
+    public List<FoodItem> filterByName(String substring) {
+
+        return filterByName(substring, QueryContext.unbounded()).getItems();
+
+    }
+
+    /**
+     * Gets all the food items that have name containing the substring,
+     * stopping early if the context is cancelled or runs past its deadline.
+     *
+     * @param substring substring to be searched
+     * @param context deadline and cancellation state of the query
+     * @return the items found, flagged as incomplete if the query was stopped
+     */
+    public QueryResult<FoodItem> filterByName(String substring, QueryContext context) {
+
+        return filterByName(substring, null, context);
+
+    }
+
+    /**
+     * Gets the food items that have name containing the substring among the
+     * items at some ordinals, found by an earlier search for part of the
+     * substring, see NameSearchSession.
+     *
+     * @param substring substring to be searched
+     * @param within ordinals of the only items to check in ascending order,
+     *               null to check every item
+     * @param context deadline and cancellation state of the query
+     * @return the items found, flagged as incomplete if the query was stopped
+     */
+    QueryResult<FoodItem> filterByName(String substring, int[] within, QueryContext context) {
+
+        rowLock.readLock().lock();
+        try {
+            // List that will hold any instance of FoodItem whose name contains
+            // the substring
+            List<FoodItem> nameFiltered = new ArrayList<FoodItem>();
+
+            // Fold the substring once; names are matched in their stored form
+            byte[] foldedSubstring = NameStore.fold(substring);
+
+            // Lists and name index of the same load
+            List<FoodItem> queryList;
+            List<FoodItem> queryItems;
+            TrigramIndex queryIndex;
+            synchronized (this) {
+                queryList = foodItemList;
+                queryItems = itemsByOrdinal;
+                queryIndex = nameIndex;
+            }
+
+            // Only the names holding every trigram of the substring can match;
+            // without trigrams, or while the index is built, check every name
+            int[] candidates = queryIndex == null ? null : queryIndex.candidates(foldedSubstring);
+            if (within != null && candidates != null) {
+                // keep the ordinals in both, walking the shorter array
+                int[] shorter = within.length <= candidates.length ? within : candidates;
+                int[] longer = shorter == within ? candidates : within;
+                int[] both = shorter.clone();
+                int size = both.length == 0 ? 0 : TrigramIndex.intersect(both, both.length, longer, longer.length);
+                candidates = Arrays.copyOf(both, size);
+            } else if (within != null) {
+                candidates = within;
+            }
+            if (candidates == null) {
+                // For each item in foodItemList
+                for (FoodItem item : queryList) {
+                    if (context.shouldStop()) {
+                        break;
+                    }
+                    // Add item to nameFiltered if there is a match
+                    if (item.nameContains(foldedSubstring)) {
+                        nameFiltered.add(item);
+                    }
+                }
+                return QueryResult.of(nameFiltered, context);
+            }
+
+            int[] hits = new int[candidates.length];
+            for (int ordinal : candidates) {
+                if (context.shouldStop()) {
+                    break;
+                }
+                if (ordinal < queryItems.size()) {
+                    FoodItem item = queryItems.get(ordinal);
+                    if (item.nameContains(foldedSubstring)) {
+                        hits[nameFiltered.size()] = ordinal;
+                        nameFiltered.add(item);
+                    }
+                }
+            }
+
+            return QueryResult.of(inNameOrder(nameFiltered, hits, queryList), context);
+        } finally {
+            rowLock.readLock().unlock();
+        }
+
+    }
+
+    /**
+     * Puts items found by ordinal in name order: sorts a few, or picks many
+     * out of the name-sorted list
+     *
+     * @param found the items
+     * @param ordinals their ordinals, at least as many as items
+     * @param queryList the name-sorted list they were found in
+     * @return the items in name order
+     */
+    private List<FoodItem> inNameOrder(List<FoodItem> found, int[] ordinals, List<FoodItem> queryList) {
+
+        if (found.size() <= queryList.size() / NAME_SORT_SHARE) {
+            sortFoodList(found);
+            return found;
+        }
+        int highest = 0;
+        for (int i = 0; i < found.size(); i++) {
+            highest = Math.max(highest, ordinals[i]);
+        }
+        long[] matched = new long[(highest >> 6) + 1];
+        for (int i = 0; i < found.size(); i++) {
+            matched[ordinals[i] >> 6] |= 1L << ordinals[i];
+        }
+        List<FoodItem> ordered = new ArrayList<FoodItem>(found.size());
+        for (FoodItem item : queryList) {
+            int ordinal = item.getOrdinal();
+            if (ordinal >= 0 && ordinal >> 6 < matched.length && (matched[ordinal >> 6] & 1L << ordinal) != 0) {
+                ordered.add(item);
+            }
+        }
+        return ordered;
+
+    }
+
+    /**
+     * Gets the food items of a brand, the part of their names before the
+     * first '_', from the brand index rather than by looking at every name
+     *
+     * @param brand the brand as written in the names, case sensitive
+     * @return the items in name order, empty if no name has the brand
+     */
+    public List<FoodItem> filterByBrand(String brand) {
+
+        rowLock.readLock().lock();
+        try {
+            List<FoodItem> queryList;
+            List<FoodItem> queryItems;
+            int[] ordinals;
+            synchronized (this) {
+                queryList = foodItemList;
+                queryItems = itemsByOrdinal;
+                ordinals = brandIndex.ordinalsOf(names.findBrand(brand));
+            }
+            List<FoodItem> found = new ArrayList<FoodItem>(ordinals.length);
+            for (int ordinal : ordinals) {
+                found.add(queryItems.get(ordinal));
+            }
+            return inNameOrder(found, ordinals, queryList);
+        } finally {
+            rowLock.readLock().unlock();
+        }
+
+    }
+
+    /**
+     * Counts the items of every brand in the whole catalog, with the
+     * lowest, average and highest value of every nutrient
+     *
+     * @return the brands, most items first
+     */
+    public List<BrandFacet> brandFacets() {
+
+        return brandFacets(null);
+
+    }
+
+    /**
+     * Counts the items of every brand among some items, typically the
+     * result of a filter, with the lowest, average and highest value of
+     * every nutrient. The items are marked in a bitmap of ordinals, which is
+     * then walked once in ordinal order, reading the brand and nutrients of
+     * every marked row from the brand index and the nutrient columns; no
+     * name is looked at.
+     *
+     * @param items the items, null for every item
+     * @return the brands having items among them, most items first, ties in
+     *         brand order
+     */
+    public List<BrandFacet> brandFacets(Collection<FoodItem> items) {
+
+        rowLock.readLock().lock();
+        try {
+            NameStore facetNames;
+            int[] brandCodes;
+            double[][] facetColumns = new double[NutrientSchema.size()][];
+            int rows;
+            synchronized (this) {
+                facetNames = names;
+                brandCodes = brandIndex.codes();
+                rows = columns.size();
+                for (int nutrient = 0; nutrient < facetColumns.length; nutrient++) {
+                    facetColumns[nutrient] = columns.column(nutrient);
+                }
+            }
+
+            long[] marked = new long[(rows + 63) >> 6];
+            if (items == null) {
+                Arrays.fill(marked, -1L);
+            } else {
+                for (FoodItem item : items) {
+                    int ordinal = item.getOrdinal();
+                    if (ordinal >= 0 && ordinal < rows) {
+                        marked[ordinal >> 6] |= 1L << ordinal;
+                    }
+                }
+            }
+
+            // Per brand, slot 0 for no brand: items, and per nutrient the items
+            // having it, lowest, sum and highest
+            int slots = facetNames.brandCount() + 1;
+            int nutrients = facetColumns.length;
+            int[] counts = new int[slots];
+            int[] present = new int[slots * nutrients];
+            double[] min = new double[slots * nutrients];
+            double[] sum = new double[slots * nutrients];
+            double[] max = new double[slots * nutrients];
+            for (int word = 0; word < marked.length; word++) {
+                for (long rest = marked[word]; rest != 0; rest &= rest - 1) {
+                    int ordinal = word << 6 | Long.numberOfTrailingZeros(rest);
+                    if (ordinal >= rows) {
+                        break;
+                    }
+                    int slot = brandCodes[ordinal] + 1;
+                    counts[slot]++;
+                    for (int nutrient = 0; nutrient < nutrients; nutrient++) {
+                        double value = facetColumns[nutrient] == null ? Double.NaN : facetColumns[nutrient][ordinal];
+                        if (Double.isNaN(value)) {
+                            continue;
+                        }
+                        int at = slot * nutrients + nutrient;
+                        if (present[at]++ == 0) {
+                            min[at] = value;
+                            max[at] = value;
+                        } else {
+                            min[at] = Math.min(min[at], value);
+                            max[at] = Math.max(max[at], value);
+                        }
+                        sum[at] += value;
+                    }
+                }
+            }
+
+            List<BrandFacet> facets = new ArrayList<BrandFacet>();
+            for (int slot = 0; slot < slots; slot++) {
+                if (counts[slot] > 0) {
+                    int from = slot * nutrients;
+                    int to = from + nutrients;
+                    facets.add(new BrandFacet(slot == 0 ? "" : facetNames.brandName(slot - 1), counts[slot],
+                            Arrays.copyOfRange(present, from, to), Arrays.copyOfRange(min, from, to),
+                            Arrays.copyOfRange(sum, from, to), Arrays.copyOfRange(max, from, to)));
+                }
+            }
+            facets.sort((a, b) -> a.getCount() != b.getCount() ? Integer.compare(b.getCount(), a.getCount())
+                    : a.getBrand().compareTo(b.getBrand()));
+            return facets;
+        } finally {
+            rowLock.readLock().unlock();
+        }
+
+    }
+
+    /**
+     * Gets the food items whose names best match a query, ranked with BM25
+     * over the terms of the names (see NameTokenizer and TokenIndex). Only
+     * the items containing a query term are scored, and the best k are kept
+     * in a bounded heap. Waits for the term index if it is being built
+     * after a load.
+     *
+     * @param query words to look for, split into terms like the names
+     * @param k most items to return
+     * @return the items, best match first; empty if no name has a term of
+     *         the query
+     */
+    public List<FoodItem> searchNames(String query, int k) {
+
+        TokenIndex queryIndex = awaitTermIndex();
+        rowLock.readLock().lock();
+        try {
+            return itemsAt(queryIndex == null ? new int[0] : queryIndex.search(query, k));
+        } finally {
+            rowLock.readLock().unlock();
+        }
+
+    }
+
+    /**
+     * Gets the food items whose names hold every word of a query, or a word
+     * within a few typos of it, so "choclate" still finds the chocolates.
+     * The words near the query words are found in a BK-tree of the terms of
+     * the names rather than by comparing every name. Waits for the term
+     * index if it is being built after a load.
+     *
+     * @param query words to look for, split into terms like the names
+     * @param maxDistance most single character insertions, deletions and
+     *                    substitutions between a word of the query and the
+     *                    term of a name, 1 or 2 in practice
+     * @param limit most items to return
+     * @return the items, the fewest typos away first
+     * @throws IllegalArgumentException if maxDistance is negative
+     */
+    public List<FoodItem> fuzzySearchNames(String query, int maxDistance, int limit) {
+
+        if (maxDistance < 0) {
+            throw new IllegalArgumentException("Negative edit distance " + maxDistance);
+        }
+        TokenIndex queryIndex = awaitTermIndex();
+        rowLock.readLock().lock();
+        try {
+            return itemsAt(queryIndex == null ? new int[0] : queryIndex.fuzzySearch(query, maxDistance, limit));
+        } finally {
+            rowLock.readLock().unlock();
+        }
+
+    }
+
+    /**
+     * Gets the term index, waiting for its build if it is being built
+     *
+     * @return the index, null if the thread was interrupted while waiting
+     */
+    private TokenIndex awaitTermIndex() {
+
+        while (true) {
+            TokenIndex queryIndex;
+            Future<?> build;
+            synchronized (this) {
+                queryIndex = termIndex;
+                build = nameIndexBuild;
+            }
+            if (queryIndex != null) {
+                return queryIndex;
+            }
+            try {
+                build.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Name index build failed", e.getCause());
+            }
+        }
+
+    }
+
+    /**
+     * Gets the food items at some ordinals. Must hold rowLock for reading.
+     *
+     * @param ordinals the ordinals
+     * @return the items in the same order
+     */
+    private List<FoodItem> itemsAt(int[] ordinals) {
+
+        List<FoodItem> queryItems;
+        synchronized (this) {
+            queryItems = itemsByOrdinal;
+        }
+        List<FoodItem> items = new ArrayList<FoodItem>();
+        for (int ordinal : ordinals) {
+            // the index may be of data a load has replaced since
+            if (ordinal < queryItems.size()) {
+                items.add(queryItems.get(ordinal));
+            }
+        }
+        return items;
+
+    }
+
+    /**
+     * @return a number that changes whenever items are loaded, added,
+     *         replaced or deleted
+     */
+    synchronized long catalogVersion() {
+        return catalogVersion;
+    }
+
+    /**
+     * Gets the first food items in name order whose names start with a
+     * prefix, ignoring case. The name-sorted list holds them next to each
+     * other, so this is a binary search for the first one followed by a
+     * walk over at most n items, fast enough to run on every keystroke.
+     *
+     * @param prefix start of the names
+     * @param n most items to return
+     * @return the items in name order
+     */
+    public List<FoodItem> completeNames(String prefix, int n) {
+
+        byte[] foldedPrefix = NameStore.fold(prefix);
+        List<FoodItem> queryList;
+        synchronized (this) {
+            queryList = foodItemList;
+        }
+
+        int low = 0;
+        int high = queryList.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (queryList.get(middle).comparePrefix(foldedPrefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        List<FoodItem> completions = new ArrayList<FoodItem>();
+        for (int i = low; i < queryList.size() && completions.size() < n; i++) {
+            FoodItem item = queryList.get(i);
+            if (item.comparePrefix(foldedPrefix) != 0) {
+                break;
+            }
+            completions.add(item);
+        }
+        return completions;
+
+    }
+
+    /**
+     * Completes the start of a word with the terms of the names (see
+     * NameTokenizer), the terms in most names first. Returns nothing while
+     * the term index is built after a load, rather than make a keystroke
+     * wait for it.
+     *
+     * @param prefix start of a term
+     * @param n most terms to return
+     * @return the terms, lower case
+     */
+    public List<String> completeTerms(String prefix, int n) {
+
+        rowLock.readLock().lock();
+        try {
+            TokenIndex queryIndex;
+            synchronized (this) {
+                queryIndex = termIndex;
+            }
+            if (queryIndex == null || prefix.isEmpty()) {
+                return new ArrayList<String>();
+            }
+            return queryIndex.complete(prefix, n);
+        } finally {
+            rowLock.readLock().unlock();
+        }
+
+    }
+
+    /**
+     * Gets all the food items that fulfill ALL the provided rules
+     *
+     * Format of a rule:
+     *     "<nutrient> <comparator> <value>"
+     *
+     * Definition of a rule:
+     *     A rule is a string which has three parts separated by a space:
+     *         1. <nutrient>: Name of one of the 5 nutrients [CASE-INSENSITIVE]
+     *         2. <comparator>: One of the following comparison operators: <=, >=, ==
+     *         3. <value>: a double value
+     *
+     * Note:
+     *     1. Multiple rules can contain the same nutrient.
+     *         E.g. ["calories >= 50.0", "calories <= 200.0", "fiber == 2.5"]
+     *     2. A FoodItemADT object MUST satisfy ALL the provided rules
+     *        to be returned in the filtered list.
+     *
+     * @param rules list of rules
+     * @return list of filtered food items; if no food item matched, return
+     * empty list
+     */
+    @Override
+    public List<FoodItem> filterByNutrients(List<String> rules) {
+
+        return filterByNutrients(rules, QueryContext.unbounded()).getItems();
+
     }
 
     /**
-     * Defines ordering for FoodItem objects.
+     * Gets all the food items that fulfill ALL the provided rules, stopping
+     * early if the context is cancelled or runs past its deadline. A partial
+     * result only contains items that satisfy every rule, but may miss some.
      *
-     * @author kevinluangpoomyut
+     * @param rules list of rules, see filterByNutrients(List)
+     * @param context deadline and cancellation state of the query
+     * @return the items found, flagged as incomplete if the query was stopped
      */
-    /*class FoodItemComparator implements Comparator<FoodItem> {
+    public QueryResult<FoodItem> filterByNutrients(List<String> rules, QueryContext context) {
 
-        *//**
-         * Two food items are compared by their name values.
-         *
-         * @param f1 an instance of FoodItem
-         * @param f2 an instance of FoodItem
-         * @return 0 if the names are equal (case insensitive), a negative value
-         * if the first argument comes before the second argument in
-         * alphabetical order, a positive value if the first argument comes
-         * after the second argument in alphabetical order.
-         *//*
-        @Override
-        public int compare(FoodItem f1, FoodItem f2) {
-            return f1.getName().toUpperCase().compareTo(f2.getName().toUpperCase());
+        rowLock.readLock().lock();
+        try {
+            // Holds the food items that fulfill all the applied rules
+            List<FoodItem> nutrFiltered = new ArrayList<FoodItem>();
+
+            // Items and columns of the same load, a load on another thread may
+            // swap them while the query runs
+            List<FoodItem> queryItems;
+            NutrientColumns queryColumns;
+            synchronized (this) {
+                queryItems = itemsByOrdinal;
+                queryColumns = columns;
+            }
+
+            // Parse every rule once, remembering the one expected to match the
+            // fewest items
+            List<NutrientRule> parsedRules = new ArrayList<NutrientRule>();
+            NutrientRule mostSelective = null;
+            double lowestSelectivity = 1;
+            for (String rule : rules) {
+                NutrientRule parsed = NutrientRule.parse(rule);
+                if (parsed.getOrdinal() < 0) {
+                    // no item carries a nutrient that was never registered
+                    return QueryResult.of(nutrFiltered, context);
+                }
+                parsedRules.add(parsed);
+                double selectivity = ColumnScan.estimateSelectivity(queryColumns, parsed);
+                if (mostSelective == null || selectivity < lowestSelectivity) {
+                    mostSelective = parsed;
+                    lowestSelectivity = selectivity;
+                }
+            }
+
+            // Only a rule matching a tiny share of the catalog is worth a tree
+            // lookup. Its index is built in the background the first time such
+            // a rule shows up; until the build is done the columns are scanned.
+            BPTree<Double, FoodItem> tree = null;
+            if (mostSelective != null && lowestSelectivity <= INDEX_MAX_SELECTIVITY) {
+                synchronized (this) {
+                    if (columns == queryColumns) {
+                        tree = indexFor(mostSelective.getOrdinal()).tree;
+                    }
+                }
+            }
+
+            if (tree != null) {
+                // Look the selective rule up, then check the others on the
+                // columns
+                List<FoodItem> candidates = tree.rangeSearch(mostSelective.getValue(),
+                        mostSelective.getComparator(), context);
+                for (FoodItem item : candidates) {
+                    if (context.shouldStop()) {
+                        break;
+                    }
+                    // replaced and deleted items have no ordinal
+                    int ordinal = item.getOrdinal();
+                    if (ordinal >= 0 && matchesAll(queryColumns, ordinal, parsedRules)) {
+                        nutrFiltered.add(item);
+                    }
+                }
+            } else {
+                // Scan the columns and collect the selected items
+                long[] selection = ColumnScan.scan(queryColumns, parsedRules, context);
+                for (int word = 0; word < selection.length; word++) {
+                    long bits = selection[word];
+                    while (bits != 0) {
+                        nutrFiltered.add(queryItems.get((word << 6) + Long.numberOfTrailingZeros(bits)));
+                        bits &= bits - 1;
+                    }
+                }
+            }
+
+            // Sort the list with all the rules applied
+            sortFoodList(nutrFiltered);
+
+            return QueryResult.of(nutrFiltered, context);
+        } finally {
+            rowLock.readLock().unlock();
         }
 
-    }*/
+    }
 
     /**
-     * Loads data from a .csv or .txt file.
+     * Checks an item against every rule using the nutrient columns
      *
-     * @param filePath path of the food item data file
+     * @param itemColumns nutrient columns holding the item
+     * @param ordinal ordinal of the item
+     * @param rules rules to check
+     * @return true if the item satisfies all the rules
+     */
+    private static boolean matchesAll(NutrientColumns itemColumns, int ordinal, List<NutrientRule> rules) {
+        for (NutrientRule rule : rules) {
+            if (!rule.matches(itemColumns.get(ordinal, rule.getOrdinal()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a food item to the loaded data.
+     *
+     * @param foodItem the food item instance to be added
      */
     @Override
-    public void loadFoodItems(String filePath) {
+    public void addFoodItem(FoodItem foodItem) {
 
+        long sequence;
+        CatalogLog itemLog;
+        rowLock.writeLock().lock();
         try {
+            synchronized (this) {
+                insertItem(foodItem);
 
-            // Input stream
-            BufferedReader input = new BufferedReader(new FileReader(filePath));
+                // Keep the list sorted, in logarithmic time; the list queries
+                // may be reading is left as it is
+                foodItemList = foodItemList.inserting(foodItem);
 
-            // Clear current list (after file load, because we don't want to clear
-            // out the list if the file is invalid or unable to be loaded)
-            foodItemList = null;
-
-            // Explicitly alters the reference to a new list
-            foodItemList = new ArrayList<FoodItem>();
+                itemLog = log;
+                if (itemLog == null) {
+                    return;
+                }
+                sequence = itemLog.append(CatalogLog.ADD,
+                        formatLine(foodItem).getBytes(StandardCharsets.UTF_8));
+                if (itemLog.size() > LOG_COMPACTION_BYTES && basePath != null && tail == null
+                        && !compactionScheduled) {
+                    compactionScheduled = true;
+                    LOG_COMPACTOR.submit(this::compactInBackground);
+                }
+            }
+        } finally {
+            rowLock.writeLock().unlock();
+        }
 
-            // Holds current line being parsed
-            String currLine;
+        // Wait for the disk outside the lock, so items added at the same
+        // time share one sync
+        try {
+            itemLog.sync(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not log food item " + foodItem.getID(), e);
+        }
 
-            // Is the resulting String array after fields have been separated out
-            String[] lineSplit;
+    }
 
-            // Format of line is acceptable or not
-            boolean formatMatch = true;
+    /**
+     * Compacts the log on the compactor thread, see compactLog()
+     */
+    private void compactInBackground() {
 
-            try {
+        try {
+            synchronized (this) {
+                // following may have started since it was scheduled
+                if (tail == null) {
+                    compactLog();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                compactionScheduled = false;
+            }
+        }
 
-                // While there is a line to read form the input file
-                while ((currLine = input.readLine()) != null) {
-
-                    // Returns an array of with each comma separated term in its own
-                    // element of the array
-                    lineSplit = currLine.split(",");
-                    // Set or reset boolean to true, if format is not matched, boolean
-                    // is set to false
-                    formatMatch = true;
-
-                    // Only parse line if the split function returned a non-zero
-                    // length array
-                    if (lineSplit != null && lineSplit.length > 0) {
-
-                        // Code in try block is to check if the nutrient values parsed
-                        // are valid ones: can be represented as a double, and is a
-                        // non-negative value
-                        try {
-                            Double.parseDouble(lineSplit[NUTR1_VAL_INDEX].trim());
-                            Double.parseDouble(lineSplit[NUTR2_VAL_INDEX].trim());
-                            Double.parseDouble(lineSplit[NUTR3_VAL_INDEX].trim());
-                            Double.parseDouble(lineSplit[NUTR4_VAL_INDEX].trim());
-                            Double.parseDouble(lineSplit[NUTR5_VAL_INDEX].trim());
-                            if (   !(Double.parseDouble(lineSplit[NUTR1_VAL_INDEX].trim()) >= 0
-                                    && Double.parseDouble(lineSplit[NUTR2_VAL_INDEX].trim()) >= 0
-                                    && Double.parseDouble(lineSplit[NUTR3_VAL_INDEX].trim()) >= 0
-                                    && Double.parseDouble(lineSplit[NUTR4_VAL_INDEX].trim()) >= 0
-                                    && Double.parseDouble(lineSplit[NUTR5_VAL_INDEX].trim()) >= 0)   ) {
-                                throw new Exception();
-                            }
-                        }
-                        // Boolean set to false because at least one nutrient type's
-                        // value is not valid
-                        catch (Exception e) {
-                            formatMatch = false;
-                        }
+    }
 
-                        // If format of line parsed is valid, we proceed to create the
-                        // FoodItem with its information
-                        if (formatMatch) {
-                            // Instance of FoodItem to be added to foodItemList
-                            FoodItem currItem = new FoodItem(lineSplit[ID_INDEX].trim(), lineSplit[NAME_INDEX].trim());
-                            currItem.addNutrient(lineSplit[NUTR1_LBL_INDEX].trim().toLowerCase(), Double.parseDouble(lineSplit[NUTR1_VAL_INDEX].trim()));
-                            currItem.addNutrient(lineSplit[NUTR2_LBL_INDEX].trim().toLowerCase(), Double.parseDouble(lineSplit[NUTR2_VAL_INDEX].trim()));
-                            currItem.addNutrient(lineSplit[NUTR3_LBL_INDEX].trim().toLowerCase(), Double.parseDouble(lineSplit[NUTR3_VAL_INDEX].trim()));
-                            currItem.addNutrient(lineSplit[NUTR4_LBL_INDEX].trim().toLowerCase(), Double.parseDouble(lineSplit[NUTR4_VAL_INDEX].trim()));
-                            currItem.addNutrient(lineSplit[NUTR5_LBL_INDEX].trim().toLowerCase(), Double.parseDouble(lineSplit[NUTR5_VAL_INDEX].trim()));
-                            // FoodItem is added to list
-                            foodItemList.add(currItem);
-                            // Add the FoodItem with its nutrients to its respective B+ trees
-                            indexes.get(lineSplit[NUTR1_LBL_INDEX].trim().toLowerCase()).insert(Double.parseDouble(lineSplit[NUTR1_VAL_INDEX].trim()), currItem);
-                            indexes.get(lineSplit[NUTR2_LBL_INDEX].trim().toLowerCase()).insert(Double.parseDouble(lineSplit[NUTR2_VAL_INDEX].trim()), currItem);
-                            indexes.get(lineSplit[NUTR3_LBL_INDEX].trim().toLowerCase()).insert(Double.parseDouble(lineSplit[NUTR3_VAL_INDEX].trim()), currItem);
-                            indexes.get(lineSplit[NUTR4_LBL_INDEX].trim().toLowerCase()).insert(Double.parseDouble(lineSplit[NUTR4_VAL_INDEX].trim()), currItem);
-                            indexes.get(lineSplit[NUTR5_LBL_INDEX].trim().toLowerCase()).insert(Double.parseDouble(lineSplit[NUTR5_VAL_INDEX].trim()), currItem);
-                            // Reset value
-                            currItem = null;
-                        }
+    /**
+     * Adds food items to the loaded data as one batch: the nutrient values
+     * of each built index are sorted once and merged into its B+ tree, the
+     * name-sorted list is merged with the items in one pass, and the log is
+     * written once. The items are added all at once or, if any id is taken,
+     * not at all.
+     *
+     * @param foodItems the food items to be added
+     * @throws IllegalArgumentException if an id is already loaded or given
+     *                                  twice
+     */
+    @Override
+    public void addFoodItems(Collection<FoodItem> foodItems) {
 
+        List<FoodItem> added = new ArrayList<FoodItem>(foodItems);
+        long sequence = 0;
+        CatalogLog itemLog;
+        rowLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                IdIndex addedIds = new IdIndex();
+                for (int i = 0; i < added.size(); i++) {
+                    FoodItem item = added.get(i);
+                    if (ordinalOf(idIndex, item) >= 0 || !putId(addedIds, item, i)) {
+                        throw new IllegalArgumentException("A food item with id " + item.getID()
+                                + " already exists");
                     }
+                }
+                for (FoodItem item : added) {
+                    putId(idIndex, item, itemsByOrdinal.size());
+                    appendRow(item);
+                }
+                indexNutrients(added);
+                updateFoodList(added, Collections.<FoodItem>emptySet());
+
+                itemLog = log;
+                if (itemLog == null || added.isEmpty()) {
+                    return;
+                }
+                for (FoodItem item : added) {
+                    sequence = itemLog.append(CatalogLog.ADD, formatLine(item).getBytes(StandardCharsets.UTF_8));
+                }
+                if (itemLog.size() > LOG_COMPACTION_BYTES && basePath != null && tail == null
+                        && !compactionScheduled) {
+                    compactionScheduled = true;
+                    LOG_COMPACTOR.submit(this::compactInBackground);
+                }
+            }
+        } finally {
+            rowLock.writeLock().unlock();
+        }
+
+        // One sync for the whole batch
+        try {
+            itemLog.sync(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not log " + added.size() + " food items", e);
+        }
+
+    }
+
+    /**
+     * Adds a food item to the columns, names, id index and built indexes,
+     * but not to the name-sorted list. Must hold rowLock for writing and
+     * the FoodData lock.
+     *
+     * @param foodItem the food item
+     * @throws IllegalArgumentException if an item with the same id exists
+     */
+    private void insertItem(FoodItem foodItem) {
 
-                    // Reset value
-                    lineSplit = null;
+        // Ids are unique within the loaded data
+        if (!putId(idIndex, foodItem, itemsByOrdinal.size())) {
+            throw new IllegalArgumentException("A food item with id " + foodItem.getID()
+                    + " already exists");
+        }
+        appendRow(foodItem);
+
+        // Add nutrient values to the B+ trees built so far; indexes still
+        // waiting for their build will pick the item up from the list
+        for (NutrientIndex index : indexes.values()) {
+            if (index.tree != null && foodItem.hasNutrient(index.ordinal)) {
+                index.tree.insert(foodItem.getNutrientValue(index.ordinal), foodItem);
+            }
+        }
+
+    }
+
+    /**
+     * Adds a food item whose id was just put in the id index to the columns,
+     * names, brand index and name indexes, but not to the nutrient indexes
+     * or the name-sorted list. Must hold rowLock for writing and the
+     * FoodData lock.
+     *
+     * @param foodItem the food item
+     */
+    private void appendRow(FoodItem foodItem) {
+
+        itemsByOrdinal.add(foodItem);
+        foodItem.setOrdinal(columns.append(foodItem));
+        catalogVersion++;
+        foodItem.moveName(names);
+        brandIndex.append(names.brand(foodItem.nameHandle()));
+        if (nameIndex != null) {
+            indexName(nameIndex, names, foodItem, foodItem.getOrdinal(), new byte[0]);
+        }
+        if (termIndex != null) {
+            termIndex.add(foodItem.getOrdinal(), foodItem.getName());
+        }
+
+    }
+
+    /**
+     * Adds the nutrient values of appended items to the B+ trees built so
+     * far, sorting the values of each nutrient once and merging them in;
+     * indexes still waiting for their build will pick the items up from the
+     * list. Must hold rowLock for writing and the FoodData lock.
+     *
+     * @param added the items, already appended
+     */
+    private void indexNutrients(List<FoodItem> added) {
 
+        for (NutrientIndex index : indexes.values()) {
+            if (index.tree == null) {
+                continue;
+            }
+            int nutrient = index.ordinal;
+            List<FoodItem> having = new ArrayList<FoodItem>(added.size());
+            for (FoodItem item : added) {
+                if (item.hasNutrient(nutrient)) {
+                    having.add(item);
                 }
+            }
+            having.sort(Comparator.comparingDouble(item -> item.getNutrientValue(nutrient)));
+            List<Double> keys = new ArrayList<Double>(having.size());
+            for (FoodItem item : having) {
+                keys.add(item.getNutrientValue(nutrient));
+            }
+            index.tree.insertAll(keys, having);
+        }
 
-                // Sort list alphabetically
-                sortFoodList(foodItemList);
+    }
 
+    /**
+     * Replaces the food item at an ordinal by one with the same id, in the
+     * columns and built indexes but not in the name-sorted list. Must hold
+     * rowLock for writing and the FoodData lock.
+     *
+     * @param ordinal ordinal of the item to replace
+     * @param replacement the new item
+     */
+    private void replaceItem(int ordinal, FoodItem replacement) {
+
+        FoodItem current = itemsByOrdinal.get(ordinal);
+        if (current.getName().equals(replacement.getName())) {
+            replacement.storeName(names, current.nameHandle());
+        } else {
+            replacement.moveName(names);
+            if (nameIndex != null) {
+                indexName(nameIndex, names, replacement, ordinal, new byte[0]);
+                nameIndexStale++;
             }
-            catch (IOException e) {
-                e.getClass();
-                e.getMessage();
-                e.printStackTrace();
+            if (termIndex != null) {
+                termIndex.remove(ordinal, current.getName());
+                termIndex.add(ordinal, replacement.getName());
             }
         }
-        catch (FileNotFoundException e) {
-            System.out.println("The file: '" + filePath + "' does not exist.");
+
+        for (NutrientIndex index : indexes.values()) {
+            if (index.tree != null) {
+                if (current.hasNutrient(index.ordinal)) {
+                    index.staleEntries++;
+                }
+                if (replacement.hasNutrient(index.ordinal)) {
+                    index.tree.insert(replacement.getNutrientValue(index.ordinal), replacement);
+                }
+            }
         }
+        for (int nutrient = 0; nutrient < NutrientSchema.size(); nutrient++) {
+            columns.set(ordinal, nutrient, replacement.hasNutrient(nutrient)
+                    ? replacement.getNutrientValue(nutrient) : Double.NaN);
+        }
+        brandIndex.set(ordinal, names.brand(replacement.nameHandle()));
 
-    }
+        itemsByOrdinal.set(ordinal, replacement);
+        replacement.setOrdinal(ordinal);
+        current.setOrdinal(-1);
+        // the value orders of the snapshot no longer match the columns
+        snapshotOrders = new int[0][];
+        rowChanges++;
+        catalogVersion++;
 
+    }
 
     /**
-     * Gets all the food items that have name containing the substring.
+     * Deletes the food item at an ordinal from the columns, id index and
+     * built indexes but not from the name-sorted list. The last item moves
+     * into its ordinal so the ordinals stay contiguous. Must hold rowLock
+     * for writing and the FoodData lock.
      *
-     * @param substring substring to be searched
-     * @return list of filtered food items; if no food item matched, return
-     * empty list
+     * @param ordinal ordinal of the item to delete
      */
-    @Override
-    public List<FoodItem> filterByName(String substring) {
+    private void deleteItem(int ordinal) {
 
-        // List that will hold any instance of FoodItem whose name contains the
-        // substring
-        List<FoodItem> nameFiltered = new ArrayList<FoodItem>();
+        FoodItem current = itemsByOrdinal.get(ordinal);
+        for (NutrientIndex index : indexes.values()) {
+            if (index.tree != null && current.hasNutrient(index.ordinal)) {
+                index.staleEntries++;
+            }
+        }
+        removeId(idIndex, current);
+        if (termIndex != null) {
+            termIndex.remove(ordinal, current.getName());
+        }
 
-        // For each item in foodItemList
-        for (FoodItem item : foodItemList) {
-            // Add item to nameFiltered if there is a match
-            if (item.getName().toLowerCase().contains(substring.toLowerCase())) {
-                nameFiltered.add(item);
+        int moved = columns.removeRow(ordinal);
+        brandIndex.removeRow(ordinal);
+        FoodItem last = itemsByOrdinal.remove(moved);
+        if (moved != ordinal) {
+            itemsByOrdinal.set(ordinal, last);
+            last.setOrdinal(ordinal);
+            removeId(idIndex, last);
+            putId(idIndex, last, ordinal);
+            if (nameIndex != null) {
+                indexName(nameIndex, names, last, ordinal, new byte[0]);
+            }
+            if (termIndex != null) {
+                termIndex.remove(moved, last.getName());
+                termIndex.add(ordinal, last.getName());
             }
         }
+        nameIndexStale++;
+        current.setOrdinal(-1);
+        snapshotOrders = new int[0][];
+        rowChanges++;
+        catalogVersion++;
+
+    }
 
-        return nameFiltered;
+    /**
+     * Drops the built nutrient indexes holding too many stale entries, they
+     * are rebuilt the next time they are needed, and rebuilds the name index
+     * if it holds too many. Must hold the FoodData lock.
+     */
+    private void dropStaleIndexes() {
+
+        Iterator<NutrientIndex> it = indexes.values().iterator();
+        while (it.hasNext()) {
+            NutrientIndex index = it.next();
+            if (index.tree != null && index.staleEntries > INDEX_MAX_STALE_SHARE * columns.size()) {
+                it.remove();
+            }
+        }
+        if (nameIndexStale > INDEX_MAX_STALE_SHARE * columns.size()) {
+            rebuildNameIndex();
+        }
 
     }
 
     /**
-     * Gets all the food items that fulfill ALL the provided rules
-     *
-     * Format of a rule:
-     *     "<nutrient> <comparator> <value>"
-     *
-     * Definition of a rule:
-     *     A rule is a string which has three parts separated by a space:
-     *         1. <nutrient>: Name of one of the 5 nutrients [CASE-INSENSITIVE]
-     *         2. <comparator>: One of the following comparison operators: <=, >=, ==
-     *         3. <value>: a double value
+     * Applies changes to the name-sorted list in one pass, keeping it
+     * sorted without sorting it again. The merged list replaces the old
+     * one, which queries and callers of getAllFoodItems() may still be
+     * reading without the lock, so it is never changed in place. Must hold
+     * the FoodData lock.
      *
-     * Note:
-     *     1. Multiple rules can contain the same nutrient.
-     *         E.g. ["calories >= 50.0", "calories <= 200.0", "fiber == 2.5"]
-     *     2. A FoodItemADT object MUST satisfy ALL the provided rules
-     *        to be returned in the filtered list.
-     *
-     * @param rules list of rules
-     * @return list of filtered food items; if no food item matched, return
-     * empty list
+     * @param added items to add, in any order
+     * @param removed items to take out; those among the added ones are not
+     *                added
      */
-    @Override
-    public List<FoodItem> filterByNutrients(List<String> rules) {
+    private void updateFoodList(List<FoodItem> added, Set<FoodItem> removed) {
 
-        // Holds the food items that fulfill all the applied rules
-        List<FoodItem> nutrFiltered = new ArrayList<FoodItem>();
-
-        // An array that holds the individual components of a rule
-        String[] ruleSplit = new String[3];
-
-        // A list of food item lists that satisfy each rule
-        ArrayList<List<FoodItem>> filterResults = new ArrayList<List<FoodItem>>();
-
-        String nutrient;      // represents nutrient component of a rule
-        String comparator;    // represents comparator component of a rule
-        Double value;         // represents value component of a rule
-
-        // For each rule listed
-        for (int i = 0; i < rules.size(); i++) {
-            // Populate ruleSplit with the rule split by a whitespace
-            ruleSplit = rules.get(i).split(" ");
-            // Initialize variables associated with components of rules
-            nutrient = ruleSplit[0];
-            comparator = ruleSplit[1];
-            value = Double.parseDouble(ruleSplit[2]);
-            filterResults.add(indexes.get(nutrient).rangeSearch(value, comparator));
-            nutrient = null;
-            comparator = null;
-            value = 0.0;
-        }
-
-        // Set nutrFiltered to list of filtered items from first rule applied
-        nutrFiltered = filterResults.get(0);
-
-        // For each list produced from the rules applied, we apply the intersect
-        // between nutrFiltered and the next list until all the lists have been
-        // compared
-        for (int i = 0; i < filterResults.size(); i++) {
-            if (i == filterResults.size() - 1) {
-                break;
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        List<FoodItem> sortedAdded = new ArrayList<FoodItem>(added.size());
+        for (FoodItem item : added) {
+            if (!removed.contains(item)) {
+                sortedAdded.add(item);
+            }
+        }
+        sortFoodList(sortedAdded);
+
+        // a few items go into a copy of the touched leaves only
+        if (removed.isEmpty() && (long) sortedAdded.size() * LIST_MERGE_DIVISOR < foodItemList.size()) {
+            foodItemList = foodItemList.insertingAll(sortedAdded);
+            return;
+        }
+
+        List<FoodItem> merged = new ArrayList<FoodItem>(foodItemList.size() + sortedAdded.size());
+        int next = 0;
+        for (FoodItem item : foodItemList) {
+            if (removed.contains(item)) {
+                continue;
+            }
+            while (next < sortedAdded.size() && FoodItem.compareNames(sortedAdded.get(next), item) < 0) {
+                merged.add(sortedAdded.get(next++));
             }
-            nutrFiltered.retainAll(filterResults.get(i + 1));
+            merged.add(item);
         }
+        merged.addAll(sortedAdded.subList(next, sortedAdded.size()));
+        foodItemList = new NameOrderList(merged);
+
+    }
+
+    /**
+     * Gets the food item with the given id.
+     *
+     * @param id id of the food item
+     * @return the food item, or null if there is none with that id
+     */
+    public synchronized FoodItem getById(String id) {
+
+        int ordinal = idIndex.get(id);
+        return ordinal < 0 ? null : itemsByOrdinal.get(ordinal);
+
+    }
 
-        // Sort the list with all the rules applied
-        sortFoodList(nutrFiltered);
+    /**
+     * Generates an id that no loaded food item has yet.
+     *
+     * @return a 24 hex digit id
+     */
+    public synchronized String nextId() {
 
-        return nutrFiltered;
+        String id = idGenerator.next();
+        // the generator never repeats itself, but a loaded file may already
+        // hold an id it produces
+        while (idIndex.get(id) >= 0) {
+            id = idGenerator.next();
+        }
+        return id;
 
     }
 
+    /**
+     * Adds the id of an item to an id index, using the packed form when
+     * there is one so the id is not parsed again.
+     *
+     * @param ids the id index
+     * @param item the item
+     * @param ordinal ordinal of the item
+     * @return false if the id was already in the index
+     */
+    private static boolean putId(IdIndex ids, FoodItem item, int ordinal) {
+
+        if (item.hasPackedId()) {
+            return ids.putIfAbsent(item.idHigh(), item.idLow(), ordinal);
+        }
+        return ids.putIfAbsent(item.getID(), ordinal);
+
+    }
 
     /**
-     * Adds a food item to the loaded data.
+     * Looks the id of an item up in an id index, using the packed form when
+     * there is one.
      *
-     * @param foodItem the food item instance to be added
+     * @param ids the id index
+     * @param item the item
+     * @return the ordinal mapped to its id, -1 if there is none
      */
-    @Override
-    public void addFoodItem(FoodItem foodItem) {
+    private static int ordinalOf(IdIndex ids, FoodItem item) {
 
-        // Add foodItem passed as an argument into the food list
-        foodItemList.add(foodItem);
+        if (item.hasPackedId()) {
+            return ids.get(item.idHigh(), item.idLow());
+        }
+        return ids.get(item.getID());
+
+    }
 
-        // Add nutrient values to its respective B+ tree
-        indexes.get("calories").insert(foodItem.getNutrientValue("calories"), foodItem);
-        indexes.get("fat").insert(foodItem.getNutrientValue("fat"), foodItem);
-        indexes.get("carbohydrate").insert(foodItem.getNutrientValue("carbohydrate"), foodItem);
-        indexes.get("fiber").insert(foodItem.getNutrientValue("fiber"), foodItem);
-        indexes.get("protein").insert(foodItem.getNutrientValue("protein"), foodItem);
+    /**
+     * Removes the id of an item from an id index.
+     *
+     * @param ids the id index
+     * @param item the item
+     */
+    private static void removeId(IdIndex ids, FoodItem item) {
 
-        // Sort list since update to the list has been made
-        sortFoodList(foodItemList);
+        if (item.hasPackedId()) {
+            ids.remove(item.idHigh(), item.idLow());
+        } else {
+            ids.remove(item.getID());
+        }
 
     }
 
@@ -348,51 +2396,83 @@ public class FoodData implements FoodDataADT<FoodItem> {
     }
 
     /**
-     * Save the list of food items in ascending order by name.
+     * Save the list of food items in ascending order by name. A file name
+     * ending in .gz is gzip-compressed. The file is replaced only once it is
+     * completely written.
+     *
+     * A followed file is never saved over, for the same reason as in
+     * compactLog(): rows its writer appends after the rename would go to the
+     * old file and be lost. Following has to be stopped first.
      *
      * @param filename name of the file where the data needs to be saved
+     * @throws IllegalStateException if the file is followed
      */
     @Override
     public void saveFoodItems(String filename) {
 
         try {
+            writeFoodItems(filename);
+        } catch (FileNotFoundException e) {
+            System.out.println("ERROR: FileNotFoundException was thrown trying to "
+                    + "save food items to a file.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-            // Instance of PrintWriter
-            PrintWriter pwrite = new PrintWriter(new File(filename));
-            // Instance of StringBuilder
-            StringBuilder sbuild = new StringBuilder();
+    }
+
+    /**
+     * Writes the list of food items in ascending order by name, one line per
+     * item as formatted by formatLine(), streaming them through a
+     * CatalogWriter. A file name ending in .gz is gzip-compressed. The file
+     * is only replaced once it is completely written and on the disk.
+     *
+     * @param filename name of the file
+     * @throws FileNotFoundException if the file cannot be created
+     * @throws IOException if the file cannot be written
+     * @throws IllegalStateException if the file is followed
+     */
+    private synchronized void writeFoodItems(String filename) throws IOException {
 
-            // Assembles the line for each food item to be outputted to the file
+        if (tail != null && Files.exists(Paths.get(filename))
+                && Files.isSameFile(Paths.get(filename), Paths.get(basePath))) {
+            throw new IllegalStateException("Cannot save over a followed file");
+        }
+        try (CatalogWriter writer = new CatalogWriter(filename, filename.endsWith(".gz"))) {
             for (FoodItem foodItem : foodItemList) {
-                sbuild.append(foodItem.getID());
-                sbuild.append(",");
-                sbuild.append(foodItem.getName());
-                sbuild.append(",");
-                sbuild.append("calories,");
-                sbuild.append(foodItem.getNutrientValue("calories"));
-                sbuild.append(",");
-                sbuild.append("fat,");
-                sbuild.append(foodItem.getNutrientValue("fat"));
-                sbuild.append(",");
-                sbuild.append("carbohydrate,");
-                sbuild.append(foodItem.getNutrientValue("carbohydrate"));
-                sbuild.append(",");
-                sbuild.append("fiber,");
-                sbuild.append(foodItem.getNutrientValue("fiber"));
-                sbuild.append(",");
-                sbuild.append("protein,");
-                sbuild.append(foodItem.getNutrientValue("protein"));
-                sbuild.append("\n");
+                writer.write(foodItem);
             }
+            writer.commit();
+        }
 
-            pwrite.write(sbuild.toString());
-            // Close resources
-            pwrite.close();
+    }
 
-        } catch (FileNotFoundException e) {
-            System.out.println("ERROR: FileNotFoundException was thrown trying to "
-                    + "save food items to a file.");
+    /**
+     * Formats a food item as a line of a food item data file, the inverse of
+     * parseLine(). The five core nutrients are always written, with an empty
+     * value if the item does not have them, so that parseLine() reads them
+     * back as absent; other nutrients only if the item carries them.
+     *
+     * @param foodItem the food item
+     * @return the line, without line break
+     */
+    static String formatLine(FoodItem foodItem) {
+
+        StringBuilder sbuild = new StringBuilder();
+        sbuild.append(foodItem.getID());
+        sbuild.append(",");
+        sbuild.append(foodItem.getName());
+        for (int ordinal = 0; ordinal < NutrientSchema.size(); ordinal++) {
+            if (ordinal < NutrientSchema.CORE_COUNT || foodItem.hasNutrient(ordinal)) {
+                sbuild.append(",");
+                sbuild.append(NutrientSchema.nameOf(ordinal));
+                sbuild.append(",");
+                if (foodItem.hasNutrient(ordinal)) {
+                    sbuild.append(foodItem.getNutrientValue(ordinal));
+                }
+            }
         }
+        return sbuild.toString();
 
     }
 
@@ -417,7 +2497,7 @@ public class FoodData implements FoodDataADT<FoodItem> {
         // Sort list passed as an argument
         Collections.sort(listFood, FOOD_ITEM_COMPARATOR);*/
       
-      Collections.sort(listFood, (f1, f2) -> f1.getName().toUpperCase().compareTo(f2.getName().toUpperCase()));
+      Collections.sort(listFood, (f1, f2) -> FoodItem.compareNames(f1, f2));
 
     }
     
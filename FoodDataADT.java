@@ -6,6 +6,7 @@
  *
  */
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -91,6 +92,13 @@ public interface FoodDataADT<F extends FoodItem> {
      */
     public void addFoodItem(FoodItem foodItem);
 
+
+    /**
+     * Adds food items to the loaded data as one batch.
+     * @param foodItems the food item instances to be added
+     */
+    public void addFoodItems(Collection<FoodItem> foodItems);
+
     
     /**
      * Gets the list of all food items.
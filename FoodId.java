@@ -0,0 +1,138 @@
+/**
+ * Filename:   FoodId.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.security.SecureRandom;
+
+/**
+ * Packs food item ids of 24 lower case hex digits (96 bits, e.g.
+ * 556540ff5d613c9d5f5935a9) into two longs and generates new ones.
+ *
+ * The high long holds the first 8 digits (32 bits), the low long the last
+ * 16 digits. Ids in any other form cannot be packed and are kept as
+ * Strings by the callers.
+ */
+public class FoodId {
+
+    // Number of hex digits in a packed id
+    public static final int HEX_LENGTH = 24;
+
+    // Hex digits of the high long
+    private static final int HIGH_DIGITS = 8;
+
+    // Digits used when formatting
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    // High long of the last id generated
+    private long high;
+
+    // Low long of the last id generated
+    private long low;
+
+    // Source of the random part of the ids
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Checks whether an id can be packed
+     *
+     * @param id the id
+     * @return true if it is exactly 24 lower case hex digits
+     */
+    public static boolean isPackable(String id) {
+        if (id == null || id.length() != HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            char c = id.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the high long of a packable id
+     *
+     * @param id a packable id
+     * @return its first 32 bits
+     */
+    public static long high(String id) {
+        return parseHex(id, 0, HIGH_DIGITS);
+    }
+
+    /**
+     * Gets the low long of a packable id
+     *
+     * @param id a packable id
+     * @return its last 64 bits
+     */
+    public static long low(String id) {
+        return parseHex(id, HIGH_DIGITS, HEX_LENGTH);
+    }
+
+    /**
+     * Formats a packed id
+     *
+     * @param high the high long
+     * @param low the low long
+     * @return the 24 hex digit id
+     */
+    public static String toString(long high, long low) {
+        char[] chars = new char[HEX_LENGTH];
+        for (int i = HIGH_DIGITS - 1; i >= 0; i--) {
+            chars[i] = DIGITS[(int) (high & 0xF)];
+            high >>>= 4;
+        }
+        for (int i = HEX_LENGTH - 1; i >= HIGH_DIGITS; i--) {
+            chars[i] = DIGITS[(int) (low & 0xF)];
+            low >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Parses hex digits into a long
+     *
+     * @param id the id
+     * @param from first digit
+     * @param to digit after the last one
+     * @return the value
+     */
+    private static long parseHex(String id, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = (value << 4) | Character.digit(id.charAt(i), 16);
+        }
+        return value;
+    }
+
+    /**
+     * Generates a new id. Ids are strictly increasing for a generator: the
+     * high long is the current time in seconds and the low long starts at
+     * a random value every second and is incremented for every id handed
+     * out in that second. The random start makes clashes between
+     * generators in different programs unlikely.
+     *
+     * @return the new 24 hex digit id
+     */
+    public synchronized String next() {
+        long seconds = (System.currentTimeMillis() / 1000) & 0xFFFFFFFFL;
+        if (seconds > high) {
+            high = seconds;
+            // leave the low 24 bits for the per second counter
+            low = random.nextLong() & ~0xFFFFFFL;
+        } else {
+            low++;
+            if (low == 0) {
+                // the low long wrapped around, borrow the next second
+                high++;
+            }
+        }
+        return toString(high, low);
+    }
+}
@@ -6,31 +6,82 @@
  *
  */
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * This class represents a food item with all its properties.
  *
  */
 public class FoodItem {
-    // The name of the food item.
+    // The name of the food item, null once it is kept in a NameStore.
     private String name;
 
-    // The id of the food item.
+    // Store holding the name and its handle there, null if not stored.
+    private NameStore names;
+    private int nameHandle;
+
+    // The id of the food item, null if it is packed into idHigh and idLow.
     private String id;
 
-    // Map of nutrients and value.
-    private HashMap<String, Double> nutrients;
+    // The id packed into two longs when it is 24 hex digits, see FoodId.
+    // Subclasses that keep the id elsewhere leave it unpacked.
+    private long idHigh;
+    private long idLow;
+    private boolean packedId;
+
+    // Nutrient values indexed by NutrientSchema ordinal, NaN if absent.
+    private double[] nutrients;
+
+    // Position of the item in the FoodData that holds it, -1 if none.
+    private int ordinal = -1;
 
     /**
      * Constructor
      * @param name name of the food item
-     * @param id unique id of the food item 
+     * @param id unique id of the food item
      */
     public FoodItem(String id, String name) {
+        this.name = name;
+        if (FoodId.isPackable(id)) {
+            // 16 bytes instead of a 24 character String
+            this.idHigh = FoodId.high(id);
+            this.idLow = FoodId.low(id);
+            this.packedId = true;
+        } else {
+            this.id = id;
+        }
+        this.nutrients = emptySlots(NutrientSchema.CORE_COUNT);
+    }
+
+    /**
+     * Constructor for parsers that decode the id themselves
+     *
+     * @param id the id if it cannot be packed, null if it is packed
+     * @param idHigh high long of a packed id
+     * @param idLow low long of a packed id
+     * @param name name of the food item, null if it is set with storeName()
+     */
+    FoodItem(String id, long idHigh, long idLow, String name) {
         this.name = name;
         this.id = id;
-        this.nutrients = new HashMap<String, Double>();
+        this.idHigh = idHigh;
+        this.idLow = idLow;
+        this.packedId = id == null;
+        this.nutrients = emptySlots(NutrientSchema.CORE_COUNT);
+    }
+
+    /**
+     * Constructor for subclasses that keep the name, id and nutrients
+     * elsewhere and override the accessors; no slots are allocated.
+     */
+    FoodItem() {
+        this.nutrients = new double[0];
     }
 
     /**
@@ -39,7 +90,114 @@ public class FoodItem {
      * @return name of the food item
      */
     public String getName() {
-        return name;
+        return names != null ? names.name(nameHandle) : name;
+    }
+
+    /**
+     * Moves the name into a name store, unless it is already kept in one
+     *
+     * @param store the store
+     */
+    void storeName(NameStore store) {
+        if (names == null && name != null) {
+            nameHandle = store.add(name);
+            names = store;
+            name = null;
+        }
+    }
+
+    /**
+     * Keeps the name in the given store, copying it there if it is kept in
+     * another one
+     *
+     * @param store the store
+     */
+    void moveName(NameStore store) {
+        if (names != store) {
+            String current = getName();
+            names = null;
+            name = current;
+            storeName(store);
+        }
+    }
+
+    /**
+     * Sets the name to one already kept in a name store
+     *
+     * @param store the store
+     * @param handle handle of the name in the store
+     */
+    void storeName(NameStore store, int handle) {
+        names = store;
+        nameHandle = handle;
+        name = null;
+    }
+
+    /**
+     * @return handle of the name in the store it is kept in, see
+     *         storeName()
+     */
+    int nameHandle() {
+        return nameHandle;
+    }
+
+    /**
+     * Points the name at its copy in a store another store was appended to,
+     * see NameStore.append()
+     *
+     * @param store the store the name was copied to
+     * @param base base of the copied handles
+     */
+    void rebaseName(NameStore store, int base) {
+        if (names != null) {
+            names = store;
+            nameHandle += base;
+        }
+    }
+
+    /**
+     * Compares the names of two food items ignoring case, without creating
+     * Strings when both names are kept in the same store.
+     *
+     * @param f1 a food item
+     * @param f2 another food item
+     * @return negative, zero or positive as the name of f1 sorts before,
+     *         equal to or after the name of f2
+     */
+    static int compareNames(FoodItem f1, FoodItem f2) {
+        if (f1.names != null && f1.names == f2.names) {
+            return f1.names.compareFolded(f1.nameHandle, f2.nameHandle);
+        }
+        return NameStore.compare(NameStore.fold(f1.getName()), NameStore.fold(f2.getName()));
+    }
+
+    /**
+     * Compares the start of the name with a prefix, ignoring case
+     *
+     * @param prefix the prefix, folded with NameStore.fold()
+     * @return zero if the name starts with the prefix, negative or positive
+     *         as the name sorts before or after the names that do
+     */
+    int comparePrefix(byte[] prefix) {
+        if (names != null) {
+            return names.comparePrefix(nameHandle, prefix);
+        }
+        byte[] folded = NameStore.fold(getName());
+        byte[] start = Arrays.copyOf(folded, Math.min(folded.length, prefix.length));
+        return NameStore.compare(start, prefix);
+    }
+
+    /**
+     * Checks whether the name contains a substring, ignoring case
+     *
+     * @param needle the substring, folded with NameStore.fold()
+     * @return true if the name contains it
+     */
+    boolean nameContains(byte[] needle) {
+        if (names != null) {
+            return names.containsFolded(nameHandle, needle);
+        }
+        return NameStore.indexOf(NameStore.fold(getName()), needle) >= 0;
     }
 
     /**
@@ -48,37 +206,249 @@ public class FoodItem {
      * @return id of the food item
      */
     public String getID() {
-        return id;
+        return packedId ? FoodId.toString(idHigh, idLow) : id;
     }
 
     /**
-     * Gets the nutrients of the food item
+     * @return true if the id is packed, see idHigh() and idLow()
+     */
+    boolean hasPackedId() {
+        return packedId;
+    }
+
+    /**
+     * @return the high long of a packed id
+     */
+    long idHigh() {
+        return idHigh;
+    }
+
+    /**
+     * @return the low long of a packed id
+     */
+    long idLow() {
+        return idLow;
+    }
+
+    /**
+     * Estimates the heap used by the item itself, its nutrient slots and an
+     * id that could not be packed. A name kept in a NameStore is counted
+     * with the store.
+     *
+     * @return estimated bytes, see MemoryReport
+     */
+    long memoryBytes() {
+        // name, names, id and nutrients references, nameHandle and ordinal,
+        // idHigh, idLow and packedId
+        long bytes = MemoryReport.objectBytes(4 * MemoryReport.REFERENCE_BYTES + 8 + 16 + 1)
+                + MemoryReport.arrayBytes(nutrients.length, 8);
+        if (id != null) {
+            bytes += MemoryReport.stringBytes(id.length());
+        }
+        if (name != null) {
+            bytes += MemoryReport.stringBytes(name.length());
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the position of the item in the nutrient columns of the
+     * FoodData that holds it
+     *
+     * @return the ordinal, -1 if the item was never added to a FoodData
+     */
+    int getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * Sets the position of the item in the nutrient columns of the
+     * FoodData that holds it
+     *
+     * @param ordinal the ordinal
+     */
+    void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * Gets the nutrients of the food item as a map from name to value.
+     * The map is a view of this item: changes made through it are written
+     * back to the item.
      *
      * @return nutrients of the food item
      */
-    public HashMap<String, Double> getNutrients() {
-        return nutrients;
+    public Map<String, Double> getNutrients() {
+        return new NutrientView();
     }
 
     /**
-     * Adds a nutrient and its value to this food. 
+     * Adds a nutrient and its value to this food.
      * If nutrient already exists, updates its value.
      */
     public void addNutrient(String name, double value) {
-        nutrients.put(name, value);
+        addNutrient(NutrientSchema.register(name), value);
     }
 
     /**
-     * Returns the value of the given nutrient for this food item. 
+     * Adds a nutrient and its value to this food given the nutrient's
+     * ordinal in the NutrientSchema.
+     * If nutrient already exists, updates its value.
+     */
+    public void addNutrient(int ordinal, double value) {
+        if (ordinal >= nutrients.length) {
+            // grow to fit the nutrient, new slots are absent
+            double[] grown = emptySlots(ordinal + 1);
+            System.arraycopy(nutrients, 0, grown, 0, nutrients.length);
+            nutrients = grown;
+        }
+        nutrients[ordinal] = value;
+    }
+
+    /**
+     * Returns the value of the given nutrient for this food item.
      * If not present, then returns 0.
      */
     public double getNutrientValue(String name) {
-        if (nutrients.containsKey(name)) {
-            return nutrients.get(name);
-        }
-        else {
+        int ordinal = NutrientSchema.ordinalOf(name);
+        return ordinal < 0 ? 0 : getNutrientValue(ordinal);
+    }
+
+    /**
+     * Returns the value of the nutrient with the given NutrientSchema
+     * ordinal for this food item.
+     * If not present, then returns 0.
+     */
+    public double getNutrientValue(int ordinal) {
+        if (ordinal >= nutrients.length || Double.isNaN(nutrients[ordinal])) {
             return 0;
         }
+        return nutrients[ordinal];
+    }
+
+    /**
+     * Returns true if this food item has a value for the nutrient with the
+     * given NutrientSchema ordinal.
+     */
+    public boolean hasNutrient(int ordinal) {
+        return ordinal < nutrients.length && !Double.isNaN(nutrients[ordinal]);
+    }
+
+    /**
+     * Creates an array of nutrient slots that are all absent
+     *
+     * @param length number of slots
+     * @return the new array
+     */
+    private static double[] emptySlots(int length) {
+        double[] slots = new double[length];
+        Arrays.fill(slots, Double.NaN);
+        return slots;
+    }
+
+    /**
+     * Map view over the nutrients, used by getNutrients(). It goes through
+     * the accessors so it also works for subclasses.
+     */
+    private class NutrientView extends AbstractMap<String, Double> {
+
+        @Override
+        public Double get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            int ordinal = NutrientSchema.ordinalOf((String) key);
+            return ordinal >= 0 && hasNutrient(ordinal) ? getNutrientValue(ordinal) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Double put(String key, Double value) {
+            Double previous = get(key);
+            addNutrient(key, value);
+            return previous;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Double>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Double>>() {
+
+                @Override
+                public Iterator<Map.Entry<String, Double>> iterator() {
+                    return new SlotIterator();
+                }
+
+                @Override
+                public int size() {
+                    int count = 0;
+                    for (int i = 0; i < NutrientSchema.size(); i++) {
+                        if (hasNutrient(i)) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over the nutrients this item has a value for
+     */
+    private class SlotIterator implements Iterator<Map.Entry<String, Double>> {
+
+        // ordinal returned by the last call to next(), -1 if none
+        private int current = -1;
+
+        // next ordinal holding a value, NutrientSchema.size() if no more
+        private int next = advance(0);
+
+        /**
+         * Finds the first ordinal holding a value starting at the given one
+         */
+        private int advance(int from) {
+            while (from < NutrientSchema.size() && !hasNutrient(from)) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < NutrientSchema.size();
+        }
+
+        @Override
+        public Map.Entry<String, Double> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = advance(next + 1);
+            final int ordinal = current;
+            return new AbstractMap.SimpleEntry<String, Double>(
+                    NutrientSchema.nameOf(ordinal), getNutrientValue(ordinal)) {
+                @Override
+                public Double setValue(Double value) {
+                    addNutrient(ordinal, value);
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+            // NaN marks the nutrient absent
+            addNutrient(current, Double.NaN);
+            current = -1;
+        }
     }
 
 }
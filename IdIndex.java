@@ -0,0 +1,291 @@
+/**
+ * Filename:   IdIndex.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash index from food item id to item ordinal.
+ *
+ * Packed ids (see FoodId) live in an open-addressing table of primitive
+ * arrays with linear probing, so a lookup allocates nothing and no entry
+ * objects are kept per item. The rare ids that cannot be packed go to a
+ * plain HashMap.
+ */
+public class IdIndex {
+
+    // Initial number of slots, a power of two
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Marks an empty slot in ordinals
+    private static final int EMPTY = -1;
+
+    // Keys and values of the table, slot i is empty if ordinals[i] == EMPTY
+    private long[] highs;
+    private long[] lows;
+    private int[] ordinals;
+
+    // Number of packed ids in the table
+    private int packedCount;
+
+    // Ids that cannot be packed
+    private HashMap<String, Integer> others;
+
+    /**
+     * Public constructor
+     */
+    public IdIndex() {
+        clear();
+    }
+
+    /**
+     * Removes every id
+     */
+    public void clear() {
+        allocate(INITIAL_CAPACITY);
+        packedCount = 0;
+        others = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Maps an id to an ordinal unless the id is already present
+     *
+     * @param id the id
+     * @param ordinal the ordinal
+     * @return true if the id was added, false if it was already present
+     */
+    public boolean putIfAbsent(String id, int ordinal) {
+        if (!FoodId.isPackable(id)) {
+            return others.putIfAbsent(id, ordinal) == null;
+        }
+        return putIfAbsent(FoodId.high(id), FoodId.low(id), ordinal);
+    }
+
+    /**
+     * Maps a packed id to an ordinal unless the id is already present
+     *
+     * @param high high long of the id
+     * @param low low long of the id
+     * @param ordinal the ordinal
+     * @return true if the id was added, false if it was already present
+     */
+    public boolean putIfAbsent(long high, long low, int ordinal) {
+        // keep the table at most half full
+        if (2 * (packedCount + 1) > ordinals.length) {
+            rehash(ordinals.length * 2);
+        }
+        int slot = find(high, low);
+        if (ordinals[slot] != EMPTY) {
+            return false;
+        }
+        highs[slot] = high;
+        lows[slot] = low;
+        ordinals[slot] = ordinal;
+        packedCount++;
+        return true;
+    }
+
+    /**
+     * Removes an id
+     *
+     * @param id the id
+     * @return true if the id was present
+     */
+    public boolean remove(String id) {
+        if (!FoodId.isPackable(id)) {
+            return others.remove(id) != null;
+        }
+        return remove(FoodId.high(id), FoodId.low(id));
+    }
+
+    /**
+     * Removes a packed id. The entries after it in the same probe run are
+     * shifted back into the gap, so lookups never need tombstones.
+     *
+     * @param high high long of the id
+     * @param low low long of the id
+     * @return true if the id was present
+     */
+    public boolean remove(long high, long low) {
+        int slot = find(high, low);
+        if (ordinals[slot] == EMPTY) {
+            return false;
+        }
+        int mask = ordinals.length - 1;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; ordinals[next] != EMPTY; next = (next + 1) & mask) {
+            // an entry may move back if the gap is not before its home slot
+            int home = hash(highs[next], lows[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                highs[gap] = highs[next];
+                lows[gap] = lows[next];
+                ordinals[gap] = ordinals[next];
+                gap = next;
+            }
+        }
+        ordinals[gap] = EMPTY;
+        packedCount--;
+        return true;
+    }
+
+    /**
+     * Looks an id up
+     *
+     * @param id the id
+     * @return its ordinal, -1 if it is not present
+     */
+    public int get(String id) {
+        if (!FoodId.isPackable(id)) {
+            Integer ordinal = others.get(id);
+            return ordinal == null ? -1 : ordinal;
+        }
+        return get(FoodId.high(id), FoodId.low(id));
+    }
+
+    /**
+     * Looks a packed id up
+     *
+     * @param high high long of the id
+     * @param low low long of the id
+     * @return its ordinal, -1 if it is not present
+     */
+    public int get(long high, long low) {
+        return ordinals[find(high, low)];
+    }
+
+    /**
+     * @return the number of ids
+     */
+    public int size() {
+        return packedCount + others.size();
+    }
+
+    /**
+     * @return estimated bytes of the table and of the ids that could not be
+     *         packed, see MemoryReport
+     */
+    public long memoryBytes() {
+        long bytes = 2 * MemoryReport.arrayBytes(highs.length, 8)
+                + MemoryReport.arrayBytes(ordinals.length, 4);
+        for (String id : others.keySet()) {
+            // key, boxed value and map entry
+            bytes += MemoryReport.stringBytes(id.length()) + MemoryReport.BOXED_BYTES
+                    + MemoryReport.objectBytes(16) + MemoryReport.REFERENCE_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the index to a snapshot section, see CatalogSnapshot
+     *
+     * @param out the snapshot being written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void writeSnapshot(CatalogSnapshot.Writer out) throws IOException {
+        out.putInt(ordinals.length);
+        out.putInt(packedCount);
+        out.putLongs(highs, highs.length);
+        out.putLongs(lows, lows.length);
+        out.putInts(ordinals, ordinals.length);
+        out.putInt(others.size());
+        for (Map.Entry<String, Integer> other : others.entrySet()) {
+            byte[] id = other.getKey().getBytes(StandardCharsets.UTF_8);
+            out.putInt(id.length);
+            out.putBytes(id, id.length);
+            out.putInt(other.getValue());
+        }
+    }
+
+    /**
+     * Reads an index written by writeSnapshot(). The table is copied as it
+     * is, without hashing the ids again.
+     *
+     * @param section the snapshot section
+     * @return the index
+     */
+    public static IdIndex readSnapshot(ByteBuffer section) {
+        IdIndex index = new IdIndex();
+        int capacity = section.getInt();
+        index.packedCount = section.getInt();
+        index.highs = CatalogSnapshot.getLongs(section, capacity);
+        index.lows = CatalogSnapshot.getLongs(section, capacity);
+        index.ordinals = CatalogSnapshot.getInts(section, capacity);
+        int otherCount = section.getInt();
+        for (int i = 0; i < otherCount; i++) {
+            byte[] id = CatalogSnapshot.getBytes(section, section.getInt());
+            index.others.put(new String(id, StandardCharsets.UTF_8), section.getInt());
+        }
+        return index;
+    }
+
+    /**
+     * Finds the slot holding an id, or the empty slot where it belongs
+     *
+     * @param high high long of the id
+     * @param low low long of the id
+     * @return the slot
+     */
+    private int find(long high, long low) {
+        int mask = ordinals.length - 1;
+        int slot = hash(high, low) & mask;
+        while (ordinals[slot] != EMPTY && (highs[slot] != high || lows[slot] != low)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Mixes both longs of an id so sequential ids spread over the table
+     *
+     * @param high high long of the id
+     * @param low low long of the id
+     * @return the hash
+     */
+    private static int hash(long high, long low) {
+        long h = low * 0x9E3779B97F4A7C15L + high;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Allocates empty arrays
+     *
+     * @param capacity number of slots, a power of two
+     */
+    private void allocate(int capacity) {
+        highs = new long[capacity];
+        lows = new long[capacity];
+        ordinals = new int[capacity];
+        Arrays.fill(ordinals, EMPTY);
+    }
+
+    /**
+     * Moves every packed id into a table of the given capacity
+     *
+     * @param capacity number of slots, a power of two
+     */
+    private void rehash(int capacity) {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        int[] oldOrdinals = ordinals;
+        allocate(capacity);
+        for (int i = 0; i < oldOrdinals.length; i++) {
+            if (oldOrdinals[i] != EMPTY) {
+                int slot = find(oldHighs[i], oldLows[i]);
+                highs[slot] = oldHighs[i];
+                lows[slot] = oldLows[i];
+                ordinals[slot] = oldOrdinals[i];
+            }
+        }
+    }
+}
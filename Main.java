@@ -7,13 +7,16 @@
  */
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Side;
 import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
@@ -28,6 +31,8 @@ import javafx.scene.image.Image;
 
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,6 +40,10 @@ import java.util.List;
  * This class starts the application and runs it
  */
 public class Main extends Application {
+    // time budget in milliseconds for a query run from the GUI
+    static final long QUERY_TIMEOUT_MS = 2000;
+    // most completions of each kind suggested under the search field
+    static final int SUGGESTION_COUNT = 5;
     // the various different buttons for the class
     private Button analyzeButton, createButton, addButton, clearButton, filterButton;
     // the table that has the food list
@@ -47,6 +56,8 @@ public class Main extends Application {
     ObservableList<FoodItem> mealPlanList = FXCollections.observableArrayList(new ArrayList<FoodItem>());
     // the instance of the food data
     FoodData foodData = new FoodData();
+    // searches from the search field, narrowing the previous results as the text grows
+    NameSearchSession nameSearch = new NameSearchSession(foodData);
     // a list of all of the rules
     List<String> rules = new ArrayList<String>();
     // the file path to save to
@@ -57,6 +68,13 @@ public class Main extends Application {
     Label foodTableLabel;
     // a label that changes based on the amount of FoodItems
     Label foodCounter;
+    // shows how much of the file being loaded has been read
+    ProgressBar loadProgress;
+    // holds the progress bar and the button that stops the load, only
+    // shown during a load
+    HBox loadLayout;
+    // the load in progress, null if none
+    Task<Boolean> loadTask;
 
 
     /**
@@ -101,7 +119,37 @@ public class Main extends Application {
         searchButton.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
-                foodTable.setItems(FXCollections.observableArrayList(foodData.filterByName(searchField.getText().trim())));
+                // bound the search so a huge catalog cannot freeze the window
+                QueryResult<FoodItem> result = nameSearch.search(searchField.getText().trim(),
+                        QueryContext.withTimeout(QUERY_TIMEOUT_MS, true));
+                foodTable.setItems(FXCollections.observableArrayList(result.getItems()));
+                // let the user know when only part of the matches are shown
+                foodTableLabel.setText(result.isComplete() ? "Food List" : "Food List (partial results)");
+            }
+        });
+
+        // Suggest completions of the last word and of whole names as the
+        // user types; picking one fills the field and searches
+        ContextMenu suggestions = new ContextMenu();
+        searchField.textProperty().addListener((observable, oldText, newText) -> {
+            suggestions.getItems().clear();
+            String text = newText.trim();
+            if (text.isEmpty() || !searchField.isFocused()) {
+                suggestions.hide();
+                return;
+            }
+            String head = text.substring(0, text.lastIndexOf(' ') + 1);
+            String word = text.substring(head.length());
+            for (String term : foodData.completeTerms(word, SUGGESTION_COUNT)) {
+                suggestions.getItems().add(suggestion(head + term, suggestions, searchField, searchButton));
+            }
+            for (FoodItem item : foodData.completeNames(text, SUGGESTION_COUNT)) {
+                suggestions.getItems().add(suggestion(item.getName(), suggestions, searchField, searchButton));
+            }
+            if (suggestions.getItems().isEmpty()) {
+                suggestions.hide();
+            } else if (!suggestions.isShowing()) {
+                suggestions.show(searchField, Side.BOTTOM, 0, 0);
             }
         });
 
@@ -178,8 +226,22 @@ public class Main extends Application {
         // once button is pressed open new window prompt user using textFields
         createButton.setOnAction(e -> CreateFood.display("Create New Food", "Add properties to the food!", foodData, foodTable, foodCounter, rules));
 
+        // progress of a file being loaded, only shown during the load
+        loadProgress = new ProgressBar();
+        Button cancelLoadButton = new Button("Cancel Load");
+        cancelLoadButton.setOnAction(e -> {
+            if (loadTask != null) {
+                loadTask.cancel();
+            }
+        });
+        loadLayout = new HBox(10, loadProgress, cancelLoadButton);
+        loadLayout.setPadding(new Insets(5, 10, 5, 10));
+        // take no room while hidden
+        loadLayout.managedProperty().bind(loadLayout.visibleProperty());
+        loadLayout.setVisible(false);
+
         // create a counter for the amount of foodItems
-        HBox foodListCounter = new HBox(foodTableLabel, foodCounter);
+        HBox foodListCounter = new HBox(foodTableLabel, foodCounter, loadLayout);
         // layout that holds all the buttons
         HBox buttonsLayout = new HBox(analyzeButton, createButton, addButton, clearButton, filterButton);
         // adjust the spacing and padding
@@ -306,6 +368,28 @@ public class Main extends Application {
         return menuBar;
     }
 
+    /**
+     * Creates an entry of the search suggestions
+     * @param text the suggested search text
+     * @param suggestions the menu of suggestions, hidden once one is picked
+     * @param searchField the search field to fill in
+     * @param searchButton the button that runs the search
+     * @return a menu item that fills in the text and searches
+     */
+    private MenuItem suggestion(String text, ContextMenu suggestions, TextField searchField,
+            Button searchButton) {
+        MenuItem item = new MenuItem(text);
+        // keep underscores in names from turning into mnemonics
+        item.setMnemonicParsing(false);
+        item.setOnAction(e -> {
+            searchField.setText(text);
+            searchField.positionCaret(text.length());
+            suggestions.hide();
+            searchButton.fire();
+        });
+        return item;
+    }
+
     /**
      * Creates a tableView of FoodItems that users can select from for the foodList and mealPlanList
      * @param foodMembers the list of FoodItems to create a tableView from
@@ -324,27 +408,27 @@ public class Main extends Application {
         nameCol.setMinWidth(400);
 
         TableColumn<FoodItem, String> caloriesCol = new TableColumn<FoodItem, String>("Calories");
-        caloriesCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue("calories"))));
+        caloriesCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue(NutrientSchema.CALORIES))));
         caloriesCol.setMinWidth(300);
         caloriesCol.setMaxWidth(300);
 
         TableColumn<FoodItem, String> fatCol = new TableColumn<FoodItem, String>("Fat");
-        fatCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue("fat"))));
+        fatCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue(NutrientSchema.FAT))));
         fatCol.setMinWidth(300);
         fatCol.setMaxWidth(300);
 
         TableColumn<FoodItem, String> carbohydrateCol = new TableColumn<FoodItem, String>("Carbohydrate");
-        carbohydrateCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue("carbohydrate"))));
+        carbohydrateCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue(NutrientSchema.CARBOHYDRATE))));
         carbohydrateCol.setMinWidth(300);
         carbohydrateCol.setMaxWidth(300);
 
         TableColumn<FoodItem, String> fiberCol = new TableColumn<FoodItem, String>("Fiber");
-        fiberCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue("fiber"))));
+        fiberCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue(NutrientSchema.FIBER))));
         fiberCol.setMinWidth(300);
         fiberCol.setMaxWidth(300);
 
         TableColumn<FoodItem, String> proteinCol = new TableColumn<FoodItem, String>("Protein");
-        proteinCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue("protein"))));
+        proteinCol.setCellValueFactory(cellData -> new SimpleStringProperty(Double.toString(cellData.getValue().getNutrientValue(NutrientSchema.PROTEIN))));
         proteinCol.setMinWidth(300);
         proteinCol.setMaxWidth(300);
 
@@ -367,25 +451,152 @@ public class Main extends Application {
         // Set clicking on Open to open a File Chooser
         fileOpen.setOnAction(e -> {
             File chosenFile = fileChooser.showOpenDialog(primaryStage);
-            try {
-                // get the string filePath
-                stringChosenFile = chosenFile.toPath().toString().substring(0);
-            } catch (Exception a) {
+            if (chosenFile == null) {
+                return;
             }
+            // get the string filePath
+            stringChosenFile = chosenFile.toPath().toString();
             // load the new file to the instance of the FoodData class
-            foodData.loadFoodItems(stringChosenFile);
-            // update the foodDataList
-            foodDataList = FXCollections.observableArrayList(foodData.getAllFoodItems());
+            loadInBackground(stringChosenFile);
+        });
 
-            // make the table editable
-            foodTable.setEditable(true);
+    }
 
-            // update foodTable
-            foodTable.setItems(foodDataList);
-            // update the foodCounter label
-            foodCounter.setText("Total Number of Food Items: " + foodData.getAllFoodItems().size());
-        });
+    /**
+     * Loads a file into the foodData instance on a background thread so the
+     * window stays responsive. Food items are added to the foodTable in
+     * batches as they are read, and the table switches to the sorted list
+     * once the whole file is loaded. A load that is cancelled or fails
+     * leaves the previous food items in place. Food items created on top of
+     * the file are logged to <file>.log and come back on the next load, and
+     * rows other programs append to the file show up as they are written.
+     *
+     * @param filePath path of the file to load
+     */
+    private void loadInBackground(String filePath) {
+        // only one load at a time, the newest one wins
+        if (loadTask != null) {
+            loadTask.cancel();
+        }
 
+        // the food items read so far, in file order
+        ObservableList<FoodItem> loadingList = FXCollections.observableArrayList();
+        QueryContext context = QueryContext.unbounded();
+
+        Task<Boolean> task = new Task<Boolean>() {
+            @Override
+            protected Boolean call() throws Exception {
+                boolean loaded = foodData.loadFoodItems(filePath, context, (batch, bytesLoaded, totalBytes) -> {
+                    updateProgress(bytesLoaded, totalBytes);
+                    Platform.runLater(() -> {
+                        if (!isCancelled()) {
+                            loadingList.addAll(batch);
+                            foodCounter.setText("Loading food items: " + loadingList.size());
+                        }
+                    });
+                });
+                if (loaded) {
+                    // replay the food items created on top of this file
+                    // before, and keep logging the new ones
+                    foodData.openLog(filePath + ".log");
+                    // add the rows appended to the file from now on
+                    try {
+                        foodData.followFile(batch -> Platform.runLater(Main.this::showAppended));
+                    } catch (IOException e) {
+                        // a gzip file is only ever rewritten as a whole
+                        System.out.println("Not following " + filePath + ": " + e.getMessage());
+                    }
+                }
+                return loaded;
+            }
+
+            @Override
+            protected void succeeded() {
+                finishLoad(this);
+            }
+
+            @Override
+            protected void cancelled() {
+                // stop the loader between two parts of the file
+                context.cancel();
+                finishLoad(this);
+            }
+
+            @Override
+            protected void failed() {
+                finishLoad(this);
+                Alert alert = new Alert(Alert.AlertType.ERROR);
+                alert.setHeaderText("Could not load " + filePath);
+                alert.setContentText(getException() instanceof FileNotFoundException
+                        ? "The file does not exist." : String.valueOf(getException().getMessage()));
+                alert.showAndWait();
+            }
+        };
+
+        loadTask = task;
+        loadProgress.progressProperty().bind(task.progressProperty());
+        loadLayout.setVisible(true);
+        foodTableLabel.setText("Food List");
+        foodTable.setItems(loadingList);
+
+        Thread loader = new Thread(task, "food-data-loader");
+        // never keep the program alive just to finish a load
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Shows the food items of the foodData instance once a load is over,
+     * whether it completed, was cancelled or failed
+     *
+     * @param task the load that is over
+     */
+    private void finishLoad(Task<Boolean> task) {
+        // a newer load has taken over the table
+        if (task != loadTask) {
+            return;
+        }
+        loadTask = null;
+        loadProgress.progressProperty().unbind();
+        loadLayout.setVisible(false);
+
+        // update the foodDataList
+        foodDataList = FXCollections.observableArrayList(foodData.getAllFoodItems());
+
+        // make the table editable
+        foodTable.setEditable(true);
+
+        // update foodTable
+        foodTable.setItems(foodDataList);
+        // update the foodCounter label
+        foodCounter.setText("Total Number of Food Items: " + foodData.getAllFoodItems().size());
+    }
+
+    /**
+     * Shows the food items once rows appended to the loaded file have been
+     * added, unless a load has taken over the table
+     */
+    private void showAppended() {
+        if (loadTask != null) {
+            return;
+        }
+        // update the foodCounter and the table the way creating a food does
+        foodCounter.setText("Total Number of Food Items: " + foodData.getAllFoodItems().size());
+        foodDataList = FXCollections.observableArrayList(foodData.getAllFoodItems());
+        foodTable.setItems(foodDataList);
+        // if there are filters in the rules list, keep showing the filtered items
+        if (!rules.isEmpty()) {
+            // bound the query like the apply button does, batches keep coming
+            // while the file grows and each one runs this on the FX thread
+            QueryResult<FoodItem> result = foodData.filterByNutrients(rules,
+                    QueryContext.withTimeout(QUERY_TIMEOUT_MS, true));
+            foodTable.setItems(FXCollections.observableArrayList(result.getItems()));
+            // tell the user in the label rather than an alert, which would pop
+            // up again with every batch
+            if (foodTable.isVisible()) {
+                foodTableLabel.setText(result.isComplete() ? "Food List" : "Food List (partial results)");
+            }
+        }
     }
 
     /**
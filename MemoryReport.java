@@ -0,0 +1,187 @@
+/**
+ * Filename:   MemoryReport.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimated heap use of a FoodData, broken down by component.
+ *
+ * The sizes are computed from the shape of the data structures rather
+ * than measured, assuming a 64-bit JVM with compressed references: 12 byte
+ * object headers, 16 byte array headers, 4 byte references and objects
+ * aligned to 8 bytes. Spare capacity of growable lists is not counted, so
+ * the figures are a lower bound of what the JVM actually retains.
+ */
+public class MemoryReport {
+
+    // Bytes of an object header
+    public static final int HEADER_BYTES = 12;
+
+    // Bytes of an array header, length included
+    public static final int ARRAY_HEADER_BYTES = 16;
+
+    // Bytes of a reference
+    public static final int REFERENCE_BYTES = 4;
+
+    // Bytes of a boxed Double or Long
+    public static final int BOXED_BYTES = 16;
+
+    // Estimated bytes of every component, in the order they were added
+    private final Map<String, Long> components;
+
+    // Number of food items the report was made for
+    private final int itemCount;
+
+    /**
+     * Constructor
+     *
+     * @param itemCount number of food items the report is made for
+     */
+    public MemoryReport(int itemCount) {
+        this.components = new LinkedHashMap<String, Long>();
+        this.itemCount = itemCount;
+    }
+
+    /**
+     * Adds the estimate of a component
+     *
+     * @param component name of the component
+     * @param bytes estimated bytes
+     */
+    public void add(String component, long bytes) {
+        components.put(component, bytes);
+    }
+
+    /**
+     * @return estimated bytes by component
+     */
+    public Map<String, Long> getComponents() {
+        return Collections.unmodifiableMap(components);
+    }
+
+    /**
+     * @return estimated bytes of all the components together
+     */
+    public long getTotalBytes() {
+        long total = 0;
+        for (long bytes : components.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return number of food items the report was made for
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @return estimated bytes per food item, 0 if there are no items
+     */
+    public double getBytesPerItem() {
+        return itemCount == 0 ? 0 : (double) getTotalBytes() / itemCount;
+    }
+
+    /**
+     * Formats the report as one line per component
+     *
+     * @return the report
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> component : components.entrySet()) {
+            sb.append(String.format("%-24s %,14d%n", component.getKey(), component.getValue()));
+        }
+        sb.append(String.format("%-24s %,14d%n", "total", getTotalBytes()));
+        sb.append(String.format("%-24s %14.1f (%d items)%n", "bytes per item", getBytesPerItem(),
+                itemCount));
+        return sb.toString();
+    }
+
+    /**
+     * Estimates the size of an object
+     *
+     * @param fieldBytes bytes of all its fields
+     * @return the size, header and alignment included
+     */
+    public static long objectBytes(long fieldBytes) {
+        return align(HEADER_BYTES + fieldBytes);
+    }
+
+    /**
+     * Estimates the size of an array
+     *
+     * @param length number of elements
+     * @param elementBytes bytes of one element
+     * @return the size, header and alignment included
+     */
+    public static long arrayBytes(long length, int elementBytes) {
+        return align(ARRAY_HEADER_BYTES + length * elementBytes);
+    }
+
+    /**
+     * Estimates the size of an ArrayList and its backing array, not
+     * counting the elements it refers to
+     *
+     * @param size number of elements
+     * @return the size
+     */
+    public static long arrayListBytes(int size) {
+        // size, modCount and the array reference
+        return objectBytes(12) + arrayBytes(size, REFERENCE_BYTES);
+    }
+
+    /**
+     * Estimates the size of a String
+     *
+     * @param length number of characters
+     * @return the size, its character array included
+     */
+    public static long stringBytes(int length) {
+        // hash and the array reference; characters counted as UTF-16 as
+        // on Java 8
+        return objectBytes(8) + arrayBytes(length, 2);
+    }
+
+    /**
+     * Rounds a size up to the object alignment
+     *
+     * @param bytes the size
+     * @return the aligned size
+     */
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Loads a file, builds the index of every core nutrient and prints the
+     * memory report. Given a limit of bytes per item it also fails when the
+     * estimate goes over it, so a build can track the footprint.
+     *
+     * @param args path of the food item data file, foodItems.txt by default,
+     *             and optionally the largest acceptable bytes per item
+     */
+    public static void main(String[] args) {
+        FoodData foodData = new FoodData();
+        foodData.loadFoodItems(args.length > 0 ? args[0] : "foodItems.txt");
+        for (int ordinal = 0; ordinal < NutrientSchema.CORE_COUNT; ordinal++) {
+            foodData.buildIndex(ordinal);
+        }
+        MemoryReport report = foodData.memoryReport();
+        System.out.print(report);
+        if (args.length > 1 && report.getBytesPerItem() > Double.parseDouble(args[1])) {
+            System.out.println("FAILED: more than " + args[1] + " bytes per item");
+            System.exit(1);
+        }
+    }
+}
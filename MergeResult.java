@@ -0,0 +1,78 @@
+/**
+ * Filename:   MergeResult.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+/**
+ * Counts of the changes a merge load applied, see
+ * FoodData.mergeFoodItems().
+ */
+public class MergeResult {
+
+    // Items whose id was not loaded before
+    private final int inserted;
+
+    // Items whose name or nutrients changed
+    private final int updated;
+
+    // Loaded items whose id is not in the file anymore
+    private final int deleted;
+
+    // Items found identical in the file
+    private final int unchanged;
+
+    /**
+     * Constructor
+     *
+     * @param inserted number of items inserted
+     * @param updated number of items updated
+     * @param deleted number of items deleted
+     * @param unchanged number of items left as they were
+     */
+    public MergeResult(int inserted, int updated, int deleted, int unchanged) {
+        this.inserted = inserted;
+        this.updated = updated;
+        this.deleted = deleted;
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * @return number of items inserted
+     */
+    public int getInserted() {
+        return inserted;
+    }
+
+    /**
+     * @return number of items updated
+     */
+    public int getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return number of items deleted
+     */
+    public int getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return number of items left as they were
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return the counts on one line
+     */
+    @Override
+    public String toString() {
+        return inserted + " inserted, " + updated + " updated, " + deleted + " deleted, "
+                + unchanged + " unchanged";
+    }
+}
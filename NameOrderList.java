@@ -0,0 +1,321 @@
+/**
+ * Filename:   NameOrderList.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Food items kept in name order (see FoodItem.compareNames()), with
+ * insertion in logarithmic time and access by position, so the list shown
+ * in the table stays sorted without sorting it again for every item added.
+ *
+ * The items are split into leaves of at most LEAF_CAPACITY items, the
+ * leaves being in order too: a B+ tree of height two. An item is inserted
+ * into the leaf found by a binary search over the last item of every leaf,
+ * at the position found by a binary search within it; a full leaf is split
+ * in two. The sizes of the leaves are kept in a Fenwick tree, which gives
+ * the leaf holding a position, and the leaves before it, in O(log leaves).
+ *
+ * A list never changes: inserting() returns a new list that shares every
+ * leaf but the ones the items went into, copying only the arrays over the
+ * leaves. Queries can therefore keep reading a list without a lock while
+ * items are added to the catalog.
+ */
+public class NameOrderList extends AbstractList<FoodItem> implements RandomAccess {
+
+    // Most items in a leaf, and the items in a leaf of a bulk-built list,
+    // which leaves room for inserts
+    private static final int LEAF_CAPACITY = 512;
+    private static final int BULK_FILL = LEAF_CAPACITY * 3 / 4;
+
+    // Leaves in order, and their number of items
+    private final FoodItem[][] leaves;
+    private final int[] leafSizes;
+    private final int leafCount;
+
+    // Fenwick tree of the leaf sizes, 1-based
+    private final int[] counts;
+
+    // Number of items
+    private final int size;
+
+    /**
+     * Creates an empty list
+     */
+    public NameOrderList() {
+        this(new FoodItem[1][], new int[1], 0, 0);
+    }
+
+    /**
+     * Creates a list of items already in name order
+     *
+     * @param sorted the items in name order
+     */
+    public NameOrderList(List<FoodItem> sorted) {
+        this(sorted.toArray(new FoodItem[0]));
+    }
+
+    /**
+     * Creates a list of items already in name order, filling every leaf to
+     * BULK_FILL
+     *
+     * @param sorted the items in name order
+     */
+    private NameOrderList(FoodItem[] sorted) {
+        this(bulkLeaves(sorted), bulkSizes(sorted.length), (sorted.length + BULK_FILL - 1) / BULK_FILL,
+                sorted.length);
+    }
+
+    /**
+     * Creates a list of leaves
+     *
+     * @param leaves the leaves in order, possibly followed by unused slots
+     * @param leafSizes number of items of every leaf
+     * @param leafCount number of leaves
+     * @param size number of items
+     */
+    private NameOrderList(FoodItem[][] leaves, int[] leafSizes, int leafCount, int size) {
+        this.leaves = leaves;
+        this.leafSizes = leafSizes;
+        this.leafCount = leafCount;
+        this.size = size;
+        // Fenwick tree of the leaf sizes, built in linear time
+        counts = new int[leafCount + 1];
+        for (int i = 1; i <= leafCount; i++) {
+            counts[i] += leafSizes[i - 1];
+            int parent = i + (i & -i);
+            if (parent <= leafCount) {
+                counts[parent] += counts[i];
+            }
+        }
+    }
+
+    /**
+     * Splits sorted items into leaves of BULK_FILL items
+     *
+     * @param sorted the items in name order
+     * @return the leaves, at least one slot
+     */
+    private static FoodItem[][] bulkLeaves(FoodItem[] sorted) {
+        FoodItem[][] leaves = new FoodItem[Math.max(1, (sorted.length + BULK_FILL - 1) / BULK_FILL)][];
+        for (int from = 0, leaf = 0; from < sorted.length; from += BULK_FILL, leaf++) {
+            leaves[leaf] = new FoodItem[LEAF_CAPACITY];
+            System.arraycopy(sorted, from, leaves[leaf], 0, Math.min(BULK_FILL, sorted.length - from));
+        }
+        return leaves;
+    }
+
+    /**
+     * Gives the sizes of the leaves of bulkLeaves()
+     *
+     * @param count number of items
+     * @return number of items of every leaf
+     */
+    private static int[] bulkSizes(int count) {
+        int[] sizes = new int[Math.max(1, (count + BULK_FILL - 1) / BULK_FILL)];
+        for (int from = 0, leaf = 0; from < count; from += BULK_FILL, leaf++) {
+            sizes[leaf] = Math.min(BULK_FILL, count - from);
+        }
+        return sizes;
+    }
+
+    /**
+     * Sorts items by name, on every core, into a new list
+     *
+     * @param items the items in any order
+     * @return the list
+     */
+    public static NameOrderList sortedOf(Collection<FoodItem> items) {
+        FoodItem[] sorted = items.toArray(new FoodItem[0]);
+        Arrays.parallelSort(sorted, FoodItem::compareNames);
+        return new NameOrderList(sorted);
+    }
+
+    /**
+     * Gives the list with an item added at its place in name order, after
+     * the items of the same name. This list is left as it is.
+     *
+     * @param item the item
+     * @return the new list
+     */
+    public NameOrderList inserting(FoodItem item) {
+        return insertingAll(Collections.singletonList(item));
+    }
+
+    /**
+     * Gives the list with items added at their place in name order, each
+     * after the items of the same name already in the list. Every leaf an
+     * item goes into is copied once, the other leaves are shared; this list
+     * is left as it is.
+     *
+     * @param sorted the items in name order
+     * @return the new list
+     */
+    public NameOrderList insertingAll(List<FoodItem> sorted) {
+        if (sorted.isEmpty()) {
+            return this;
+        }
+        FoodItem[][] newLeaves = Arrays.copyOf(leaves, Math.max(1, leafCount) + 1);
+        int[] newSizes = Arrays.copyOf(leafSizes, newLeaves.length);
+        boolean[] copied = new boolean[newLeaves.length];
+        int count = leafCount;
+        if (count == 0) {
+            newLeaves[0] = new FoodItem[LEAF_CAPACITY];
+            copied[0] = true;
+            count = 1;
+        }
+
+        int leafIndex = 0;
+        for (FoodItem item : sorted) {
+            // first leaf whose last item sorts after the item, else the
+            // last; the items before went into this leaf or earlier ones
+            int low = leafIndex;
+            int high = count - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (FoodItem.compareNames(newLeaves[middle][newSizes[middle] - 1], item) > 0) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            leafIndex = low;
+            if (!copied[leafIndex]) {
+                newLeaves[leafIndex] = newLeaves[leafIndex].clone();
+                copied[leafIndex] = true;
+            }
+            FoodItem[] leaf = newLeaves[leafIndex];
+            int leafSize = newSizes[leafIndex];
+
+            // position after the items that do not sort after it
+            low = 0;
+            high = leafSize;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (FoodItem.compareNames(leaf[middle], item) > 0) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            System.arraycopy(leaf, low, leaf, low + 1, leafSize - low);
+            leaf[low] = item;
+            newSizes[leafIndex] = leafSize + 1;
+            if (leafSize + 1 < LEAF_CAPACITY) {
+                continue;
+            }
+
+            // the leaf is full: split it into two halves
+            if (count == newLeaves.length) {
+                newLeaves = Arrays.copyOf(newLeaves, count * 2);
+                newSizes = Arrays.copyOf(newSizes, count * 2);
+                copied = Arrays.copyOf(copied, count * 2);
+            }
+            System.arraycopy(newLeaves, leafIndex + 1, newLeaves, leafIndex + 2, count - leafIndex - 1);
+            System.arraycopy(newSizes, leafIndex + 1, newSizes, leafIndex + 2, count - leafIndex - 1);
+            System.arraycopy(copied, leafIndex + 1, copied, leafIndex + 2, count - leafIndex - 1);
+            int half = LEAF_CAPACITY / 2;
+            FoodItem[] upper = new FoodItem[LEAF_CAPACITY];
+            System.arraycopy(leaf, half, upper, 0, LEAF_CAPACITY - half);
+            Arrays.fill(leaf, half, LEAF_CAPACITY, null);
+            newLeaves[leafIndex + 1] = upper;
+            newSizes[leafIndex] = half;
+            newSizes[leafIndex + 1] = LEAF_CAPACITY - half;
+            copied[leafIndex + 1] = true;
+            count++;
+        }
+        return new NameOrderList(newLeaves, newSizes, count, size + sorted.size());
+    }
+
+    /**
+     * Gets the item at a position
+     *
+     * @param index the position
+     * @return the item
+     * @throws IndexOutOfBoundsException if the position is not in the list
+     */
+    @Override
+    public FoodItem get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        // descend the Fenwick tree to the last leaf starting at or before
+        // the index
+        int leaf = 0;
+        int rest = index;
+        for (int step = Integer.highestOneBit(leafCount); step > 0; step >>= 1) {
+            int next = leaf + step;
+            if (next <= leafCount && counts[next] <= rest) {
+                leaf = next;
+                rest -= counts[next];
+            }
+        }
+        return leaves[leaf][rest];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Walks the leaves directly rather than looking every position up
+     */
+    @Override
+    public Iterator<FoodItem> iterator() {
+        return new Iterator<FoodItem>() {
+
+            // Position of the next item
+            private int leaf;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while (leaf < leafCount && index == leafSizes[leaf]) {
+                    leaf++;
+                    index = 0;
+                }
+                return leaf < leafCount;
+            }
+
+            @Override
+            public FoodItem next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return leaves[leaf][index++];
+            }
+        };
+    }
+
+    @Override
+    public Object[] toArray() {
+        Object[] array = new Object[size];
+        int at = 0;
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            System.arraycopy(leaves[leaf], 0, array, at, leafSizes[leaf]);
+            at += leafSizes[leaf];
+        }
+        return array;
+    }
+
+    /**
+     * @return estimated bytes of the list, see MemoryReport
+     */
+    public long memoryBytes() {
+        return MemoryReport.arrayBytes(leaves.length, MemoryReport.REFERENCE_BYTES)
+                + (long) leafCount * MemoryReport.arrayBytes(LEAF_CAPACITY, MemoryReport.REFERENCE_BYTES)
+                + MemoryReport.arrayBytes(leafSizes.length, 4) + MemoryReport.arrayBytes(counts.length, 4);
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Filename:   NameSearchSession.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Name searches of one user, typically one search field, that reuse the
+ * results of the searches before them.
+ *
+ * A name containing "soyb" also contains "soy", so once "soy" was searched
+ * a search for "soyb" only has to check the items found for "soy" that
+ * the name index also lists for "soyb", instead of the whole catalog; the
+ * longer the text typed, the fewer items are left to check. Their ordinals
+ * are kept in ascending order, the order the names are stored in, so the
+ * check reads the names sequentially. A search repeated after a backspace
+ * is answered from the cache outright.
+ *
+ * The cache keeps the results of the last MAX_QUERIES complete searches,
+ * least recently used first out, and at most MAX_ITEMS items over all of
+ * them. It is cleared whenever the catalog changes. Stopped searches are
+ * not kept, since their results may be missing items.
+ */
+public class NameSearchSession {
+
+    // Most searches kept
+    private static final int MAX_QUERIES = 16;
+
+    // Most items kept over all the searches
+    private static final int MAX_ITEMS = 1 << 21;
+
+    // The catalog searched
+    private final FoodData foodData;
+
+    /**
+     * Results of a search
+     */
+    private static class Found {
+
+        // The items in name order
+        final List<FoodItem> items;
+
+        // Their ordinals in ascending order
+        final int[] ordinals;
+
+        Found(List<FoodItem> items) {
+            this.items = items;
+            // ascending through a bitmap rather than sorting
+            int highest = -1;
+            for (FoodItem item : items) {
+                highest = Math.max(highest, item.getOrdinal());
+            }
+            long[] bits = new long[(highest >> 6) + 1];
+            for (FoodItem item : items) {
+                bits[item.getOrdinal() >> 6] |= 1L << item.getOrdinal();
+            }
+            ordinals = new int[items.size()];
+            int count = 0;
+            for (int word = 0; word < bits.length; word++) {
+                for (long rest = bits[word]; rest != 0; rest &= rest - 1) {
+                    ordinals[count++] = word << 6 | Long.numberOfTrailingZeros(rest);
+                }
+            }
+        }
+    }
+
+    // Results by folded search text, one char per byte, in order of last
+    // use
+    private final LinkedHashMap<String, Found> results =
+            new LinkedHashMap<String, Found>(MAX_QUERIES, 0.75f, true);
+
+    // Number of items in the results
+    private int itemCount;
+
+    // Value of FoodData.catalogVersion() the results were found with
+    private long version = -1;
+
+    /**
+     * Public constructor
+     *
+     * @param foodData the catalog to search
+     */
+    public NameSearchSession(FoodData foodData) {
+        this.foodData = foodData;
+    }
+
+    /**
+     * Gets the food items whose name contains a substring, like
+     * FoodData.filterByName(), from the cached results when possible
+     *
+     * @param substring substring to be searched
+     * @param context deadline and cancellation state of the search
+     * @return the items found in name order, flagged as incomplete if the
+     *         search was stopped
+     */
+    public synchronized QueryResult<FoodItem> search(String substring, QueryContext context) {
+        byte[] folded = NameStore.fold(substring);
+        String key = new String(folded, StandardCharsets.ISO_8859_1);
+        long current = foodData.catalogVersion();
+        if (current != version) {
+            clear();
+            version = current;
+        }
+
+        Found cached = results.get(key);
+        if (cached != null) {
+            return QueryResult.of(new ArrayList<FoodItem>(cached.items), context);
+        }
+
+        // The fewest items found by a search for part of the text
+        int[] within = null;
+        for (Map.Entry<String, Found> entry : results.entrySet()) {
+            int[] ordinals = entry.getValue().ordinals;
+            if (key.contains(entry.getKey()) && (within == null || ordinals.length < within.length)) {
+                within = ordinals;
+            }
+        }
+
+        QueryResult<FoodItem> result = foodData.filterByName(substring, within, context);
+
+        // the catalog may have changed while searching
+        if (result.isComplete() && foodData.catalogVersion() == version) {
+            put(key, new Found(new ArrayList<FoodItem>(result.getItems())));
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the results of a search, dropping the least recently used ones
+     * over the limits
+     *
+     * @param key folded search text
+     * @param found the results
+     */
+    private void put(String key, Found found) {
+        if (found.ordinals.length > MAX_ITEMS) {
+            return;
+        }
+        results.put(key, found);
+        itemCount += found.ordinals.length;
+        Iterator<Found> eldest = results.values().iterator();
+        while (results.size() > MAX_QUERIES || itemCount > MAX_ITEMS) {
+            itemCount -= eldest.next().ordinals.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Forgets every cached result
+     */
+    public synchronized void clear() {
+        results.clear();
+        itemCount = 0;
+    }
+}
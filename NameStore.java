@@ -0,0 +1,682 @@
+/**
+ * Filename:   NameStore.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compact storage for food item names.
+ *
+ * Names follow a Brand_ProductName convention with a lot of repeated
+ * brands, so the brand is dictionary-encoded: it is stored once and every
+ * name only keeps its brand code and the UTF-8 bytes of the rest of the
+ * name in a shared byte arena. A name is referred to by an int handle.
+ *
+ * Comparisons and substring tests are case-insensitive and work directly
+ * on the stored bytes, without creating Strings. Names are folded to upper
+ * case, the same ordering as comparing toUpperCase() Strings. For ASCII
+ * bytes the folding is a precomputed table lookup; names with other
+ * characters get their folded bytes precomputed and stored after the raw
+ * ones.
+ *
+ * Names are only ever added, under the lock of the store. Adding one may
+ * replace the arrays by larger copies; the array fields are volatile, so a
+ * thread reading a name it was handed while another adds names sees either
+ * the arrays it was stored in or copies holding it, without locking.
+ */
+public class NameStore {
+
+    // Separator between the brand and the product name
+    private static final byte SEPARATOR = '_';
+
+    // Upper case of every ASCII byte
+    private static final byte[] FOLD = new byte[128];
+
+    static {
+        for (int i = 0; i < FOLD.length; i++) {
+            FOLD[i] = (byte) (i >= 'a' && i <= 'z' ? i - ('a' - 'A') : i);
+        }
+    }
+
+    // Open addressing table of brand codes hashed by their bytes, -1 if
+    // the slot is empty
+    private int[] brandTable;
+
+    // Brands by code: as written, and folded; the first brandCount entries
+    // are used
+    private volatile byte[][] brands;
+    private volatile byte[][] foldedBrands;
+
+    // Number of distinct brands
+    private volatile int brandCount;
+
+    // Per handle: brand code (-1 if the name has no brand), arena offset and
+    // length of the rest of the name, and length of its folded bytes stored
+    // right after it (0 if the name is ASCII and folded by table lookup)
+    private volatile int[] brandOf;
+    private volatile int[] offsets;
+    private volatile int[] lengths;
+    private volatile int[] foldedLengths;
+
+    // Shared storage of the name bytes
+    private volatile byte[] arena;
+
+    // Bytes used in the arena
+    private int arenaEnd;
+
+    // Number of names
+    private int size;
+
+    /**
+     * Public constructor
+     */
+    public NameStore() {
+        brandTable = new int[16];
+        Arrays.fill(brandTable, -1);
+        brands = new byte[16][];
+        foldedBrands = new byte[16][];
+        brandOf = new int[16];
+        offsets = new int[16];
+        lengths = new int[16];
+        foldedLengths = new int[16];
+        arena = new byte[1024];
+    }
+
+    /**
+     * Stores a name
+     *
+     * @param name the name
+     * @return the handle of the stored name
+     */
+    public int add(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Stores a name given as UTF-8 bytes, without decoding it
+     *
+     * @param bytes array holding the name
+     * @param from position of the first byte of the name
+     * @param to position after the last byte of the name
+     * @return the handle of the stored name
+     */
+    public synchronized int add(byte[] bytes, int from, int to) {
+        // a '_' byte is never part of a multi-byte character
+        int separator = from;
+        while (separator < to && bytes[separator] != SEPARATOR) {
+            separator++;
+        }
+        int brand = -1;
+        int restFrom = from;
+        if (separator > from && separator < to) {
+            brand = brandCode(bytes, from, separator);
+            restFrom = separator + 1;
+        }
+
+        int rawLength = to - restFrom;
+        byte[] folded = null;
+        if (!isAscii(bytes, restFrom, to)) {
+            folded = fold(new String(bytes, restFrom, rawLength, StandardCharsets.UTF_8));
+        }
+        int needed = rawLength + (folded == null ? 0 : folded.length);
+        ensureCapacity(1, needed);
+
+        System.arraycopy(bytes, restFrom, arena, arenaEnd, rawLength);
+        if (folded != null) {
+            System.arraycopy(folded, 0, arena, arenaEnd + rawLength, folded.length);
+        }
+        brandOf[size] = brand;
+        offsets[size] = arenaEnd;
+        lengths[size] = rawLength;
+        foldedLengths[size] = folded == null ? 0 : folded.length;
+        arenaEnd += needed;
+        return size++;
+    }
+
+    /**
+     * Appends every name of another store. A name stored there with handle h
+     * has handle base + h here, where base is the returned value.
+     *
+     * @param other the store to copy, not changed while it is copied
+     * @return the base of the copied handles
+     */
+    public synchronized int append(NameStore other) {
+        int[] brandCodes = new int[other.brandCount];
+        for (int code = 0; code < brandCodes.length; code++) {
+            byte[] brand = other.brands[code];
+            brandCodes[code] = brandCode(brand, 0, brand.length);
+        }
+        ensureCapacity(other.size, other.arenaEnd);
+
+        System.arraycopy(other.arena, 0, arena, arenaEnd, other.arenaEnd);
+        for (int handle = 0; handle < other.size; handle++) {
+            int brand = other.brandOf[handle];
+            brandOf[size + handle] = brand < 0 ? -1 : brandCodes[brand];
+            offsets[size + handle] = arenaEnd + other.offsets[handle];
+            lengths[size + handle] = other.lengths[handle];
+            foldedLengths[size + handle] = other.foldedLengths[handle];
+        }
+        int base = size;
+        size += other.size;
+        arenaEnd += other.arenaEnd;
+        return base;
+    }
+
+    /**
+     * Writes every name to a snapshot section, see CatalogSnapshot
+     *
+     * @param out the snapshot being written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void writeSnapshot(CatalogSnapshot.Writer out) throws IOException {
+        out.putInt(size);
+        out.putInt(arenaEnd);
+        out.putInt(brandCount);
+        for (int code = 0; code < brandCount; code++) {
+            byte[] brand = brands[code];
+            out.putInt(brand.length);
+            out.putBytes(brand, brand.length);
+        }
+        out.putInts(brandOf, size);
+        out.putInts(offsets, size);
+        out.putInts(lengths, size);
+        out.putInts(foldedLengths, size);
+        out.putBytes(arena, arenaEnd);
+    }
+
+    /**
+     * Reads the names written by writeSnapshot(). Every name keeps its
+     * handle.
+     *
+     * @param section the snapshot section
+     * @return the store
+     */
+    public static NameStore readSnapshot(ByteBuffer section) {
+        NameStore store = new NameStore();
+        store.size = section.getInt();
+        store.arenaEnd = section.getInt();
+        int brandCount = section.getInt();
+        for (int code = 0; code < brandCount; code++) {
+            byte[] brand = CatalogSnapshot.getBytes(section, section.getInt());
+            // brands come in code order, so they get their codes back
+            store.brandCode(brand, 0, brand.length);
+        }
+        store.brandOf = CatalogSnapshot.getInts(section, store.size);
+        store.offsets = CatalogSnapshot.getInts(section, store.size);
+        store.lengths = CatalogSnapshot.getInts(section, store.size);
+        store.foldedLengths = CatalogSnapshot.getInts(section, store.size);
+        store.arena = CatalogSnapshot.getBytes(section, store.arenaEnd);
+        return store;
+    }
+
+    /**
+     * Grows the arrays to make room for more names
+     *
+     * @param names number of names to make room for
+     * @param bytes number of arena bytes to make room for
+     */
+    private void ensureCapacity(int names, int bytes) {
+        if (arenaEnd + bytes > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaEnd + bytes));
+        }
+        if (size + names > offsets.length) {
+            int capacity = Math.max(offsets.length * 2, size + names);
+            brandOf = Arrays.copyOf(brandOf, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            foldedLengths = Arrays.copyOf(foldedLengths, capacity);
+        }
+    }
+
+    /**
+     * Gets a stored name
+     *
+     * @param handle handle of the name
+     * @return the name
+     */
+    public String name(int handle) {
+        String rest = new String(arena, offsets[handle], lengths[handle], StandardCharsets.UTF_8);
+        int brand = brandOf[handle];
+        if (brand < 0) {
+            return rest;
+        }
+        return new String(brands[brand], StandardCharsets.UTF_8) + (char) SEPARATOR + rest;
+    }
+
+    /**
+     * Gets the brand of a stored name
+     *
+     * @param handle handle of the name
+     * @return the brand code, -1 if the name has no brand
+     */
+    public int brand(int handle) {
+        return brandOf[handle];
+    }
+
+    /**
+     * Gets a brand
+     *
+     * @param code the brand code
+     * @return the brand as written in the names
+     */
+    public String brandName(int code) {
+        return new String(brands[code], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Looks up a brand
+     *
+     * @param brand the brand as written in the names
+     * @return its code, -1 if no stored name has it
+     */
+    public synchronized int findBrand(String brand) {
+        byte[] bytes = brand.getBytes(StandardCharsets.UTF_8);
+        int mask = brandTable.length - 1;
+        int slot = hash(bytes, 0, bytes.length) & mask;
+        while (brandTable[slot] >= 0) {
+            byte[] candidate = brands[brandTable[slot]];
+            if (candidate.length == bytes.length && rangeEquals(candidate, bytes, 0)) {
+                return brandTable[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of distinct brands
+     */
+    public int brandCount() {
+        return brandCount;
+    }
+
+    /**
+     * @return the number of stored names
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return estimated bytes of the arena, the per-name arrays and the
+     *         brand dictionary, see MemoryReport
+     */
+    public long memoryBytes() {
+        long bytes = MemoryReport.arrayBytes(arena.length, 1)
+                + 4 * MemoryReport.arrayBytes(offsets.length, 4)
+                + MemoryReport.arrayBytes(brandTable.length, 4);
+        for (int code = 0; code < brandCount; code++) {
+            bytes += MemoryReport.arrayBytes(brands[code].length, 1)
+                    + MemoryReport.arrayBytes(foldedBrands[code].length, 1);
+        }
+        return bytes;
+    }
+
+    /**
+     * Compares two stored names ignoring case
+     *
+     * @param first handle of the first name
+     * @param second handle of the second name
+     * @return negative, zero or positive as the first name sorts before,
+     *         equal to or after the second one
+     */
+    public int compareFolded(int first, int second) {
+        int brand = brandOf[first];
+        if (brand >= 0 && brand == brandOf[second]) {
+            // same brand and separator, only the rest can differ
+            return compareRests(first, second);
+        }
+        byte[] bytes = arena;
+        byte[] firstBrand = foldedBrand(first);
+        byte[] secondBrand = foldedBrand(second);
+        int firstRest = restStart(first);
+        int secondRest = restStart(second);
+        boolean firstAscii = foldedLengths[first] == 0;
+        boolean secondAscii = foldedLengths[second] == 0;
+        int firstLength = foldedLength(first);
+        int secondLength = foldedLength(second);
+        int common = Math.min(firstLength, secondLength);
+        for (int i = 0; i < common; i++) {
+            int difference = foldedAt(bytes, firstBrand, firstRest, firstAscii, i)
+                    - foldedAt(bytes, secondBrand, secondRest, secondAscii, i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return firstLength - secondLength;
+    }
+
+    /**
+     * Compares the folded rests of two stored names, the part after the
+     * brand
+     *
+     * @param first handle of the first name
+     * @param second handle of the second name
+     * @return negative, zero or positive as the first rest sorts before,
+     *         equal to or after the second one
+     */
+    private int compareRests(int first, int second) {
+        byte[] bytes = arena;
+        int[] restLengths = lengths;
+        int[] restFoldedLengths = foldedLengths;
+        int firstLength = restFoldedLengths[first] == 0 ? restLengths[first] : restFoldedLengths[first];
+        int secondLength = restFoldedLengths[second] == 0 ? restLengths[second] : restFoldedLengths[second];
+        int common = Math.min(firstLength, secondLength);
+        int firstRest = restStart(first);
+        int secondRest = restStart(second);
+        if (restFoldedLengths[first] == 0 && restFoldedLengths[second] == 0) {
+            // both ASCII, fold straight from the arena
+            for (int i = 0; i < common; i++) {
+                int difference = FOLD[bytes[firstRest + i]] - FOLD[bytes[secondRest + i]];
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+        } else {
+            boolean firstAscii = restFoldedLengths[first] == 0;
+            boolean secondAscii = restFoldedLengths[second] == 0;
+            for (int i = 0; i < common; i++) {
+                int difference = foldedAt(bytes, null, firstRest, firstAscii, i)
+                        - foldedAt(bytes, null, secondRest, secondAscii, i);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+        }
+        return firstLength - secondLength;
+    }
+
+    /**
+     * Compares the start of a stored name with a prefix, ignoring case.
+     * Since names are ordered by compareFolded(), the names starting with
+     * a prefix are next to each other in that order.
+     *
+     * @param handle handle of the name
+     * @param prefix the prefix, already folded with fold()
+     * @return zero if the name starts with the prefix, negative or positive
+     *         as the name sorts before or after every name that does
+     */
+    public int comparePrefix(int handle, byte[] prefix) {
+        byte[] bytes = arena;
+        byte[] brand = foldedBrand(handle);
+        int rest = restStart(handle);
+        boolean ascii = foldedLengths[handle] == 0;
+        int length = foldedLength(handle);
+        for (int i = 0; i < Math.min(length, prefix.length); i++) {
+            int difference = foldedAt(bytes, brand, rest, ascii, i) - (prefix[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length < prefix.length ? -1 : 0;
+    }
+
+    /**
+     * Checks whether a stored name contains a substring, ignoring case
+     *
+     * @param handle handle of the name
+     * @param needle the substring, already folded with fold()
+     * @return true if the name contains it
+     */
+    public boolean containsFolded(int handle, byte[] needle) {
+        byte[] bytes = arena;
+        byte[] brand = foldedBrand(handle);
+        int rest = restStart(handle);
+        boolean ascii = foldedLengths[handle] == 0;
+        int last = foldedLength(handle) - needle.length;
+        for (int start = 0; start <= last; start++) {
+            int i = 0;
+            while (i < needle.length && foldedAt(bytes, brand, rest, ascii, start + i) == (needle[i] & 0xFF)) {
+                i++;
+            }
+            if (i == needle.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the folded form of a stored name, the one containsFolded()
+     * searches
+     *
+     * @param handle handle of the name
+     * @param buffer receives the folded bytes, as many as fit
+     * @return the number of folded bytes, more than the buffer length if
+     *         it was too small
+     */
+    public int copyFolded(int handle, byte[] buffer) {
+        byte[] bytes = arena;
+        byte[] brand = foldedBrand(handle);
+        int rest = restStart(handle);
+        boolean ascii = foldedLengths[handle] == 0;
+        int length = foldedLength(handle);
+        for (int i = 0; i < Math.min(length, buffer.length); i++) {
+            buffer[i] = (byte) foldedAt(bytes, brand, rest, ascii, i);
+        }
+        return length;
+    }
+
+    /**
+     * Folds a string the way stored names are folded
+     *
+     * @param text the string
+     * @return its folded UTF-8 bytes
+     */
+    public static byte[] fold(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (isAscii(bytes)) {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = FOLD[bytes[i]];
+            }
+            return bytes;
+        }
+        return text.toUpperCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares folded bytes the way compareFolded() compares stored names
+     *
+     * @param first folded bytes
+     * @param second other folded bytes
+     * @return negative, zero or positive as first sorts before, equal to or
+     *         after second
+     */
+    public static int compare(byte[] first, byte[] second) {
+        int common = Math.min(first.length, second.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (first[i] & 0xFF) - (second[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return first.length - second.length;
+    }
+
+    /**
+     * Finds folded bytes in other folded bytes
+     *
+     * @param haystack bytes to search
+     * @param needle bytes to find
+     * @return position of the first occurrence, -1 if there is none
+     */
+    public static int indexOf(byte[] haystack, byte[] needle) {
+        for (int start = 0; start <= haystack.length - needle.length; start++) {
+            int i = 0;
+            while (i < needle.length && haystack[start + i] == needle[i]) {
+                i++;
+            }
+            if (i == needle.length) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the length of the folded form of a stored name
+     *
+     * @param handle handle of the name
+     * @return the number of folded bytes
+     */
+    private int foldedLength(int handle) {
+        int rest = foldedLengths[handle] == 0 ? lengths[handle] : foldedLengths[handle];
+        int brand = brandOf[handle];
+        return brand < 0 ? rest : foldedBrands[brand].length + 1 + rest;
+    }
+
+    /**
+     * Gets the folded brand of a stored name
+     *
+     * @param handle handle of the name
+     * @return the folded brand, null if the name has no brand
+     */
+    private byte[] foldedBrand(int handle) {
+        int brand = brandOf[handle];
+        return brand < 0 ? null : foldedBrands[brand];
+    }
+
+    /**
+     * Gets where the folded rest of a stored name, the part after the
+     * brand, starts in the arena: at the raw bytes of an ASCII rest, folded
+     * by table lookup, or else at the folded bytes stored after them
+     *
+     * @param handle handle of the name
+     * @return the arena offset
+     */
+    private int restStart(int handle) {
+        int offset = offsets[handle];
+        return foldedLengths[handle] == 0 ? offset : offset + lengths[handle];
+    }
+
+    /**
+     * Gets a byte of the folded form of a stored name, which is the folded
+     * brand, the separator and the folded rest of the name. Takes the parts
+     * of the name rather than its handle, so a loop over the bytes reads
+     * the arrays of the store once.
+     *
+     * @param bytes the arena
+     * @param foldedBrand folded brand of the name, null if it has none
+     * @param rest arena offset of the rest, see restStart()
+     * @param ascii true if the rest is ASCII, folded by table lookup
+     * @param index position in the folded form
+     * @return the byte, between 0 and 255
+     */
+    private static int foldedAt(byte[] bytes, byte[] foldedBrand, int rest, boolean ascii, int index) {
+        if (foldedBrand != null) {
+            if (index < foldedBrand.length) {
+                return foldedBrand[index] & 0xFF;
+            }
+            if (index == foldedBrand.length) {
+                return SEPARATOR;
+            }
+            index -= foldedBrand.length + 1;
+        }
+        return ascii ? FOLD[bytes[rest + index]] & 0xFF : bytes[rest + index] & 0xFF;
+    }
+
+    /**
+     * Gets the code of a brand, adding it to the dictionary if it is new
+     *
+     * @param bytes array holding the brand as UTF-8
+     * @param from position of the first byte of the brand
+     * @param to position after the last byte of the brand
+     * @return its code
+     */
+    private int brandCode(byte[] bytes, int from, int to) {
+        int mask = brandTable.length - 1;
+        int slot = hash(bytes, from, to) & mask;
+        while (brandTable[slot] >= 0) {
+            byte[] brand = brands[brandTable[slot]];
+            if (brand.length == to - from && rangeEquals(brand, bytes, from)) {
+                return brandTable[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int code = brandCount;
+        if (code == brands.length) {
+            brands = Arrays.copyOf(brands, 2 * code);
+            foldedBrands = Arrays.copyOf(foldedBrands, 2 * code);
+        }
+        byte[] brand = Arrays.copyOfRange(bytes, from, to);
+        brands[code] = brand;
+        foldedBrands[code] = fold(new String(brand, StandardCharsets.UTF_8));
+        brandCount = code + 1;
+        brandTable[slot] = code;
+        // keep the table at most half full
+        if (2 * brandCount > brandTable.length) {
+            rehashBrands(brandTable.length * 2);
+        }
+        return code;
+    }
+
+    /**
+     * Moves every brand code into a table of the given capacity
+     *
+     * @param capacity number of slots, a power of two
+     */
+    private void rehashBrands(int capacity) {
+        brandTable = new int[capacity];
+        Arrays.fill(brandTable, -1);
+        for (int code = 0; code < brandCount; code++) {
+            byte[] brand = brands[code];
+            int slot = hash(brand, 0, brand.length) & (capacity - 1);
+            while (brandTable[slot] >= 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            brandTable[slot] = code;
+        }
+    }
+
+    /**
+     * @return hash of the bytes between from and to
+     */
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return true if brand equals the bytes of the array starting at from
+     */
+    private static boolean rangeEquals(byte[] brand, byte[] bytes, int from) {
+        for (int i = 0; i < brand.length; i++) {
+            if (brand[i] != bytes[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every byte is ASCII
+     */
+    private static boolean isAscii(byte[] bytes) {
+        return isAscii(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return true if every byte between from and to is ASCII
+     */
+    private static boolean isAscii(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Filename:   NameTokenizer.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits food item names into lower case terms.
+ *
+ * Names are compounds such as Stewarts_PremiumDarkChocolatewithMintCookie,
+ * so a term ends at any character that is not a letter or digit (the
+ * brand separator '_', spaces, punctuation), where a lower case letter is
+ * followed by an upper case one, where an acronym is followed by a
+ * capitalized word ("BBQSauce" is "bbq" and "sauce") and between letters
+ * and digits. The example above gives stewarts, premium, dark,
+ * chocolatewith, mint and cookie.
+ */
+public class NameTokenizer {
+
+    /**
+     * Not instantiable, see tokenize()
+     */
+    private NameTokenizer() {
+    }
+
+    /**
+     * Splits a name into terms
+     *
+     * @param name the name
+     * @return its terms in order, lower case, repeated terms included
+     */
+    public static List<String> tokenize(String name) {
+        List<String> terms = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= name.length(); i++) {
+            char c = i < name.length() ? name.charAt(i) : ' ';
+            if (!Character.isLetterOrDigit(c)) {
+                if (start >= 0) {
+                    terms.add(name.substring(start, i).toLowerCase(Locale.ROOT));
+                    start = -1;
+                }
+                continue;
+            }
+            if (start >= 0 && startsTerm(name, i)) {
+                terms.add(name.substring(start, i).toLowerCase(Locale.ROOT));
+                start = i;
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Checks whether a new term starts at a letter or digit that follows
+     * another one
+     *
+     * @param name the name
+     * @param i position of the character, greater than 0
+     * @return true if the character starts a term
+     */
+    private static boolean startsTerm(String name, int i) {
+        char previous = name.charAt(i - 1);
+        char c = name.charAt(i);
+        if (Character.isDigit(previous) != Character.isDigit(c)) {
+            return true;
+        }
+        if (Character.isUpperCase(c)) {
+            if (Character.isLowerCase(previous)) {
+                return true;
+            }
+            // last capital of an acronym followed by a capitalized word
+            return Character.isUpperCase(previous) && i + 1 < name.length()
+                    && Character.isLowerCase(name.charAt(i + 1));
+        }
+        return false;
+    }
+}
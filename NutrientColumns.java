@@ -0,0 +1,283 @@
+/**
+ * Filename:   NutrientColumns.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays copy of the nutrient values of a catalog.
+ *
+ * Every nutrient is kept as one contiguous double[] column indexed by item
+ * ordinal (the position of the item in load order), with NaN marking an
+ * absent value. Scanning a column touches memory sequentially, which is
+ * what ColumnScan relies on to beat walking the B+ trees for queries that
+ * match a large share of the catalog.
+ */
+public class NutrientColumns {
+
+    // Initial number of rows allocated
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Columns indexed by NutrientSchema ordinal, null if no row has a value
+    private double[][] columns;
+
+    // Number of rows
+    private int size;
+
+    // Number of rows the columns can hold before growing
+    private int capacity;
+
+    /**
+     * Public constructor
+     */
+    public NutrientColumns() {
+        columns = new double[0][];
+        capacity = INITIAL_CAPACITY;
+    }
+
+    /**
+     * Appends a row holding the nutrients of the given item
+     *
+     * @param item item whose nutrients are copied
+     * @return the ordinal of the new row
+     */
+    public int append(FoodItem item) {
+        if (size == capacity) {
+            grow(capacity * 2);
+        }
+        int row = size++;
+        for (int ordinal = 0; ordinal < NutrientSchema.size(); ordinal++) {
+            if (item.hasNutrient(ordinal)) {
+                set(row, ordinal, item.getNutrientValue(ordinal));
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Sets the value of a nutrient in a row
+     *
+     * @param row ordinal of the row
+     * @param ordinal NutrientSchema ordinal of the nutrient
+     * @param value new value, NaN to mark it absent
+     */
+    public void set(int row, int ordinal, double value) {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size);
+        }
+        if (ordinal >= columns.length) {
+            columns = Arrays.copyOf(columns, ordinal + 1);
+        }
+        if (columns[ordinal] == null) {
+            if (Double.isNaN(value)) {
+                return;
+            }
+            columns[ordinal] = newColumn(capacity);
+        }
+        columns[ordinal][row] = value;
+    }
+
+    /**
+     * Removes a row by moving the last row into its place, so the rows stay
+     * contiguous
+     *
+     * @param row ordinal of the row to remove
+     * @return former ordinal of the row moved into its place, equal to row
+     *         if it was the last one
+     */
+    public int removeRow(int row) {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size);
+        }
+        int last = --size;
+        for (double[] column : columns) {
+            if (column != null) {
+                column[row] = column[last];
+                column[last] = Double.NaN;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Gets the value of a nutrient in a row
+     *
+     * @param row ordinal of the row
+     * @param ordinal NutrientSchema ordinal of the nutrient
+     * @return the value, NaN if the row does not have the nutrient
+     */
+    public double get(int row, int ordinal) {
+        if (ordinal >= columns.length || columns[ordinal] == null) {
+            return Double.NaN;
+        }
+        return columns[ordinal][row];
+    }
+
+    /**
+     * Gets the column of a nutrient. Only the first size() entries are
+     * rows, the rest is spare capacity filled with NaN.
+     *
+     * @param ordinal NutrientSchema ordinal of the nutrient
+     * @return the column, or null if no row has the nutrient
+     */
+    public double[] column(int ordinal) {
+        return ordinal < columns.length ? columns[ordinal] : null;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return estimated bytes of the columns, see MemoryReport
+     */
+    public long memoryBytes() {
+        long bytes = MemoryReport.arrayBytes(columns.length, MemoryReport.REFERENCE_BYTES);
+        for (double[] column : columns) {
+            if (column != null) {
+                bytes += MemoryReport.arrayBytes(column.length, 8);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the first rows that have a value for a nutrient, sorted by that
+     * value
+     *
+     * @param ordinal NutrientSchema ordinal of the nutrient
+     * @param rowCount number of rows to sort, at most size()
+     * @return the rows in ascending order of value, ties in any order
+     */
+    public int[] sortedRows(int ordinal, int rowCount) {
+        double[] column = column(ordinal);
+        if (column == null) {
+            return new int[0];
+        }
+        return sortedRows(column, rowCount);
+    }
+
+    /**
+     * Gets the first rows of a column, or of a copy of one, that have a
+     * value, sorted by that value
+     *
+     * @param column the column
+     * @param rowCount number of rows to sort, at most the column length
+     * @return the rows in ascending order of value, ties in any order
+     */
+    public static int[] sortedRows(double[] column, int rowCount) {
+        // sort the distinct values, then every row by the rank of its value
+        // and its row number packed in a long, so only primitives are sorted
+        double[] values = new double[rowCount];
+        int count = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (!Double.isNaN(column[row])) {
+                values[count++] = column[row];
+            }
+        }
+        Arrays.sort(values, 0, count);
+        long[] keys = new long[count];
+        int key = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (!Double.isNaN(column[row])) {
+                long rank = Arrays.binarySearch(values, 0, count, column[row]);
+                keys[key++] = rank << 32 | row;
+            }
+        }
+        Arrays.sort(keys);
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = (int) keys[i];
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the columns to a snapshot section, see CatalogSnapshot
+     *
+     * @param out the snapshot being written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void writeSnapshot(CatalogSnapshot.Writer out) throws IOException {
+        out.putInt(size);
+        out.putInt(columns.length);
+        for (double[] column : columns) {
+            out.putByte((byte) (column == null ? 0 : 1));
+            if (column != null) {
+                out.putDoubles(column, size);
+            }
+        }
+    }
+
+    /**
+     * Reads columns written by writeSnapshot()
+     *
+     * @param section the snapshot section
+     * @param ordinals NutrientSchema ordinal of every column of the snapshot
+     * @return the columns
+     */
+    public static NutrientColumns readSnapshot(ByteBuffer section, int[] ordinals) {
+        NutrientColumns loaded = new NutrientColumns();
+        loaded.size = section.getInt();
+        loaded.capacity = Math.max(INITIAL_CAPACITY, loaded.size);
+        int columnCount = section.getInt();
+        for (int i = 0; i < columnCount; i++) {
+            if (section.get() != 0) {
+                double[] column = newColumn(loaded.capacity);
+                section.asDoubleBuffer().get(column, 0, loaded.size);
+                section.position(section.position() + 8 * loaded.size);
+                if (ordinals[i] >= loaded.columns.length) {
+                    loaded.columns = Arrays.copyOf(loaded.columns, ordinals[i] + 1);
+                }
+                loaded.columns[ordinals[i]] = column;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Removes every row
+     */
+    public void clear() {
+        columns = new double[0][];
+        size = 0;
+        capacity = INITIAL_CAPACITY;
+    }
+
+    /**
+     * Grows every column to the given capacity
+     *
+     * @param newCapacity number of rows to make room for
+     */
+    private void grow(int newCapacity) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] != null) {
+                double[] grown = newColumn(newCapacity);
+                System.arraycopy(columns[i], 0, grown, 0, size);
+                columns[i] = grown;
+            }
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * Creates a column whose rows are all absent
+     *
+     * @param length number of rows
+     * @return the new column
+     */
+    private static double[] newColumn(int length) {
+        double[] column = new double[length];
+        Arrays.fill(column, Double.NaN);
+        return column;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Filename:   NutrientRule.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+/**
+ * A parsed filter rule of the form "<nutrient> <comparator> <value>".
+ *
+ * Rules are parsed once per query so the scan and the index lookups work
+ * on a nutrient ordinal and a primitive value instead of re-reading the
+ * rule string.
+ */
+public class NutrientRule {
+
+    // Comparison operators, in the order they appear in the rule string
+    public static final int LESS_EQUAL = 0;
+    public static final int EQUAL = 1;
+    public static final int GREATER_EQUAL = 2;
+
+    // NutrientSchema ordinal of the nutrient, -1 if it was never registered
+    private final int ordinal;
+
+    // The comparator as written in the rule: "<=", "==" or ">="
+    private final String comparator;
+
+    // One of LESS_EQUAL, EQUAL, GREATER_EQUAL
+    private final int operator;
+
+    // Value the nutrient is compared against
+    private final double value;
+
+    /**
+     * Constructor
+     *
+     * @param ordinal NutrientSchema ordinal of the nutrient
+     * @param comparator "<=", "==" or ">="
+     * @param value value the nutrient is compared against
+     */
+    public NutrientRule(int ordinal, String comparator, double value) {
+        if (comparator.equals("<=")) {
+            operator = LESS_EQUAL;
+        } else if (comparator.equals("==")) {
+            operator = EQUAL;
+        } else if (comparator.equals(">=")) {
+            operator = GREATER_EQUAL;
+        } else {
+            throw new IllegalArgumentException("Illegal comparator: " + comparator);
+        }
+        this.ordinal = ordinal;
+        this.comparator = comparator;
+        this.value = value;
+    }
+
+    /**
+     * Parses a rule. The nutrient name is case-insensitive.
+     *
+     * @param rule rule of the form "<nutrient> <comparator> <value>"
+     * @return the parsed rule
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    public static NutrientRule parse(String rule) {
+        String[] ruleSplit = rule.trim().split(" ");
+        if (ruleSplit.length != 3) {
+            throw new IllegalArgumentException("Illegal rule: " + rule);
+        }
+        int ordinal = NutrientSchema.ordinalOf(ruleSplit[0].toLowerCase());
+        // NumberFormatException is an IllegalArgumentException
+        return new NutrientRule(ordinal, ruleSplit[1], Double.parseDouble(ruleSplit[2]));
+    }
+
+    /**
+     * @return NutrientSchema ordinal of the nutrient, -1 if unknown
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * @return the comparator as written in the rule
+     */
+    public String getComparator() {
+        return comparator;
+    }
+
+    /**
+     * @return one of LESS_EQUAL, EQUAL, GREATER_EQUAL
+     */
+    public int getOperator() {
+        return operator;
+    }
+
+    /**
+     * @return value the nutrient is compared against
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Tests a nutrient value against the rule. NaN, used for absent
+     * nutrients, never matches.
+     *
+     * @param nutrientValue value to test
+     * @return true if the value satisfies the rule
+     */
+    public boolean matches(double nutrientValue) {
+        switch (operator) {
+            case LESS_EQUAL:
+                return nutrientValue <= value;
+            case EQUAL:
+                return nutrientValue == value;
+            default:
+                return nutrientValue >= value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (ordinal < 0 ? "?" : NutrientSchema.nameOf(ordinal)) + " " + comparator + " " + value;
+    }
+}
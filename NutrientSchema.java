@@ -0,0 +1,106 @@
+/**
+ * Filename:   NutrientSchema.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry that gives every nutrient name a small, stable ordinal.
+ *
+ * FoodItems store their nutrient values in a double[] indexed by these
+ * ordinals instead of a map keyed by name, so hot paths can look a value
+ * up with getNutrientValue(int) without hashing a String. The five
+ * nutrients of the file format are registered up front with fixed
+ * ordinals; any other name gets the next free ordinal the first time it
+ * is seen.
+ */
+public final class NutrientSchema {
+
+    // Ordinals of the nutrients every food item carries
+    public static final int CALORIES = 0;
+    public static final int FAT = 1;
+    public static final int CARBOHYDRATE = 2;
+    public static final int FIBER = 3;
+    public static final int PROTEIN = 4;
+
+    // Number of nutrients registered up front
+    public static final int CORE_COUNT = 5;
+
+    // Names indexed by ordinal, replaced (never modified) on registration
+    private static volatile String[] names = {"calories", "fat", "carbohydrate", "fiber", "protein"};
+
+    // Ordinal of every registered name
+    private static final ConcurrentHashMap<String, Integer> ordinals =
+            new ConcurrentHashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < names.length; i++) {
+            ordinals.put(names[i], i);
+        }
+    }
+
+    /**
+     * Not instantiable, the schema is shared by the whole program
+     */
+    private NutrientSchema() {
+    }
+
+    /**
+     * Gets the ordinal of a nutrient without registering it
+     *
+     * @param name name of the nutrient
+     * @return its ordinal, or -1 if it has never been registered
+     */
+    public static int ordinalOf(String name) {
+        Integer ordinal = ordinals.get(name);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Gets the ordinal of a nutrient, registering it if it is new
+     *
+     * @param name name of the nutrient
+     * @return its ordinal
+     */
+    public static int register(String name) {
+        Integer ordinal = ordinals.get(name);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        synchronized (NutrientSchema.class) {
+            // another thread may have registered it in the meantime
+            ordinal = ordinals.get(name);
+            if (ordinal != null) {
+                return ordinal;
+            }
+            String[] grown = Arrays.copyOf(names, names.length + 1);
+            grown[names.length] = name;
+            // publish the name before the ordinal so nameOf() always works
+            names = grown;
+            ordinals.put(name, grown.length - 1);
+            return grown.length - 1;
+        }
+    }
+
+    /**
+     * Gets the name of a nutrient
+     *
+     * @param ordinal ordinal of the nutrient
+     * @return its name
+     */
+    public static String nameOf(int ordinal) {
+        return names[ordinal];
+    }
+
+    /**
+     * @return the number of registered nutrients
+     */
+    public static int size() {
+        return names.length;
+    }
+}
@@ -0,0 +1,388 @@
+/**
+ * Filename:   OffHeapCatalog.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Catalog of food items stored outside the Java heap.
+ *
+ * Every item is a fixed-width record in direct memory: a reference to its
+ * name and id in a shared string arena, followed by one double per
+ * nutrient (NaN if absent). Records and strings live in chunks of direct
+ * ByteBuffers, so the heap only holds the chunk references no matter how
+ * many items are loaded. get() hands out a small flyweight FoodItem that
+ * reads the record on demand.
+ *
+ * Records have room for the nutrients known when the catalog is created.
+ * An item with a nutrient past them widens every record, which copies the
+ * records once; nutrients are few, so this is rare.
+ *
+ * Strings never straddle two chunks, so a single string is limited to the
+ * chunk size. The catalog and its views can be used from several threads:
+ * every access to the chunks holds the catalog lock.
+ */
+public class OffHeapCatalog {
+
+    // Size of every chunk of direct memory, 4 MB
+    private static final int CHUNK_SHIFT = 22;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    // Layout of a record
+    private static final int NAME_REF = 0;       // long, arena offset of the name
+    private static final int NAME_LENGTH = 8;    // int, bytes in the name
+    private static final int ID_REF = 12;        // long, arena offset of the id
+    private static final int ID_LENGTH = 20;     // int, bytes in the id
+    private static final int NUTRIENTS = 24;     // double per nutrient
+
+    // Number of nutrients every record has room for
+    private int width;
+
+    // Bytes in a record
+    private int recordSize;
+
+    // Records that fit in a chunk
+    private int recordsPerChunk;
+
+    // Chunks holding the records
+    private List<ByteBuffer> recordChunks;
+
+    // Chunks holding the names and ids
+    private final List<ByteBuffer> stringChunks;
+
+    // Number of records
+    private int size;
+
+    // Arena offset where the next string is written
+    private long stringEnd;
+
+    /**
+     * Public constructor
+     *
+     * @param width number of nutrients every record has room for at first;
+     *              records are widened for nutrients whose NutrientSchema
+     *              ordinal is not below it
+     */
+    public OffHeapCatalog(int width) {
+        if (width < 0) {
+            throw new IllegalArgumentException("Illegal width: " + width);
+        }
+        this.width = width;
+        this.recordSize = NUTRIENTS + 8 * width;
+        this.recordsPerChunk = CHUNK_SIZE / recordSize;
+        this.recordChunks = new ArrayList<ByteBuffer>();
+        this.stringChunks = new ArrayList<ByteBuffer>();
+    }
+
+    /**
+     * Loads a food item data file straight into a new catalog. Lines are
+     * parsed with a CatalogParser like FoodData.loadFoodItems() does and
+     * invalid ones skipped.
+     *
+     * @param filePath path of the food item data file
+     * @return the catalog
+     * @throws IOException if the file cannot be read
+     */
+    public static OffHeapCatalog load(String filePath) throws IOException {
+        // nutrients first seen in later rows widen the records
+        OffHeapCatalog catalog = new OffHeapCatalog(Math.max(NutrientSchema.size(), NutrientSchema.CORE_COUNT));
+        try (InputStream input = new FileInputStream(filePath)) {
+            new CatalogParser(null).parse(input, catalog::add);
+        }
+        return catalog;
+    }
+
+    /**
+     * Copies a food item into the catalog
+     *
+     * @param item the item to copy
+     * @return the ordinal of the new record
+     */
+    public synchronized int add(FoodItem item) {
+        int needed = width;
+        for (int i = width; i < NutrientSchema.size(); i++) {
+            if (item.hasNutrient(i)) {
+                needed = i + 1;
+            }
+        }
+        if (needed > width) {
+            widen(NutrientSchema.size());
+        }
+
+        int ordinal = size;
+        if (ordinal / recordsPerChunk == recordChunks.size()) {
+            recordChunks.add(ByteBuffer.allocateDirect(recordsPerChunk * recordSize));
+        }
+        ByteBuffer chunk = recordChunks.get(ordinal / recordsPerChunk);
+        int base = (ordinal % recordsPerChunk) * recordSize;
+
+        byte[] name = item.getName().getBytes(StandardCharsets.UTF_8);
+        chunk.putLong(base + NAME_REF, writeString(name));
+        chunk.putInt(base + NAME_LENGTH, name.length);
+        byte[] id = item.getID().getBytes(StandardCharsets.UTF_8);
+        chunk.putLong(base + ID_REF, writeString(id));
+        chunk.putInt(base + ID_LENGTH, id.length);
+
+        for (int i = 0; i < width; i++) {
+            chunk.putDouble(base + NUTRIENTS + 8 * i,
+                    item.hasNutrient(i) ? item.getNutrientValue(i) : Double.NaN);
+        }
+        size++;
+        return ordinal;
+    }
+
+    /**
+     * Gets a view of a record. The view holds no data of its own and reads
+     * the record every time one of its accessors is called.
+     *
+     * @param ordinal ordinal of the record
+     * @return the view
+     */
+    public synchronized FoodItem get(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("Ordinal: " + ordinal + ", size: " + size);
+        }
+        return new ItemView(ordinal);
+    }
+
+    /**
+     * @return the number of records
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of nutrients every record has room for
+     */
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return bytes of direct memory held by the catalog
+     */
+    public synchronized long offHeapBytes() {
+        return (long) (recordChunks.size() * recordsPerChunk) * recordSize
+                + (long) stringChunks.size() * CHUNK_SIZE;
+    }
+
+    /**
+     * Reads a nutrient of a record
+     *
+     * @param ordinal ordinal of the record
+     * @param nutrient NutrientSchema ordinal of the nutrient
+     * @return the value, NaN if absent
+     */
+    synchronized double nutrient(int ordinal, int nutrient) {
+        if (nutrient >= width) {
+            return Double.NaN;
+        }
+        ByteBuffer chunk = recordChunks.get(ordinal / recordsPerChunk);
+        return chunk.getDouble((ordinal % recordsPerChunk) * recordSize + NUTRIENTS + 8 * nutrient);
+    }
+
+    /**
+     * Writes a nutrient of a record
+     *
+     * @param ordinal ordinal of the record
+     * @param nutrient NutrientSchema ordinal of the nutrient
+     * @param value the value, NaN to mark it absent
+     */
+    synchronized void setNutrient(int ordinal, int nutrient, double value) {
+        if (nutrient >= width) {
+            widen(Math.max(nutrient + 1, NutrientSchema.size()));
+        }
+        ByteBuffer chunk = recordChunks.get(ordinal / recordsPerChunk);
+        chunk.putDouble((ordinal % recordsPerChunk) * recordSize + NUTRIENTS + 8 * nutrient, value);
+    }
+
+    /**
+     * Reads the string referenced at the given field of a record
+     *
+     * @param ordinal ordinal of the record
+     * @param refField NAME_REF or ID_REF
+     * @return the decoded string
+     */
+    private synchronized String string(int ordinal, int refField) {
+        ByteBuffer chunk = recordChunks.get(ordinal / recordsPerChunk);
+        int base = (ordinal % recordsPerChunk) * recordSize;
+        long ref = chunk.getLong(base + refField);
+        // the length is stored right after the reference
+        byte[] bytes = new byte[chunk.getInt(base + refField + 8)];
+        ByteBuffer strings = stringChunks.get((int) (ref >>> CHUNK_SHIFT)).duplicate();
+        strings.position((int) (ref & (CHUNK_SIZE - 1)));
+        strings.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies every record into records with room for more nutrients, the
+     * new ones absent. Must hold the catalog lock.
+     *
+     * @param newWidth number of nutrients the records get room for
+     */
+    private void widen(int newWidth) {
+        int newRecordSize = NUTRIENTS + 8 * newWidth;
+        int newPerChunk = CHUNK_SIZE / newRecordSize;
+        List<ByteBuffer> newChunks = new ArrayList<ByteBuffer>();
+        int oldFieldBytes = NUTRIENTS + 8 * width;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            if (ordinal / newPerChunk == newChunks.size()) {
+                newChunks.add(ByteBuffer.allocateDirect(newPerChunk * newRecordSize));
+            }
+            ByteBuffer from = recordChunks.get(ordinal / recordsPerChunk).duplicate();
+            from.position((ordinal % recordsPerChunk) * recordSize).limit(from.position() + oldFieldBytes);
+            ByteBuffer to = newChunks.get(ordinal / newPerChunk).duplicate();
+            int base = (ordinal % newPerChunk) * newRecordSize;
+            to.position(base);
+            to.put(from);
+            for (int i = width; i < newWidth; i++) {
+                to.putDouble(base + NUTRIENTS + 8 * i, Double.NaN);
+            }
+        }
+        width = newWidth;
+        recordSize = newRecordSize;
+        recordsPerChunk = newPerChunk;
+        recordChunks = newChunks;
+    }
+
+    /**
+     * Appends bytes to the string arena
+     *
+     * @param bytes the encoded string
+     * @return the arena offset of the string
+     */
+    private long writeString(byte[] bytes) {
+        if (bytes.length > CHUNK_SIZE) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long");
+        }
+        int offset = (int) (stringEnd & (CHUNK_SIZE - 1));
+        if (stringChunks.isEmpty() || offset + bytes.length > CHUNK_SIZE) {
+            // start a new chunk rather than split the string
+            if (!stringChunks.isEmpty()) {
+                stringEnd = (long) stringChunks.size() << CHUNK_SHIFT;
+            }
+            stringChunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+            offset = (int) (stringEnd & (CHUNK_SIZE - 1));
+        }
+        ByteBuffer strings = stringChunks.get(stringChunks.size() - 1).duplicate();
+        strings.position(offset);
+        strings.put(bytes);
+        long ref = stringEnd;
+        stringEnd += bytes.length;
+        return ref;
+    }
+
+    /**
+     * Flyweight FoodItem reading a record of the catalog
+     */
+    private class ItemView extends FoodItem {
+
+        // ordinal of the record
+        private final int record;
+
+        /**
+         * Constructor
+         *
+         * @param record ordinal of the record
+         */
+        ItemView(int record) {
+            this.record = record;
+        }
+
+        @Override
+        public String getName() {
+            return string(record, NAME_REF);
+        }
+
+        @Override
+        public String getID() {
+            return string(record, ID_REF);
+        }
+
+        @Override
+        public void addNutrient(int ordinal, double value) {
+            setNutrient(record, ordinal, value);
+        }
+
+        @Override
+        public double getNutrientValue(int ordinal) {
+            double value = nutrient(record, ordinal);
+            return Double.isNaN(value) ? 0 : value;
+        }
+
+        @Override
+        public boolean hasNutrient(int ordinal) {
+            return !Double.isNaN(nutrient(record, ordinal));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ItemView && ((ItemView) other).record == record
+                    && ((ItemView) other).catalog() == OffHeapCatalog.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return record;
+        }
+
+        /**
+         * @return the catalog the view reads from
+         */
+        private OffHeapCatalog catalog() {
+            return OffHeapCatalog.this;
+        }
+    }
+
+    /**
+     * Loads a file into an off-heap catalog and reports heap and direct
+     * memory use, which shows the heap staying flat as the catalog grows.
+     * Then adds the first views to a FoodData and checks that every one is
+     * found by its id.
+     *
+     * @param args path of the food item data file, foodItems.txt by default
+     */
+    public static void main(String[] args) throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        OffHeapCatalog catalog = load(args.length > 0 ? args[0] : "foodItems.txt");
+        System.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println("items: " + catalog.size());
+        System.out.println("off-heap bytes: " + catalog.offHeapBytes());
+        System.out.println("heap growth: " + (heapAfter - heapBefore) + " bytes");
+        if (catalog.size() > 0) {
+            FoodItem first = catalog.get(0);
+            System.out.println("first item: " + first.getID() + " " + first.getName() + " "
+                    + first.getNutrients());
+        }
+
+        // views keep their ids in the catalog, FoodData must index them by
+        // the id string
+        FoodData foodData = new FoodData();
+        int viewCount = Math.min(catalog.size(), 1000);
+        for (int i = 0; i < viewCount; i++) {
+            foodData.addFoodItem(catalog.get(i));
+        }
+        int found = 0;
+        for (int i = 0; i < viewCount; i++) {
+            if (catalog.get(i).equals(foodData.getById(catalog.get(i).getID()))) {
+                found++;
+            }
+        }
+        System.out.println("views found by id in a FoodData: " + found + " of " + viewCount);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Filename:   QueryContext.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+/**
+ * Carries the deadline and cancellation state of a single query.
+ *
+ * Long running operations (leaf scans, column scans) call shouldStop()
+ * as they make progress and give up as soon as it returns true. The clock
+ * is only read every CHECK_INTERVAL calls so the check is cheap enough to
+ * be made once per element.
+ */
+public class QueryContext {
+
+    // Number of calls to shouldStop() between two reads of the clock
+    private static final int CHECK_INTERVAL = 256;
+
+    // Deadline in System.nanoTime() units, Long.MAX_VALUE if there is none
+    private final long deadline;
+
+    // true if a partial result should be returned when the query is stopped
+    private final boolean allowPartial;
+
+    // Set by cancel(), possibly from another thread
+    private volatile boolean cancelled;
+
+    // Set once the deadline has passed
+    private boolean timedOut;
+
+    // Calls to shouldStop() since the clock was last read
+    private int counter;
+
+    /**
+     * Private constructor, use one of the factory methods
+     *
+     * @param deadline deadline in System.nanoTime() units
+     * @param allowPartial true if partial results are acceptable
+     */
+    private QueryContext(long deadline, boolean allowPartial) {
+        this.deadline = deadline;
+        this.allowPartial = allowPartial;
+    }
+
+    /**
+     * Creates a context without a deadline. It only stops if cancelled.
+     *
+     * @return a new context
+     */
+    public static QueryContext unbounded() {
+        return new QueryContext(Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Creates a context that expires after the given number of milliseconds
+     *
+     * @param millis time budget of the query
+     * @param allowPartial true to return what was found so far when the time
+     *                     is up, false to return an empty timed out result
+     * @return a new context
+     */
+    public static QueryContext withTimeout(long millis, boolean allowPartial) {
+        long now = System.nanoTime();
+        long budget = millis * 1000000L;
+        // guard against overflow for very large budgets
+        long deadline = budget > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + budget;
+        return new QueryContext(deadline, allowPartial);
+    }
+
+    /**
+     * Requests the query to stop as soon as possible. Safe to call from any
+     * thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if cancel() has been called
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the deadline passed while the query was running
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return true if partial results are acceptable
+     */
+    public boolean allowsPartial() {
+        return allowPartial;
+    }
+
+    /**
+     * @return the remaining time budget in nanoseconds, 0 if it is used up,
+     *         Long.MAX_VALUE if there is no deadline
+     */
+    public long remainingNanos() {
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    /**
+     * Cooperative check made by running queries.
+     *
+     * @return true if the query was cancelled or ran past its deadline
+     */
+    public boolean shouldStop() {
+        if (cancelled || timedOut) {
+            return true;
+        }
+        if (deadline != Long.MAX_VALUE && ++counter >= CHECK_INTERVAL) {
+            counter = 0;
+            if (System.nanoTime() - deadline >= 0) {
+                timedOut = true;
+            }
+        }
+        return timedOut;
+    }
+
+    /**
+     * @return true if the query has been stopped, without advancing the
+     *         check counter
+     */
+    public boolean isStopped() {
+        return cancelled || timedOut;
+    }
+}
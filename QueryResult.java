@@ -0,0 +1,95 @@
+/**
+ * Filename:   QueryResult.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of a query that was run with a QueryContext.
+ *
+ * A result is either complete, partial (the query was stopped and the
+ * context allowed partial results, so the items are a subset of the full
+ * answer) or empty because the query timed out or was cancelled.
+ *
+ * @param <F> type of the items returned
+ */
+public class QueryResult<F> {
+
+    // Items found by the query
+    private final List<F> items;
+
+    // true if every matching item is in items
+    private final boolean complete;
+
+    // true if the query ran past its deadline
+    private final boolean timedOut;
+
+    // true if the query was cancelled
+    private final boolean cancelled;
+
+    /**
+     * Constructor
+     *
+     * @param items items found by the query
+     * @param complete true if the query ran to completion
+     * @param timedOut true if the deadline passed
+     * @param cancelled true if the query was cancelled
+     */
+    private QueryResult(List<F> items, boolean complete, boolean timedOut, boolean cancelled) {
+        this.items = items;
+        this.complete = complete;
+        this.timedOut = timedOut;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Builds the result of a query from the items it found and the state of
+     * its context once it returned.
+     *
+     * @param items items found by the query
+     * @param context context the query ran with
+     * @return the result of the query
+     */
+    public static <F> QueryResult<F> of(List<F> items, QueryContext context) {
+        if (!context.isStopped()) {
+            return new QueryResult<F>(items, true, false, false);
+        }
+        // Stopped queries only hand out what they found if allowed to
+        List<F> partial = context.allowsPartial() ? items : new ArrayList<F>();
+        return new QueryResult<F>(partial, false, context.isTimedOut(), context.isCancelled());
+    }
+
+    /**
+     * @return the items found; if the result is incomplete this is a subset
+     *         of the full answer
+     */
+    public List<F> getItems() {
+        return items;
+    }
+
+    /**
+     * @return true if the query ran to completion
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return true if the query ran past its deadline
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return true if the query was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,530 @@
+/**
+ * Filename:   TokenIndex.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Inverted index from the terms of food item names (see NameTokenizer) to
+ * item ordinals, ranking the names that match a query with BM25.
+ *
+ * Every term has a posting list of the ordinals whose name contains it,
+ * sorted by ordinal. A posting packs the ordinal, the version of the item
+ * it was added for and the number of times the term occurs in the name in
+ * a long. Removing an item bumps its version, which makes its postings
+ * stale; they are dropped from a list before the list is next read. An
+ * ordinal added out of order also marks its list to be sorted again.
+ *
+ * A search walks the lists of the query terms side by side, one ordinal at
+ * a time, and keeps the best k in a heap; once the heap is full, the lists
+ * of common terms are only probed rather than walked, see search(). So a
+ * search scores the items containing the query terms at most, never the
+ * whole catalog. Methods are synchronized, since searches run outside the
+ * FoodData lock.
+ */
+public class TokenIndex {
+
+    // BM25 term frequency saturation and length normalization
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // Initial length of a posting list, and of the per item arrays
+    private static final int INITIAL_POSTINGS = 4;
+    private static final int INITIAL_ITEMS = 1024;
+
+    // Bits of a posting: ordinal, version and term frequency
+    private static final int VERSION_BITS = 24;
+    private static final int TF_BITS = 8;
+    private static final int VERSION_MASK = (1 << VERSION_BITS) - 1;
+    private static final int TF_MASK = (1 << TF_BITS) - 1;
+
+    /**
+     * Posting list of a term
+     */
+    private static class Term {
+
+        // Postings, see TokenIndex
+        long[] postings = new long[INITIAL_POSTINGS];
+
+        // Number of postings, stale ones included
+        int size;
+
+        // Number of items whose name contains the term
+        int frequency;
+
+        // True if the list has stale or out of order postings
+        boolean dirty;
+    }
+
+    /**
+     * An item and its score, in the heap of a search
+     */
+    private static class Hit {
+
+        final int ordinal;
+        final double score;
+
+        Hit(int ordinal, double score) {
+            this.ordinal = ordinal;
+            this.score = score;
+        }
+    }
+
+    // Posting list of every term
+    private final Map<String, Term> terms = new HashMap<String, Term>();
+
+    // Per ordinal: current version and number of terms of the name, 0 if
+    // the ordinal has no item
+    private int[] versions = new int[INITIAL_ITEMS];
+    private int[] lengths = new int[INITIAL_ITEMS];
+
+    // Number of items and of terms in all their names
+    private int itemCount;
+    private long termCount;
+
+    // Number of postings in all the lists, stale ones included
+    private long entries;
+
+    // Every term in order, for completions; null after a term was added
+    private String[] vocabulary;
+
+    // Every term by edit distance, for fuzzy searches
+    private final BKTree termTree = new BKTree();
+
+    /**
+     * Adds the terms of a name
+     *
+     * @param ordinal ordinal of the item, which must not be in the index
+     * @param name its name
+     */
+    public synchronized void add(int ordinal, String name) {
+        if (ordinal >= lengths.length) {
+            int capacity = Math.max(ordinal + 1, lengths.length * 2);
+            versions = Arrays.copyOf(versions, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        List<String> tokens = NameTokenizer.tokenize(name);
+        if (tokens.isEmpty()) {
+            return;
+        }
+        long version = versions[ordinal];
+        for (Map.Entry<String, Integer> count : counts(tokens).entrySet()) {
+            Term term = terms.get(count.getKey());
+            if (term == null) {
+                term = new Term();
+                terms.put(count.getKey(), term);
+                vocabulary = null;
+                termTree.add(count.getKey());
+            }
+            if (term.size == term.postings.length) {
+                term.postings = Arrays.copyOf(term.postings, term.size * 2);
+            }
+            if (term.size > 0 && ordinalOf(term.postings[term.size - 1]) >= ordinal) {
+                term.dirty = true;
+            }
+            int tf = Math.min(count.getValue(), TF_MASK);
+            term.postings[term.size++] = (long) ordinal << 32 | version << TF_BITS | tf;
+            term.frequency++;
+            entries++;
+        }
+        lengths[ordinal] = tokens.size();
+        itemCount++;
+        termCount += tokens.size();
+    }
+
+    /**
+     * Removes the terms of a name
+     *
+     * @param ordinal ordinal of the item
+     * @param name the name it was added with
+     */
+    public synchronized void remove(int ordinal, String name) {
+        if (ordinal >= lengths.length || lengths[ordinal] == 0) {
+            return;
+        }
+        versions[ordinal] = (versions[ordinal] + 1) & VERSION_MASK;
+        for (String token : counts(NameTokenizer.tokenize(name)).keySet()) {
+            Term term = terms.get(token);
+            if (term != null) {
+                term.frequency--;
+                term.dirty = true;
+            }
+        }
+        itemCount--;
+        termCount -= lengths[ordinal];
+        lengths[ordinal] = 0;
+    }
+
+    /**
+     * Finds the names that best match a query
+     *
+     * A name scores the sum over the query terms it contains of
+     * idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / average)),
+     * which is below idf * (K1 + 1). The terms are sorted by that bound.
+     * Once the heap holds k items, an item containing only terms whose
+     * bounds add up to at most the lowest score in the heap cannot enter
+     * it, so only the lists of the other terms are walked and the low
+     * bound ones are just probed for the ordinals found there (MaxScore).
+     * A query for "chocolate cookie" therefore walks the list of the rarer
+     * term once the heap has filled.
+     *
+     * @param query the query, split like the names
+     * @param k most results
+     * @return ordinals of the best items, best first, ties by ordinal
+     */
+    public synchronized int[] search(String query, int k) {
+        List<Term> queryTerms = new ArrayList<Term>();
+        for (String token : counts(NameTokenizer.tokenize(query)).keySet()) {
+            Term term = terms.get(token);
+            if (term != null && term.frequency > 0) {
+                clean(term);
+                queryTerms.add(term);
+            }
+        }
+        if (queryTerms.isEmpty() || k <= 0) {
+            return new int[0];
+        }
+
+        int n = queryTerms.size();
+        double average = (double) termCount / itemCount;
+        double[] idf = new double[n];
+        double[] bound = new double[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            int frequency = queryTerms.get(i).frequency;
+            idf[i] = Math.log(1 + (itemCount - frequency + 0.5) / (frequency + 0.5));
+            bound[i] = idf[i] * (K1 + 1);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(bound[a], bound[b]));
+        Term[] lists = new Term[n];
+        double[] weights = new double[n];
+        // sum of the bounds of the terms up to i
+        double[] upTo = new double[n];
+        for (int i = 0; i < n; i++) {
+            lists[i] = queryTerms.get(order[i]);
+            weights[i] = idf[order[i]];
+            upTo[i] = bound[order[i]] + (i > 0 ? upTo[i - 1] : 0);
+        }
+
+        PriorityQueue<Hit> heap = new PriorityQueue<Hit>(k + 1, (a, b) -> a.score != b.score
+                ? Double.compare(a.score, b.score) : Integer.compare(b.ordinal, a.ordinal));
+        int[] cursors = new int[n];
+        double threshold = 0;
+        // terms before this one are only probed
+        int firstWalked = 0;
+        while (firstWalked < n) {
+            int ordinal = Integer.MAX_VALUE;
+            for (int i = firstWalked; i < n; i++) {
+                if (cursors[i] < lists[i].size) {
+                    ordinal = Math.min(ordinal, ordinalOf(lists[i].postings[cursors[i]]));
+                }
+            }
+            if (ordinal == Integer.MAX_VALUE) {
+                break;
+            }
+            double normalization = K1 * (1 - B + B * lengths[ordinal] / average);
+            double score = 0;
+            for (int i = firstWalked; i < n; i++) {
+                if (cursors[i] < lists[i].size && ordinalOf(lists[i].postings[cursors[i]]) == ordinal) {
+                    score += termScore(weights[i], lists[i].postings[cursors[i]], normalization);
+                    cursors[i]++;
+                }
+            }
+            for (int i = firstWalked - 1; i >= 0 && score + upTo[i] > threshold; i--) {
+                cursors[i] = seek(lists[i], cursors[i], ordinal);
+                if (cursors[i] < lists[i].size && ordinalOf(lists[i].postings[cursors[i]]) == ordinal) {
+                    score += termScore(weights[i], lists[i].postings[cursors[i]], normalization);
+                }
+            }
+
+            if (heap.size() < k) {
+                heap.add(new Hit(ordinal, score));
+            } else if (score > threshold) {
+                heap.poll();
+                heap.add(new Hit(ordinal, score));
+            }
+            if (heap.size() == k) {
+                threshold = heap.peek().score;
+                while (firstWalked < n && upTo[firstWalked] <= threshold) {
+                    firstWalked++;
+                }
+            }
+        }
+
+        int[] result = new int[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = heap.poll().ordinal;
+        }
+        return result;
+    }
+
+    /**
+     * Finds the names holding every term of a query or a term within an
+     * edit distance of it, so misspelled queries still find them
+     *
+     * The terms near each query term come from the BK-tree of the terms.
+     * The names are found through the posting lists of those terms, walking
+     * the query term with the fewest postings first and only keeping the
+     * names already found for the ones before. A name is as far from the
+     * query as the sum over the query terms of the distance of the nearest
+     * term it holds.
+     *
+     * @param query the query, split like the names
+     * @param maxDistance greatest edit distance of a term from a query term
+     * @param limit most results
+     * @return ordinals of the nearest names, nearest first, ties by ordinal
+     */
+    public synchronized int[] fuzzySearch(String query, int maxDistance, int limit) {
+        List<Map<String, Integer>> near = new ArrayList<Map<String, Integer>>();
+        for (String token : counts(NameTokenizer.tokenize(query)).keySet()) {
+            Map<String, Integer> distances = new HashMap<String, Integer>();
+            for (BKTree.Match match : termTree.search(token, maxDistance)) {
+                if (terms.get(match.word).frequency > 0) {
+                    distances.put(match.word, match.distance);
+                }
+            }
+            if (distances.isEmpty()) {
+                return new int[0];
+            }
+            near.add(distances);
+        }
+        if (near.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+        near.sort((a, b) -> Long.compare(postingCount(a), postingCount(b)));
+
+        // Ordinals of the names found so far, ascending, and their distances
+        int[] found = null;
+        int[] foundDistances = null;
+        int foundCount = 0;
+        for (Map<String, Integer> distances : near) {
+            // postings of the near terms as ordinal and distance, sorted so
+            // the nearest term of a name comes first
+            long[] hits = new long[(int) postingCount(distances)];
+            int hitCount = 0;
+            for (Map.Entry<String, Integer> entry : distances.entrySet()) {
+                Term term = terms.get(entry.getKey());
+                clean(term);
+                for (int i = 0; i < term.size; i++) {
+                    hits[hitCount++] = (long) ordinalOf(term.postings[i]) << 32 | entry.getValue();
+                }
+            }
+            Arrays.sort(hits, 0, hitCount);
+
+            int[] next = new int[hitCount];
+            int[] nextDistances = new int[hitCount];
+            int nextCount = 0;
+            int j = 0;
+            for (int i = 0; i < hitCount; i++) {
+                int ordinal = (int) (hits[i] >>> 32);
+                if (nextCount > 0 && next[nextCount - 1] == ordinal) {
+                    continue;
+                }
+                int before = 0;
+                if (found != null) {
+                    while (j < foundCount && found[j] < ordinal) {
+                        j++;
+                    }
+                    if (j == foundCount || found[j] != ordinal) {
+                        continue;
+                    }
+                    before = foundDistances[j];
+                }
+                next[nextCount] = ordinal;
+                nextDistances[nextCount++] = before + (int) hits[i];
+            }
+            found = next;
+            foundDistances = nextDistances;
+            foundCount = nextCount;
+        }
+
+        PriorityQueue<int[]> heap = new PriorityQueue<int[]>(limit + 1,
+                (a, b) -> a[1] != b[1] ? Integer.compare(b[1], a[1]) : Integer.compare(b[0], a[0]));
+        for (int i = 0; i < foundCount; i++) {
+            if (heap.size() < limit || foundDistances[i] < heap.peek()[1]) {
+                heap.add(new int[] { found[i], foundDistances[i] });
+                if (heap.size() > limit) {
+                    heap.poll();
+                }
+            }
+        }
+        int[] result = new int[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = heap.poll()[0];
+        }
+        return result;
+    }
+
+    /**
+     * @param distances some terms
+     * @return number of postings of the terms
+     */
+    private long postingCount(Map<String, Integer> distances) {
+        long count = 0;
+        for (String term : distances.keySet()) {
+            count += terms.get(term).size;
+        }
+        return count;
+    }
+
+    /**
+     * Completes the start of a term with the terms of the names
+     *
+     * The terms are kept in a sorted array, so the terms starting with the
+     * prefix are a range found by two binary searches. When the range holds
+     * more than n of them, the ones in most names are picked with a heap.
+     *
+     * @param prefix start of a term, any case
+     * @param n most completions
+     * @return terms starting with the prefix, in the most names first, ties
+     *         in alphabetical order
+     */
+    public synchronized List<String> complete(String prefix, int n) {
+        if (vocabulary == null) {
+            vocabulary = terms.keySet().toArray(new String[0]);
+            Arrays.sort(vocabulary);
+        }
+        String start = prefix.toLowerCase(Locale.ROOT);
+        int from = Arrays.binarySearch(vocabulary, start);
+        from = from >= 0 ? from : -from - 1;
+        // every term starting with the prefix sorts before this one
+        int to = Arrays.binarySearch(vocabulary, from, vocabulary.length, start + Character.MAX_VALUE);
+        to = to >= 0 ? to : -to - 1;
+
+        PriorityQueue<String> heap = new PriorityQueue<String>(n + 1, (a, b) -> {
+            int difference = Integer.compare(terms.get(a).frequency, terms.get(b).frequency);
+            return difference != 0 ? difference : b.compareTo(a);
+        });
+        for (int i = from; i < to && n > 0; i++) {
+            if (terms.get(vocabulary[i]).frequency > 0) {
+                heap.add(vocabulary[i]);
+                if (heap.size() > n) {
+                    heap.poll();
+                }
+            }
+        }
+        String[] completions = new String[heap.size()];
+        for (int i = completions.length - 1; i >= 0; i--) {
+            completions[i] = heap.poll();
+        }
+        return Arrays.asList(completions);
+    }
+
+    /**
+     * Scores one term of a name
+     *
+     * @param idf inverse document frequency of the term
+     * @param posting its posting for the name
+     * @param normalization K1 scaled by the length of the name
+     * @return the score
+     */
+    private static double termScore(double idf, long posting, double normalization) {
+        int tf = (int) posting & TF_MASK;
+        return idf * tf * (K1 + 1) / (tf + normalization);
+    }
+
+    /**
+     * Finds the first posting of a list at or after an ordinal, galloping
+     * from a position
+     *
+     * @param term the list
+     * @param from position to look from
+     * @param ordinal the ordinal
+     * @return position of the first posting with an ordinal at least the
+     *         given one, or the size of the list
+     */
+    private static int seek(Term term, int from, int ordinal) {
+        long key = (long) ordinal << 32;
+        int step = 1;
+        int low = from;
+        int high = from;
+        while (high < term.size && term.postings[high] < key) {
+            low = high + 1;
+            high = from + step;
+            step *= 2;
+        }
+        int found = Arrays.binarySearch(term.postings, low, Math.min(high, term.size), key);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    /**
+     * Sorts a list added to out of order and drops its stale postings
+     *
+     * @param term the list
+     */
+    private void clean(Term term) {
+        if (!term.dirty) {
+            return;
+        }
+        Arrays.sort(term.postings, 0, term.size);
+        int size = 0;
+        for (int i = 0; i < term.size; i++) {
+            long posting = term.postings[i];
+            int ordinal = ordinalOf(posting);
+            if ((int) (posting >>> TF_BITS & VERSION_MASK) == versions[ordinal] && lengths[ordinal] > 0) {
+                term.postings[size++] = posting;
+            }
+        }
+        entries -= term.size - size;
+        term.size = size;
+        term.dirty = false;
+    }
+
+    /**
+     * @param posting a posting
+     * @return its ordinal
+     */
+    private static int ordinalOf(long posting) {
+        return (int) (posting >>> 32);
+    }
+
+    /**
+     * Counts the occurrences of the terms of a name
+     *
+     * @param tokens the terms
+     * @return number of occurrences of each distinct term
+     */
+    private static Map<String, Integer> counts(List<String> tokens) {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for (String token : tokens) {
+            counts.merge(token, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * @return number of postings in all the lists
+     */
+    public synchronized long size() {
+        return entries;
+    }
+
+    /**
+     * @return estimated bytes of the index, see MemoryReport
+     */
+    public synchronized long memoryBytes() {
+        long bytes = MemoryReport.arrayBytes(versions.length, 4) + MemoryReport.arrayBytes(lengths.length, 4);
+        for (Map.Entry<String, Term> entry : terms.entrySet()) {
+            // map entry, term string and term object
+            bytes += 32 + MemoryReport.arrayBytes(entry.getKey().length(), 1) + 40
+                    + MemoryReport.arrayBytes(entry.getValue().postings.length, 8);
+        }
+        if (vocabulary != null) {
+            bytes += MemoryReport.arrayBytes(vocabulary.length, MemoryReport.REFERENCE_BYTES);
+        }
+        bytes += termTree.memoryBytes();
+        return bytes;
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Filename:   TrigramIndex.java
+ * Project:    FoodQuery
+ * Authors:    Kevin Luangpoomyut, Sheung Chan, Jiahui Zhou, Matthew Kesler,
+ *             Michael Thompson
+ *
+ */
+
+import java.util.Arrays;
+
+/**
+ * Inverted index from the trigrams of folded food item names to item
+ * ordinals, used to find the names containing a substring without looking
+ * at every name.
+ *
+ * A trigram is three consecutive bytes of the folded name (see
+ * NameStore.fold()) packed in an int. Every trigram has a posting list of
+ * the ordinals whose name contains it. A name contains a substring of at
+ * least three bytes only if it contains every trigram of the substring, so
+ * intersecting their lists gives the candidates, which the caller then
+ * checks against the names.
+ *
+ * Lists are kept sorted by ordinal. An ordinal added out of order marks
+ * its list to be sorted again before the next lookup. Entries are never
+ * removed: an entry left by a renamed or deleted item no longer matches
+ * when its candidate is checked. Methods are synchronized, since lookups
+ * run outside the FoodData lock.
+ */
+public class TrigramIndex {
+
+    // Bytes in a trigram
+    public static final int GRAM = 3;
+
+    // Initial number of slots of the trigram table, a power of two
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Initial length of a posting list
+    private static final int INITIAL_POSTINGS = 4;
+
+    // Marks an empty slot in the trigram table
+    private static final int EMPTY = -1;
+
+    // Open addressing table of trigrams with linear probing, slot i is
+    // empty if trigrams[i] == EMPTY
+    private int[] trigrams;
+
+    // Per slot: the posting list, its length and whether it is sorted
+    private int[][] postings;
+    private int[] lengths;
+    private boolean[] unsorted;
+
+    // Number of trigrams in the table
+    private int count;
+
+    // Number of entries in all the posting lists
+    private long entries;
+
+    /**
+     * Public constructor
+     */
+    public TrigramIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Adds the trigrams of a name
+     *
+     * @param ordinal ordinal of the item
+     * @param folded folded bytes of its name
+     * @param length number of folded bytes
+     */
+    public synchronized void add(int ordinal, byte[] folded, int length) {
+        for (int i = 0; i + GRAM <= length; i++) {
+            int slot = slotOf(trigram(folded, i), true);
+            int size = lengths[slot];
+            int[] list = postings[slot];
+            if (size > 0 && list[size - 1] == ordinal) {
+                // trigram seen earlier in the same name
+                continue;
+            }
+            if (size == list.length) {
+                list = Arrays.copyOf(list, size * 2);
+                postings[slot] = list;
+            }
+            if (size > 0 && list[size - 1] > ordinal) {
+                unsorted[slot] = true;
+            }
+            list[size] = ordinal;
+            lengths[slot] = size + 1;
+            entries++;
+        }
+    }
+
+    /**
+     * Gets the ordinals whose names contain every trigram of a substring
+     *
+     * @param needle the substring, folded
+     * @return the ordinals in ascending order, some of which may not
+     *         contain the substring; null if the substring is too short to
+     *         have a trigram
+     */
+    public synchronized int[] candidates(byte[] needle) {
+        int gramCount = needle.length - GRAM + 1;
+        if (gramCount <= 0) {
+            return null;
+        }
+
+        // Posting lists of the distinct trigrams, shortest first
+        int[] slots = new int[gramCount];
+        int distinct = 0;
+        for (int i = 0; i < gramCount; i++) {
+            int slot = slotOf(trigram(needle, i), false);
+            if (slot == EMPTY) {
+                return new int[0];
+            }
+            boolean seen = false;
+            for (int j = 0; j < distinct; j++) {
+                seen |= slots[j] == slot;
+            }
+            if (!seen) {
+                sort(slot);
+                slots[distinct++] = slot;
+            }
+        }
+        Integer[] order = new Integer[distinct];
+        for (int j = 0; j < distinct; j++) {
+            order[j] = slots[j];
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(lengths[a], lengths[b]));
+
+        int[] result = Arrays.copyOf(postings[order[0]], lengths[order[0]]);
+        int size = result.length;
+        for (int j = 1; j < distinct && size > 0; j++) {
+            size = intersect(result, size, postings[order[j]], lengths[order[j]]);
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Keeps the ordinals of a sorted array that are also in a sorted list,
+     * walking the list when it is about as long as the array and binary
+     * searching it when it is much longer
+     *
+     * @param result the ordinals, overwritten with the kept ones
+     * @param size number of ordinals in result
+     * @param list the posting list
+     * @param length length of the list
+     * @return number of ordinals kept
+     */
+    static int intersect(int[] result, int size, int[] list, int length) {
+        int kept = 0;
+        if (length / size > 16) {
+            int from = 0;
+            for (int i = 0; i < size; i++) {
+                int found = Arrays.binarySearch(list, from, length, result[i]);
+                if (found >= 0) {
+                    result[kept++] = result[i];
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+        } else {
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                while (j < length && list[j] < result[i]) {
+                    j++;
+                }
+                if (j < length && list[j] == result[i]) {
+                    result[kept++] = result[i];
+                }
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Sorts a posting list added to out of order, dropping repeated
+     * ordinals
+     *
+     * @param slot slot of the list
+     */
+    private void sort(int slot) {
+        if (!unsorted[slot]) {
+            return;
+        }
+        int[] list = postings[slot];
+        Arrays.sort(list, 0, lengths[slot]);
+        int size = 0;
+        for (int i = 0; i < lengths[slot]; i++) {
+            if (size == 0 || list[size - 1] != list[i]) {
+                list[size++] = list[i];
+            }
+        }
+        entries -= lengths[slot] - size;
+        lengths[slot] = size;
+        unsorted[slot] = false;
+    }
+
+    /**
+     * @return number of entries in all the posting lists
+     */
+    public synchronized long size() {
+        return entries;
+    }
+
+    /**
+     * @return estimated bytes of the index, see MemoryReport
+     */
+    public synchronized long memoryBytes() {
+        long bytes = MemoryReport.arrayBytes(trigrams.length, 4)
+                + MemoryReport.arrayBytes(postings.length, MemoryReport.REFERENCE_BYTES)
+                + MemoryReport.arrayBytes(lengths.length, 4)
+                + MemoryReport.arrayBytes(unsorted.length, 1);
+        for (int slot = 0; slot < trigrams.length; slot++) {
+            if (trigrams[slot] != EMPTY) {
+                bytes += MemoryReport.arrayBytes(postings[slot].length, 4);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Packs the trigram starting at a position
+     *
+     * @param bytes the bytes
+     * @param from position of the first byte
+     * @return the trigram
+     */
+    private static int trigram(byte[] bytes, int from) {
+        return (bytes[from] & 0xFF) << 16 | (bytes[from + 1] & 0xFF) << 8 | (bytes[from + 2] & 0xFF);
+    }
+
+    /**
+     * Finds the slot of a trigram
+     *
+     * @param trigram the trigram
+     * @param create true to add the trigram if it is missing
+     * @return its slot, EMPTY if it is missing and not created
+     */
+    private int slotOf(int trigram, boolean create) {
+        int mask = trigrams.length - 1;
+        int slot = (trigram * 0x9E3779B1) >>> 7 & mask;
+        while (trigrams[slot] != EMPTY) {
+            if (trigrams[slot] == trigram) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!create) {
+            return EMPTY;
+        }
+        trigrams[slot] = trigram;
+        postings[slot] = new int[INITIAL_POSTINGS];
+        count++;
+        // keep the table at most half full
+        if (2 * count > trigrams.length) {
+            rehash(trigrams.length * 2);
+            return slotOf(trigram, false);
+        }
+        return slot;
+    }
+
+    /**
+     * Allocates an empty table
+     *
+     * @param capacity number of slots, a power of two
+     */
+    private void allocate(int capacity) {
+        trigrams = new int[capacity];
+        Arrays.fill(trigrams, EMPTY);
+        postings = new int[capacity][];
+        lengths = new int[capacity];
+        unsorted = new boolean[capacity];
+    }
+
+    /**
+     * Moves every trigram into a table of the given capacity
+     *
+     * @param capacity number of slots, a power of two
+     */
+    private void rehash(int capacity) {
+        int[] oldTrigrams = trigrams;
+        int[][] oldPostings = postings;
+        int[] oldLengths = lengths;
+        boolean[] oldUnsorted = unsorted;
+        allocate(capacity);
+        for (int i = 0; i < oldTrigrams.length; i++) {
+            if (oldTrigrams[i] != EMPTY) {
+                int slot = (oldTrigrams[i] * 0x9E3779B1) >>> 7 & (capacity - 1);
+                while (trigrams[slot] != EMPTY) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                trigrams[slot] = oldTrigrams[i];
+                postings[slot] = oldPostings[i];
+                lengths[slot] = oldLengths[i];
+                unsorted[slot] = oldUnsorted[i];
+            }
+        }
+    }
+}
@@ -63,11 +63,11 @@ public class YourMealPlanAnalysis {
 
             // calculate the total number for nutrients
             for (FoodItem food: mealPlanList) {
-                calories += food.getNutrientValue("calories");
-                fat += food.getNutrientValue("fat");
-                carbohydrate += food.getNutrientValue("carbohydrate");
-                fiber += food.getNutrientValue("fiber");
-                protein += food.getNutrientValue("protein");
+                calories += food.getNutrientValue(NutrientSchema.CALORIES);
+                fat += food.getNutrientValue(NutrientSchema.FAT);
+                carbohydrate += food.getNutrientValue(NutrientSchema.CARBOHYDRATE);
+                fiber += food.getNutrientValue(NutrientSchema.FIBER);
+                protein += food.getNutrientValue(NutrientSchema.PROTEIN);
             }
 
             // to create the pie chart